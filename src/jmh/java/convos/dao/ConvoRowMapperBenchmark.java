@@ -0,0 +1,118 @@
+package convos.dao;
+
+import convos.domain.Convo;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.jdbc.core.RowMapper;
+
+import javax.sql.rowset.CachedRowSet;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mapping one page of convo rows, per row.
+ *
+ * "legacy" repeats the work the old by-name mapper did for every row: a name lookup per
+ * column, a Timestamp and a Joda DateTime for each time, and a boxed Long for
+ * reply_to_convo. "current" is {@link ConvoRowMapper}. "compressed" maps rows whose bodies are
+ * stored compressed, which stay compressed until read, and "compressedRead" also reads each
+ * body, as writing the response does. Run with "-prof gc" and compare gc.alloc.rate.norm,
+ * which is reported in bytes per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvoRowMapperBenchmark
+{
+    static final int ROWS = 100;
+
+    private CachedRowSet rs;
+    private CachedRowSet compressedRs;
+
+    private static final RowMapper<Convo> legacyMapper = new RowMapper<Convo>()
+    {
+        @Override
+        public Convo mapRow(ResultSet rs, int rowNum) throws SQLException
+        {
+            final long id = rs.getLong("id");
+            final long sender = rs.getLong("sender");
+            final long recipient = rs.getLong("recipient");
+            final String subject = rs.getString("subject");
+            final String body = rs.getString("body");
+            final boolean wasRead = rs.getBoolean("was_read");
+            final long threadId = rs.getLong("thread_id");
+            final DateTime sendTime = new DateTime(rs.getTimestamp("send_time"));
+            final DateTime updateTime = new DateTime(rs.getTimestamp("update_time"));
+            Long replyToConvo = rs.getLong("reply_to_convo");
+            if (rs.wasNull()) {
+                replyToConvo = null;
+            }
+            return new Convo(id, sender, recipient, subject, body, wasRead, threadId,
+                    sendTime.getMillis(), updateTime.getMillis(), replyToConvo != null ? replyToConvo : 0L);
+        }
+    };
+
+    @Setup
+    public void setUp() throws SQLException
+    {
+        rs = ConvoRows.create(ROWS, 1000);
+        compressedRs = ConvoRows.create(ROWS, 1000, true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void legacy(Blackhole bh) throws SQLException
+    {
+        mapAll(rs, legacyMapper, bh);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void current(Blackhole bh) throws SQLException
+    {
+        mapAll(rs, new ConvoRowMapper(false), bh);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void compressed(Blackhole bh) throws SQLException
+    {
+        mapAll(compressedRs, new ConvoRowMapper(false), bh);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void compressedRead(Blackhole bh) throws SQLException
+    {
+        final RowMapper<Convo> mapper = new ConvoRowMapper(false);
+        compressedRs.beforeFirst();
+        int rowNum = 0;
+        while (compressedRs.next()) {
+            bh.consume(mapper.mapRow(compressedRs, rowNum++).getBody());
+        }
+    }
+
+    private void mapAll(final CachedRowSet rs, final RowMapper<Convo> mapper, final Blackhole bh) throws SQLException
+    {
+        rs.beforeFirst();
+        int rowNum = 0;
+        while (rs.next()) {
+            bh.consume(mapper.mapRow(rs, rowNum++));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package convos.dao;
+
+import convos.domain.BodyCodec;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * In-memory result sets shaped like ConvoDao's listing queries, so row mapping can be
+ * measured without a database.
+ *
+ * Rows carry both the epoch-millis columns the current queries select and the raw
+ * timestamp columns older queries selected, so one result set serves either mapper, and the
+ * unread_count thread listings select alongside.
+ */
+final class ConvoRows
+{
+    private static final String[] COLUMNS = {
+            "id", "sender", "recipient", "subject", "body", "body_z", "snippet", "was_read", "thread_id", "reply_to_convo",
+            "send_millis", "update_millis", "send_time", "update_time", "unread_count"};
+    private static final int[] TYPES = {
+            Types.BIGINT, Types.BIGINT, Types.BIGINT, Types.VARCHAR, Types.VARCHAR, Types.VARBINARY, Types.VARCHAR, Types.BOOLEAN,
+            Types.BIGINT, Types.BIGINT, Types.BIGINT, Types.BIGINT, Types.TIMESTAMP, Types.TIMESTAMP, Types.INTEGER};
+
+    private ConvoRows()
+    {
+    }
+
+    /**
+     * @param rows Number of rows
+     * @param bodyLength Length of each body; snippets are cut from it as ConvoDao does
+     * @return A scrollable result set, positioned before the first row.
+     */
+    static CachedRowSet create(final int rows, final int bodyLength) throws SQLException
+    {
+        return create(rows, bodyLength, false);
+    }
+
+    /**
+     * @param rows Number of rows
+     * @param bodyLength Length of each body; snippets are cut from it as ConvoDao does
+     * @param compressed True to store bodies in body_z, as ConvoDao does for long ones
+     * @return A scrollable result set, positioned before the first row.
+     */
+    static CachedRowSet create(final int rows, final int bodyLength, final boolean compressed) throws SQLException
+    {
+        final RowSetMetaDataImpl meta = new RowSetMetaDataImpl();
+        meta.setColumnCount(COLUMNS.length);
+        for (int i = 0; i < COLUMNS.length; i++) {
+            meta.setColumnName(i + 1, COLUMNS[i]);
+            meta.setColumnLabel(i + 1, COLUMNS[i]);
+            meta.setColumnType(i + 1, TYPES[i]);
+            meta.setNullable(i + 1, RowSetMetaDataImpl.columnNullable);
+        }
+        final StringBuilder body = new StringBuilder(bodyLength);
+        for (int i = 0; i < bodyLength; i++) {
+            body.append((char)('a' + i % 26));
+        }
+
+        final byte[] compressedBody = compressed ? BodyCodec.compress(body.toString(), 6) : null;
+
+        final CachedRowSet rs = RowSetProvider.newFactory().createCachedRowSet();
+        rs.setMetaData(meta);
+        final long start = 1431782847123L;
+        for (int i = 0; i < rows; i++) {
+            final long sendTime = start + i * 1000L;
+            rs.moveToInsertRow();
+            rs.updateLong("id", i + 1);
+            rs.updateLong("sender", 24L);
+            rs.updateLong("recipient", 1000L + i % 50);
+            rs.updateString("subject", "Subject of convo " + i);
+            if (compressedBody != null) {
+                rs.updateNull("body");
+                rs.updateBytes("body_z", compressedBody);
+            } else {
+                rs.updateString("body", body.toString());
+                rs.updateNull("body_z");
+            }
+            rs.updateString("snippet", ConvoDao.snippet(body.toString()));
+            rs.updateBoolean("was_read", i % 3 == 0);
+            rs.updateLong("thread_id", i / 4 + 1);
+            if (i % 4 == 0) {
+                rs.updateNull("reply_to_convo");
+            } else {
+                rs.updateLong("reply_to_convo", i);
+            }
+            rs.updateLong("send_millis", sendTime);
+            rs.updateTimestamp("send_time", new Timestamp(sendTime));
+            if (i % 3 == 0) {
+                rs.updateLong("update_millis", sendTime + 500L);
+                rs.updateTimestamp("update_time", new Timestamp(sendTime + 500L));
+            } else {
+                rs.updateNull("update_millis");
+                rs.updateNull("update_time");
+            }
+            rs.updateInt("unread_count", i % 3);
+            rs.insertRow();
+            rs.moveToCurrentRow();
+        }
+        rs.beforeFirst();
+        return rs;
+    }
+}
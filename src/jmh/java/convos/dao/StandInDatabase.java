@@ -0,0 +1,112 @@
+package convos.dao;
+
+import convos.domain.MailboxCounters;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import javax.sql.rowset.CachedRowSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DAOs backed by an in-memory result set instead of Postgres, for benchmarking the code
+ * around the database: SQL assembly, row mapping and response building.
+ *
+ * Every query answers with the first :limit rows of the same fixed mailbox, regardless of
+ * its SQL. Not thread-safe; give each benchmark thread its own DAOs.
+ */
+public final class StandInDatabase
+{
+    private StandInDatabase()
+    {
+    }
+
+    /**
+     * @param rows Number of convos in the stand-in mailbox
+     * @param bodyLength Length of each convo body
+     */
+    public static ConvoDao convoDao(final int rows, final int bodyLength) throws SQLException
+    {
+        final ConvoDao dao = new ConvoDao();
+        dao.jdbcTemplate = new StandInJdbcTemplate(ConvoRows.create(rows, bodyLength));
+        dao.streamingJdbcTemplate = dao.jdbcTemplate;
+        return dao;
+    }
+
+    /**
+     * @param counters What every user's counters read as
+     */
+    public static MailboxCounterDao counterDao(final MailboxCounters counters)
+    {
+        return new MailboxCounterDao()
+        {
+            @Override
+            public MailboxCounters getCounters(final long userId)
+            {
+                return counters;
+            }
+        };
+    }
+
+    /**
+     * A transaction manager whose transactions do nothing, as the stand-in DAOs have no connection.
+     */
+    public static PlatformTransactionManager transactionManager()
+    {
+        return new PlatformTransactionManager()
+        {
+            @Override
+            public TransactionStatus getTransaction(final TransactionDefinition definition)
+            {
+                return new SimpleTransactionStatus();
+            }
+
+            @Override
+            public void commit(final TransactionStatus status)
+            {
+            }
+
+            @Override
+            public void rollback(final TransactionStatus status)
+            {
+            }
+        };
+    }
+
+    private static class StandInJdbcTemplate extends NamedParameterJdbcTemplate
+    {
+        private final CachedRowSet rs;
+
+        StandInJdbcTemplate(final CachedRowSet rs)
+        {
+            super(new JdbcTemplate());
+            this.rs = rs;
+        }
+
+        @Override
+        public <T> List<T> query(String sql, Map<String, ?> paramMap, RowMapper<T> rowMapper)
+        {
+            final Object limitParam = paramMap.get("limit");
+            final int limit = limitParam instanceof Number ? ((Number)limitParam).intValue() : 0;
+            final List<T> result = new ArrayList<>(limit > 0 ? limit : 16);
+            try {
+                rs.beforeFirst();
+                int rowNum = 0;
+                while ((limit <= 0 || rowNum < limit) && rs.next()) {
+                    result.add(rowMapper.mapRow(rs, rowNum++));
+                }
+            } catch (SQLException e) {
+                throw new DataAccessResourceFailureException("Stand-in result set failed", e);
+            }
+            return result;
+        }
+    }
+}
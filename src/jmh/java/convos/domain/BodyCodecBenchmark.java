@@ -0,0 +1,123 @@
+package convos.domain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of {@link BodyCodec} against the bytes it saves, for bodies shaped like real convos.
+ *
+ * "prose" is running text, "thread" is a reply quoting the earlier messages of its thread, as
+ * mail clients do, and "encoded" is base64 of random bytes, e.g. a pasted key or attachment,
+ * which doesn't compress. Setup prints the stored size for each combination, so the times
+ * below can be read against the bytes kept out of the table, its TOAST storage and the WAL.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BodyCodecBenchmark
+{
+    private static final String[] WORDS = (
+            "the of and to a in is you that it he was for on are as with his they at be this have from or one " +
+            "had by word but not what all were we when your can said there use an each which she do how their " +
+            "if will up other about out many then them these so some her would make like him into time has look " +
+            "two more write go see number no way could people my than first water been call who oil its now find " +
+            "long down day did get come made may part meeting tomorrow thanks please let know project update " +
+            "review schedule team budget deadline sounds good attached draft question week call friday").split(" ");
+
+    @Param({"prose", "thread", "encoded"})
+    public String corpus;
+
+    @Param({"500", "2000", "16000", "64000"})
+    public int length;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private String body;
+    private byte[] compressed;
+
+    @Setup
+    public void setUp()
+    {
+        final Random random = new Random(length);
+        body = corpus.equals("prose") ? prose(random, length)
+                : corpus.equals("thread") ? thread(random, length)
+                : encoded(random, length);
+        compressed = BodyCodec.compress(body, level);
+        final int utf8 = body.getBytes(StandardCharsets.UTF_8).length;
+        System.out.printf("%n%s, %d chars, level %d: %d UTF-8 bytes stored as %s%n", corpus, length, level, utf8,
+                compressed != null ? compressed.length + " (" + 100 * compressed.length / utf8 + "%)" : "text, no smaller compressed");
+        if (compressed == null) {
+            compressed = BodyCodec.compress(prose(random, length), level);
+        }
+    }
+
+    @Benchmark
+    public byte[] compress()
+    {
+        return BodyCodec.compress(body, level);
+    }
+
+    @Benchmark
+    public String decompress()
+    {
+        return BodyCodec.decompress(compressed);
+    }
+
+    private static String prose(final Random random, final int length)
+    {
+        final StringBuilder text = new StringBuilder(length + 100);
+        while (text.length() < length) {
+            int words = 5 + random.nextInt(16);
+            for (int i = 0; i < words; i++) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                text.append(i == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+                text.append(i == words - 1 ? ". " : random.nextInt(8) == 0 ? ", " : " ");
+            }
+            if (random.nextInt(5) == 0) {
+                text.append("\n\n");
+            }
+        }
+        return text.substring(0, length);
+    }
+
+    /**
+     * A new paragraph or two on top of the previous message, quoted line by line.
+     */
+    private static String thread(final Random random, final int length)
+    {
+        String message = prose(random, 200 + random.nextInt(400));
+        while (message.length() < length) {
+            final StringBuilder reply = new StringBuilder(prose(random, 100 + random.nextInt(600)));
+            reply.append("\n\nOn Friday, user ").append(random.nextInt(100000)).append(" wrote:\n");
+            for (String line : message.split("\n")) {
+                reply.append("> ").append(line).append('\n');
+            }
+            message = reply.toString();
+        }
+        return message.substring(0, length);
+    }
+
+    private static String encoded(final Random random, final int length)
+    {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return java.util.Base64.getMimeEncoder().encodeToString(bytes).substring(0, length);
+    }
+}
@@ -0,0 +1,50 @@
+package convos.domain;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a create request body into a validated {@link CreateConvo}, as the controller does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateConvoBenchmark
+{
+    @Param({"160", "2000", "64000"})
+    public int bodyLength;
+
+    private ObjectReader reader;
+    private byte[] json;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        final ObjectMapper mapper = new ObjectMapper();
+        reader = mapper.reader(CreateConvo.class);
+        json = mapper.writeValueAsBytes(new CreateConvo(24L, 25L, "Subject", JsonBenchmark.body(bodyLength)));
+    }
+
+    @Benchmark
+    public CreateConvo read() throws IOException
+    {
+        return reader.readValue(json);
+    }
+}
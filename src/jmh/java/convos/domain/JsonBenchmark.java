@@ -0,0 +1,99 @@
+package convos.domain;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson cost of writing listing responses at several page and body sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark
+{
+    @Param({"10", "100", "500"})
+    public int pageSize;
+
+    @Param({"160", "2000", "64000"})
+    public int bodyLength;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private ObjectWriter convosWriter;
+    private ObjectWriter threadsWriter;
+    private ConvosResponse convos;
+    private ThreadsResponse threads;
+
+    /**
+     * Discards output, so only serialization is measured.
+     */
+    private final OutputStream sink = new OutputStream()
+    {
+        @Override
+        public void write(int b)
+        {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        final String body = body(bodyLength);
+        final List<Convo> page = new ArrayList<>(pageSize);
+        for (int i = 0; i < pageSize; i++) {
+            page.add(new Convo(i + 1, 24L, 1000L + i, "Subject of convo " + i, body, i % 3 == 0, i / 4 + 1,
+                    1431782847123L + i * 1000L, i % 3 == 0 ? 1431782847623L + i * 1000L : 0L, i % 4 == 0 ? 0L : i));
+        }
+        convos = new ConvosResponse(10000, page, 0, "/api/v1/24/convos/received?cursor=YTox&limit=" + pageSize,
+                "/api/v1/24/convos/received?cursor=Yjox&limit=" + pageSize, "YTox", "Yjox");
+        threads = new ThreadsResponse(2500, page, 0, "/api/v1/24/threads?cursor=YTox&limit=" + pageSize,
+                "/api/v1/24/threads?cursor=Yjox&limit=" + pageSize, "YTox", "Yjox");
+        convosWriter = mapper.writerWithType(ConvosResponse.class);
+        threadsWriter = mapper.writerWithType(ThreadsResponse.class);
+    }
+
+    @Benchmark
+    public void writeConvosResponse() throws IOException
+    {
+        convosWriter.writeValue(sink, convos);
+    }
+
+    @Benchmark
+    public void writeThreadsResponse() throws IOException
+    {
+        threadsWriter.writeValue(sink, threads);
+    }
+
+    static String body(final int length)
+    {
+        final StringBuilder body = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            body.append((char)('a' + i % 26));
+        }
+        return body.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package convos.service;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import convos.dao.StandInDatabase;
+import convos.domain.ConvoView;
+import convos.domain.ConvosResponse;
+import convos.domain.MailboxCounters;
+import convos.domain.PageCursor;
+import convos.domain.SortDirection;
+import convos.domain.ThreadsResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The listing paths of {@link ConvoService}, from request parameters to response object,
+ * against {@link StandInDatabase}. Covers everything but the database round trip itself. The
+ * count and page queries run on the calling thread, one after the other.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvoServiceBenchmark
+{
+    private static final long USER_ID = 24L;
+
+    @Param({"10", "100", "500"})
+    public int limit;
+
+    @Param({"full", "summary"})
+    public String view;
+
+    private ConvoService service;
+    private ConvoView convoView;
+    private PageCursor cursor;
+
+    @Setup
+    public void setUp() throws SQLException
+    {
+        service = new ConvoService();
+        service.convoDao = StandInDatabase.convoDao(limit, 2000);
+        service.counterDao = StandInDatabase.counterDao(new MailboxCounters(10000, 10000, 500, 2500));
+        service.listingExecutor = MoreExecutors.sameThreadExecutor();
+        service.transactionManager = StandInDatabase.transactionManager();
+        convoView = ConvoView.fromJson(view);
+        cursor = new PageCursor(1431782847123L, 5000L, false);
+    }
+
+    @Benchmark
+    public ConvosResponse receivedByOffset()
+    {
+        return Futures.getUnchecked(service.getConvosReceived(USER_ID, 200, limit, SortDirection.DESCENDING, convoView));
+    }
+
+    @Benchmark
+    public ConvosResponse receivedByCursor()
+    {
+        return Futures.getUnchecked(service.getConvosReceived(USER_ID, cursor, limit, SortDirection.DESCENDING, convoView));
+    }
+
+    @Benchmark
+    public ConvosResponse sentByCursor()
+    {
+        return Futures.getUnchecked(service.getConvosSent(USER_ID, cursor, limit, SortDirection.DESCENDING, convoView));
+    }
+
+    @Benchmark
+    public ThreadsResponse threadsByCursor()
+    {
+        return Futures.getUnchecked(service.getThreads(USER_ID, cursor, limit, SortDirection.DESCENDING, convoView));
+    }
+}
@@ -0,0 +1,65 @@
+package convos.loadtest;
+
+/**
+ * The Controller endpoints the load test drives, and how to build a request for each.
+ */
+enum Endpoint
+{
+    RECEIVED("received", "GET"),
+    RECEIVED_SUMMARY("received-summary", "GET"),
+    SENT("sent", "GET"),
+    THREADS("threads", "GET"),
+    THREAD("thread", "GET"),
+    READ("read", "GET"),
+    TOGGLE("toggle", "PUT"),
+    CREATE("create", "POST");
+
+    private final String name;
+    private final String method;
+
+    Endpoint(final String name, final String method)
+    {
+        this.name = name;
+        this.method = method;
+    }
+
+    static Endpoint fromName(final String name)
+    {
+        for (Endpoint e : values()) {
+            if (e.name.equals(name)) {
+                return e;
+            }
+        }
+        throw new IllegalArgumentException("Unknown endpoint in mix: " + name);
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    String getMethod()
+    {
+        return method;
+    }
+
+    /**
+     * @param user The user the request is made for
+     * @param convo One of the user's received convos: {convoId, threadId}
+     * @param pageSize Listing page size
+     * @return Path and query of the request.
+     */
+    String path(final long user, final long[] convo, final int pageSize)
+    {
+        switch (this) {
+            case RECEIVED: return "/api/v1/" + user + "/convos/received?cursor=&limit=" + pageSize;
+            case RECEIVED_SUMMARY: return "/api/v1/" + user + "/convos/received?cursor=&limit=" + pageSize + "&view=summary";
+            case SENT: return "/api/v1/" + user + "/convos/sent?cursor=&limit=" + pageSize;
+            case THREADS: return "/api/v1/" + user + "/threads?cursor=&limit=" + pageSize;
+            case THREAD: return "/api/v1/" + user + "/threads/" + convo[1] + "?cursor=&limit=" + pageSize;
+            case READ: return "/api/v1/" + user + "/convos/received/" + convo[0];
+            case TOGGLE: return "/api/v1/" + user + "/convos/received/" + convo[0];
+            default: return "/api/v1/convos";
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package convos.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.SynchronizedHistogram;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator. Requests are started on a fixed schedule at the target rate,
+ * whether or not earlier requests have finished, and each latency is measured from the time
+ * the request was scheduled to start. When the service stalls, the requests that pile up
+ * behind the stall are charged for the time they waited, instead of never being sent, which
+ * is what keeps the histograms free of coordinated omission.
+ */
+class LoadGenerator
+{
+    /** Longest latency the histograms can hold, in microseconds. */
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+    private final String baseUrl;
+    private final LoadTestOptions options;
+    private final Population population;
+    private final Endpoint[] wheel;
+    private final Map<Endpoint, Histogram> histograms = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, AtomicLong> errors = new EnumMap<>(Endpoint.class);
+
+    LoadGenerator(final String baseUrl, final LoadTestOptions options, final Population population)
+    {
+        this.baseUrl = baseUrl;
+        this.options = options;
+        this.population = population;
+        int total = 0;
+        for (int weight : options.mix.values()) {
+            total += weight;
+        }
+        this.wheel = new Endpoint[total];
+        int i = 0;
+        for (Map.Entry<Endpoint, Integer> entry : options.mix.entrySet()) {
+            for (int w = 0; w < entry.getValue(); w++) {
+                wheel[i++] = entry.getKey();
+            }
+            histograms.put(entry.getKey(), new SynchronizedHistogram(MAX_LATENCY_MICROS, 3));
+            errors.put(entry.getKey(), new AtomicLong());
+        }
+    }
+
+    /**
+     * Run warmup and then measured load, returning once every scheduled request has finished.
+     */
+    void run() throws InterruptedException
+    {
+        final ExecutorService workers = Executors.newFixedThreadPool(options.connections);
+        final Random random = new Random();
+        final long intervalNanos = (long)(TimeUnit.SECONDS.toNanos(1) / options.rate);
+        final long start = System.nanoTime();
+        final long measureFrom = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        final long end = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+
+        for (long i = 0; ; i++) {
+            final long intended = start + i * intervalNanos;
+            if (intended >= end) {
+                break;
+            }
+            long now;
+            while ((now = System.nanoTime()) < intended) {
+                LockSupport.parkNanos(intended - now);
+            }
+            final Endpoint endpoint = wheel[random.nextInt(wheel.length)];
+            final boolean measured = intended >= measureFrom;
+            workers.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    boolean ok = send(endpoint);
+                    if (measured) {
+                        histograms.get(endpoint).recordValue(
+                                Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended), MAX_LATENCY_MICROS));
+                        if (!ok) {
+                            errors.get(endpoint).incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(5, TimeUnit.MINUTES);
+    }
+
+    private boolean send(final Endpoint endpoint)
+    {
+        final Random random = ThreadLocalRandom.current();
+        final long user = population.pickUser(random);
+        final long[] convo = population.pickConvo(user, random);
+        if (convo == null && (endpoint == Endpoint.THREAD || endpoint == Endpoint.READ || endpoint == Endpoint.TOGGLE)) {
+            return send(Endpoint.RECEIVED, user, null, null);
+        }
+        String body = null;
+        if (endpoint == Endpoint.CREATE) {
+            body = "{\"sender\":" + user + ",\"recipient\":" + population.pickLightUser(random) +
+                    ",\"subject\":\"Load test\",\"body\":\"" + Population.body(random) + "\"}";
+        }
+        return send(endpoint, user, convo, body);
+    }
+
+    private boolean send(final Endpoint endpoint, final long user, final long[] convo, final String body)
+    {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection)new URL(baseUrl + endpoint.path(user, convo, options.pageSize)).openConnection();
+            connection.setRequestMethod(endpoint.getMethod());
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            final int status = connection.getResponseCode();
+            // Read the whole response, so the connection goes back to the keep-alive pool.
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null) {
+                    final byte[] buffer = new byte[8192];
+                    while (in.read(buffer) >= 0) {
+                        // discard
+                    }
+                }
+            }
+            return status < 400;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Print throughput, error count and latency percentiles per endpoint, in milliseconds.
+     */
+    void report(final PrintStream out)
+    {
+        out.printf("%-18s %10s %10s %8s %10s %10s %10s %10s%n",
+                "endpoint", "requests", "req/s", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Map.Entry<Endpoint, Histogram> entry : histograms.entrySet()) {
+            final Histogram h = entry.getValue();
+            out.printf("%-18s %10d %10.1f %8d %10.2f %10.2f %10.2f %10.2f%n",
+                    entry.getKey().getName(),
+                    h.getTotalCount(),
+                    h.getTotalCount() / (double)options.durationSeconds,
+                    errors.get(entry.getKey()).get(),
+                    h.getValueAtPercentile(50) / 1000.0,
+                    h.getValueAtPercentile(99) / 1000.0,
+                    h.getValueAtPercentile(99.9) / 1000.0,
+                    h.getMaxValue() / 1000.0);
+        }
+    }
+
+    /**
+     * Write each endpoint's full percentile distribution as an .hgrm file, in milliseconds,
+     * which can be plotted with HdrHistogram's histogram plotter.
+     */
+    void writeHistograms(final File dir) throws FileNotFoundException
+    {
+        dir.mkdirs();
+        for (Map.Entry<Endpoint, Histogram> entry : histograms.entrySet()) {
+            try (PrintStream out = new PrintStream(new File(dir, entry.getKey().getName() + ".hgrm"))) {
+                entry.getValue().outputPercentileDistribution(out, 1000.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package convos.loadtest;
+
+import convos.Application;
+import convos.service.ConvoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * End-to-end load test. Boots the service on a random port against the configured database,
+ * seeds a skewed population of users, drives a mix of endpoints at a fixed rate over HTTP,
+ * and reports throughput and latency percentiles per endpoint.
+ *
+ * Run with "gradle loadtest", passing options as -Pargs="--rate=500 --duration=120 ...".
+ * See {@link LoadTestOptions} for the options; anything else is handed to the application.
+ */
+public class LoadTest
+{
+    private static final Logger logger = LoggerFactory.getLogger(LoadTest.class);
+
+    public static void main(String[] args) throws Exception
+    {
+        final LoadTestOptions options = LoadTestOptions.parse(args);
+        final List<String> applicationArgs = new ArrayList<>(options.applicationArgs);
+        applicationArgs.add("--server.port=0");
+
+        final ConfigurableApplicationContext context =
+                SpringApplication.run(Application.class, applicationArgs.toArray(new String[applicationArgs.size()]));
+        try {
+            final int port = ((EmbeddedWebApplicationContext)context).getEmbeddedServletContainer().getPort();
+            final Population population = Population.seed(context.getBean(ConvoService.class), options, new Random(42));
+
+            logger.info("Driving {} requests/s at port {}: {}s warmup, {}s measured", options.rate, port,
+                    options.warmupSeconds, options.durationSeconds);
+            final LoadGenerator generator = new LoadGenerator("http://localhost:" + port, options, population);
+            generator.run();
+            generator.report(System.out);
+            final File reports = new File(System.getProperty("loadtest.reports", "build/reports/loadtest"));
+            generator.writeHistograms(reports);
+            logger.info("Latency distributions written to {}", reports.getAbsolutePath());
+        } finally {
+            context.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package convos.loadtest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line options of {@link LoadTest}, as --name=value. Anything not listed here is
+ * passed on to the application, e.g. --spring.datasource.url=...
+ */
+class LoadTestOptions
+{
+    /** Requests started per second, whether or not earlier ones have finished. */
+    double rate = 200;
+    /** Seconds of measured load, after warmup. */
+    int durationSeconds = 60;
+    /** Seconds of load before measuring starts, to warm up the JIT, caches and pool. */
+    int warmupSeconds = 15;
+    /** Concurrent HTTP connections. Requests beyond this wait in a queue, and the wait counts as latency. */
+    int connections = 64;
+    /** First user ID of the seeded population. Use a fresh range (or a fresh database) per run. */
+    long firstUser = 1000000L;
+    /** Users with a huge mailbox. */
+    int heavyUsers = 5;
+    /** Convos received by each heavy user. */
+    int heavyMailbox = 20000;
+    /** Users with a small mailbox. */
+    int lightUsers = 5000;
+    /** Average convos received by each light user. */
+    int lightMailbox = 20;
+    /** Share of requests, 0 to 1, made on behalf of a heavy user. */
+    double heavyTraffic = 0.1;
+    /** Page size for listings. */
+    int pageSize = 20;
+    /** Relative weight of each endpoint in the request mix. */
+    final Map<Endpoint, Integer> mix = new LinkedHashMap<>();
+    /** Arguments for the application itself. */
+    final List<String> applicationArgs = new ArrayList<>();
+
+    static LoadTestOptions parse(final String... args)
+    {
+        final LoadTestOptions options = new LoadTestOptions();
+        String mix = "received=30,received-summary=10,sent=10,threads=20,thread=5,read=15,toggle=5,create=5";
+        for (String arg : args) {
+            final int eq = arg.indexOf('=');
+            final String name = eq > 0 ? arg.substring(0, eq) : arg;
+            final String value = eq > 0 ? arg.substring(eq + 1) : "";
+            switch (name) {
+                case "--rate": options.rate = Double.parseDouble(value); break;
+                case "--duration": options.durationSeconds = Integer.parseInt(value); break;
+                case "--warmup": options.warmupSeconds = Integer.parseInt(value); break;
+                case "--connections": options.connections = Integer.parseInt(value); break;
+                case "--first-user": options.firstUser = Long.parseLong(value); break;
+                case "--heavy-users": options.heavyUsers = Integer.parseInt(value); break;
+                case "--heavy-mailbox": options.heavyMailbox = Integer.parseInt(value); break;
+                case "--light-users": options.lightUsers = Integer.parseInt(value); break;
+                case "--light-mailbox": options.lightMailbox = Integer.parseInt(value); break;
+                case "--heavy-traffic": options.heavyTraffic = Double.parseDouble(value); break;
+                case "--page-size": options.pageSize = Integer.parseInt(value); break;
+                case "--mix": mix = value; break;
+                default: options.applicationArgs.add(arg);
+            }
+        }
+        for (String entry : mix.split(",")) {
+            final String[] parts = entry.split("=");
+            options.mix.put(Endpoint.fromName(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        }
+        return options;
+    }
+}
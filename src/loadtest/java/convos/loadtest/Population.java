@@ -0,0 +1,166 @@
+package convos.loadtest;
+
+import com.google.common.util.concurrent.Futures;
+import convos.domain.BatchCreateConvo;
+import convos.domain.Convo;
+import convos.domain.ConvoView;
+import convos.domain.PageCursor;
+import convos.domain.SortDirection;
+import convos.service.ConvoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A skewed set of seeded users: a few with huge mailboxes, many with small ones, as real
+ * mailboxes are. Seeding goes through ConvoService, so counters and thread summaries are
+ * built exactly as in production.
+ */
+class Population
+{
+    private static final Logger logger = LoggerFactory.getLogger(Population.class);
+
+    private static final int BATCH_SIZE = 500;
+    private static final int RECENT = 10000;
+    private static final int TARGETS_PER_USER = 16;
+    private static final double REPLY_SHARE = 0.3;
+
+    private final long[] heavy;
+    private final long[] light;
+    private final double heavyTraffic;
+    /** For each user, a sample of their received convos as {convoId, threadId}. */
+    private final Map<Long, long[][]> targets = new HashMap<>();
+
+    private Population(final long[] heavy, final long[] light, final double heavyTraffic)
+    {
+        this.heavy = heavy;
+        this.light = light;
+        this.heavyTraffic = heavyTraffic;
+    }
+
+    static Population seed(final ConvoService service, final LoadTestOptions options, final Random random)
+    {
+        final long[] heavy = new long[options.heavyUsers];
+        final long[] light = new long[options.lightUsers];
+        for (int i = 0; i < heavy.length; i++) {
+            heavy[i] = options.firstUser + i;
+        }
+        for (int i = 0; i < light.length; i++) {
+            light[i] = options.firstUser + heavy.length + i;
+        }
+        final Population population = new Population(heavy, light, options.heavyTraffic);
+
+        // One slot per convo to be received, shuffled so each batch touches many mailboxes.
+        final List<Long> slots = new ArrayList<>();
+        for (long user : heavy) {
+            for (int i = 0; i < options.heavyMailbox; i++) {
+                slots.add(user);
+            }
+        }
+        for (long user : light) {
+            int count = 1 + random.nextInt(2 * options.lightMailbox);
+            for (int i = 0; i < count; i++) {
+                slots.add(user);
+            }
+        }
+        Collections.shuffle(slots, random);
+        logger.info("Seeding {} convos for {} heavy and {} light users", slots.size(), heavy.length, light.length);
+
+        // Recently created convos as {id, sender, recipient}, for replies to pick from.
+        final long[][] recent = new long[RECENT][];
+        int created = 0;
+        final List<BatchCreateConvo> batch = new ArrayList<>(BATCH_SIZE);
+        for (long recipient : slots) {
+            final long[] original = created > 0 && random.nextDouble() < REPLY_SHARE
+                    ? recent[random.nextInt(Math.min(created, RECENT))] : null;
+            if (original != null) {
+                batch.add(new BatchCreateConvo(original[2], original[1], "", body(random), original[0]));
+            } else {
+                long sender = light[random.nextInt(light.length)];
+                batch.add(new BatchCreateConvo(sender, recipient, "Seeded convo", body(random), null));
+            }
+            if (batch.size() == BATCH_SIZE) {
+                created = flush(service, batch, recent, created);
+            }
+        }
+        created = flush(service, batch, recent, created);
+        logger.info("Seeded {} convos, sampling request targets", created);
+
+        for (long user : heavy) {
+            population.sample(service, user);
+        }
+        for (long user : light) {
+            population.sample(service, user);
+        }
+        return population;
+    }
+
+    private static int flush(final ConvoService service, final List<BatchCreateConvo> batch, final long[][] recent, int created)
+    {
+        if (batch.isEmpty()) {
+            return created;
+        }
+        final List<Long> ids = service.createConvos(batch);
+        for (int i = 0; i < ids.size(); i++) {
+            recent[created % RECENT] = new long[] {ids.get(i), batch.get(i).getSender(), batch.get(i).getRecipient()};
+            created++;
+        }
+        batch.clear();
+        return created;
+    }
+
+    private void sample(final ConvoService service, final long user)
+    {
+        final List<Convo> received = Futures.getUnchecked(service.getConvosReceived(user, (PageCursor)null, TARGETS_PER_USER,
+                SortDirection.DESCENDING, ConvoView.SUMMARY)).getConvos();
+        final long[][] sample = new long[received.size()][];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = new long[] {received.get(i).getId(), received.get(i).getThreadId()};
+        }
+        targets.put(user, sample);
+    }
+
+    /**
+     * @return A user to make the next request for, heavy users with probability heavyTraffic.
+     */
+    long pickUser(final Random random)
+    {
+        if (heavy.length > 0 && random.nextDouble() < heavyTraffic) {
+            return heavy[random.nextInt(heavy.length)];
+        }
+        return light[random.nextInt(light.length)];
+    }
+
+    /**
+     * @return Any light user, e.g. as the recipient of a new convo.
+     */
+    long pickLightUser(final Random random)
+    {
+        return light[random.nextInt(light.length)];
+    }
+
+    /**
+     * @return One of the user's received convos as {convoId, threadId}, or null if they have none.
+     */
+    long[] pickConvo(final long user, final Random random)
+    {
+        final long[][] sample = targets.get(user);
+        return sample == null || sample.length == 0 ? null : sample[random.nextInt(sample.length)];
+    }
+
+    static String body(final Random random)
+    {
+        final int length = 50 + random.nextInt(1950);
+        final StringBuilder body = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            body.append(i % 6 == 5 ? ' ' : (char)('a' + random.nextInt(26)));
+        }
+        return body.toString();
+    }
+}
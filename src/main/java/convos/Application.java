@@ -7,10 +7,12 @@ import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.velocity.VelocityAutoConfiguration;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 @Configuration
 @EnableAutoConfiguration(exclude = {VelocityAutoConfiguration.class})
 @ComponentScan(basePackages = { "convos" })
+@EnableTransactionManagement
 public class Application
 {
     private static final Logger logger = LoggerFactory.getLogger(Application.class);
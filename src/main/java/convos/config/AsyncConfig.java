@@ -0,0 +1,36 @@
+package convos.config;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executors for work taken off the servlet threads.
+ */
+@Configuration
+public class AsyncConfig
+{
+    /**
+     * Runs the count and page queries of listings, side by side. Bounded in threads and queued
+     * tasks, so a slow database backs up here instead of taking every pooled connection; once the
+     * queue is full, new listings are turned away. Each listing holds up to two connections at a
+     * time, so keep threads well under the connection pool size.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ListeningExecutorService listingExecutor(@Value("${convos.listing.threads:20}") int threads,
+                                                    @Value("${convos.listing.queue:500}") int queue)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queue),
+                new ThreadFactoryBuilder().setNameFormat("listing-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return MoreExecutors.listeningDecorator(executor);
+    }
+}
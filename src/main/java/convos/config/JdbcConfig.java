@@ -0,0 +1,45 @@
+package convos.config;
+
+import convos.metrics.ProfilingJdbcTemplate;
+import convos.metrics.SlowQueryLog;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import javax.sql.DataSource;
+
+/**
+ * JDBC templates used by the DAOs.
+ */
+@Configuration
+public class JdbcConfig
+{
+    /**
+     * Template for everything but streaming. Statements are timed and the slow ones explained,
+     * see {@link SlowQueryLog}.
+     */
+    @Bean
+    @Primary
+    public NamedParameterJdbcTemplate jdbcTemplate(DataSource dataSource, SlowQueryLog slowQueryLog)
+    {
+        return new ProfilingJdbcTemplate(dataSource, slowQueryLog);
+    }
+
+    /**
+     * Template for unbounded listings that are streamed to the client. Postgres only honors the
+     * fetch size inside a transaction, where it pulls rows through a cursor in batches instead of
+     * materializing the whole result set in memory. Not profiled: these statements take as long
+     * as the client takes to read the response.
+     */
+    @Bean
+    public NamedParameterJdbcTemplate streamingJdbcTemplate(DataSource dataSource,
+                                                           @Value("${convos.streaming.fetch-size:500}") int fetchSize)
+    {
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        template.setFetchSize(fetchSize);
+        return new NamedParameterJdbcTemplate(template);
+    }
+}
@@ -0,0 +1,74 @@
+package convos.config;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Splitter;
+import convos.dao.ReplicaRoutingDataSource;
+import convos.metrics.MetricsConfig;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data sources for the primary and its read replicas.
+ *
+ * The primary pool is configured by the usual spring.datasource properties. Replicas are listed
+ * in convos.replicas.urls and share the primary's credentials. With no replicas, everything
+ * goes to the primary as before.
+ */
+@Configuration
+public class ReplicaConfig
+{
+    /**
+     * Connection pool for the primary, wrapped with metrics by {@link MetricsConfig}.
+     */
+    @Bean
+    @ConfigurationProperties(prefix = "spring.datasource")
+    public DataSource primaryDataSource()
+    {
+        return DataSourceBuilder.create().build();
+    }
+
+    @Bean(destroyMethod = "close")
+    public ReplicaRoutingDataSource replicaRoutingDataSource(@Qualifier("primaryDataSource") DataSource primary,
+                                                             DataSourceProperties properties,
+                                                             MetricRegistry registry,
+                                                             @Value("${convos.replicas.urls:}") String urls,
+                                                             @Value("${convos.replicas.max-wait-ms:200}") long maxWaitMillis,
+                                                             @Value("${convos.replicas.poll-ms:10}") long pollMillis,
+                                                             @Value("${convos.replicas.retry-seconds:5}") long retrySeconds)
+    {
+        List<DataSource> replicas = new ArrayList<>();
+        for (String url : Splitter.on(',').trimResults().omitEmptyStrings().split(urls)) {
+            org.apache.tomcat.jdbc.pool.DataSource pool = (org.apache.tomcat.jdbc.pool.DataSource)DataSourceBuilder.create()
+                    .driverClassName(properties.getDriverClassName())
+                    .url(url)
+                    .username(properties.getUsername())
+                    .password(properties.getPassword())
+                    .build();
+            replicas.add(MetricsConfig.instrument(registry, MetricRegistry.name("datasource", "replica", String.valueOf(replicas.size())), pool));
+        }
+        return new ReplicaRoutingDataSource(primary, replicas, maxWaitMillis, pollMillis, retrySeconds * 1000, registry);
+    }
+
+    /**
+     * The DataSource everything uses, the transaction manager included. Connections are only
+     * taken from the pools at the first statement, so that {@link ReplicaRoutingDataSource}
+     * can tell whether a transaction is read-only before picking a server for it.
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(ReplicaRoutingDataSource routing)
+    {
+        return new LazyConnectionDataSourceProxy(routing);
+    }
+}
@@ -1,10 +1,26 @@
 package convos.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import convos.dao.ReplicaRoutingDataSource;
+import convos.domain.BatchCreateConvo;
+import convos.domain.BroadcastConvo;
+import convos.domain.ChangesResponse;
 import convos.domain.Convo;
+import convos.domain.ConvoView;
 import convos.domain.ConvosResponse;
 import convos.domain.CreateConvo;
+import convos.domain.MailboxListing;
+import convos.domain.PageCursor;
 import convos.domain.ResourceNotFoundException;
+import convos.domain.SearchCursor;
+import convos.domain.SearchResponse;
 import convos.domain.SortDirection;
+import convos.domain.StreamResponse;
+import convos.domain.SyncToken;
 import convos.domain.ThreadsResponse;
 import convos.service.ConvoService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,20 +30,62 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+import java.util.Map;
 
 @RestController
 public class Controller
 {
     @Autowired ConvoService convoService;
+    @Autowired ObjectMapper objectMapper;
+    @Autowired ReplicaRoutingDataSource routing;
 
     @RequestMapping(value = "/api/v1/convos", method = RequestMethod.POST)
-    public long createConvo(@RequestBody final CreateConvo convo) {
-        return convoService.createConvo(convo, null);
+    public long createConvo(@RequestBody final CreateConvo convo, final HttpServletResponse response) {
+        long id = convoService.createConvo(convo, null);
+        readAfter(response);
+        return id;
+    }
+
+    @RequestMapping(value = "/api/v1/convos/batch", method = RequestMethod.POST)
+    public List<Long> createConvos(@RequestBody final List<BatchCreateConvo> convos, final HttpServletResponse response) {
+        List<Long> ids = convoService.createConvos(convos);
+        readAfter(response);
+        return ids;
+    }
+
+    @RequestMapping(value = "/api/v1/convos/broadcast", method = RequestMethod.POST)
+    public List<Long> broadcastConvo(@RequestBody final BroadcastConvo broadcast, final HttpServletResponse response) {
+        List<Long> ids = convoService.broadcastConvo(broadcast);
+        readAfter(response);
+        return ids;
     }
 
     @RequestMapping(value = "/api/v1/convos/{convoId}/replies", method = RequestMethod.POST)
-    public long replyToConvo(@PathVariable final long convoId, @RequestBody final CreateConvo convo) {
-        return convoService.createConvo(convo, convoId);
+    public long replyToConvo(@PathVariable final long convoId, @RequestBody final CreateConvo convo, final HttpServletResponse response) {
+        long id = convoService.createConvo(convo, convoId);
+        readAfter(response);
+        return id;
+    }
+
+    @RequestMapping(value = "/api/v1/convos/unread/counts", method = RequestMethod.POST)
+    public Map<Long, Integer> getUnreadCounts(@RequestBody final List<Long> userIds) {
+        return convoService.getUnreadCounts(userIds);
+    }
+
+    @RequestMapping(value = "/api/v1/convos/received/newest", method = RequestMethod.POST)
+    public void getNewestReceived(@RequestBody final List<Long> userIds, @RequestParam(defaultValue = "10") final int limit,
+                                  @RequestParam(defaultValue = "full") final String view, final HttpServletResponse response) {
+        convoService.streamNewestReceived(userIds, limit, ConvoView.fromJson(view), new JsonInboxHeadsStream(response, objectMapper));
+    }
+
+    @RequestMapping(value = "/api/v1/{userId}/convos/unread/count", method = RequestMethod.GET)
+    public int getUnreadCount(@PathVariable final long userId) {
+        return convoService.getUnreadCount(userId);
     }
 
     @RequestMapping(value = "/api/v1/{userId}/convos/sent/{convoId}", method = RequestMethod.GET)
@@ -49,46 +107,213 @@ public class Controller
     }
 
     @RequestMapping(value = "/api/v1/{userId}/convos/{convoId}", method = RequestMethod.DELETE)
-    public void deleteConvo(@PathVariable final long userId, @PathVariable final long convoId) {
+    public void deleteConvo(@PathVariable final long userId, @PathVariable final long convoId, final HttpServletResponse response) {
         convoService.deleteConvo(userId, convoId);
+        readAfter(response);
     }
 
     @RequestMapping(value = "/api/v1/{userId}/convos/received/{convoId}", method = RequestMethod.PUT)
-    public void changeConvoReadStatus(@PathVariable final long userId, @PathVariable final long convoId) {
+    public void changeConvoReadStatus(@PathVariable final long userId, @PathVariable final long convoId, final HttpServletResponse response) {
         convoService.changeConvoReadStatus(userId, convoId);
+        readAfter(response);
     }
 
     @RequestMapping(value = "/api/v1/{userId}/convos/sent", method = RequestMethod.GET)
-    public ConvosResponse getConvosSent(@PathVariable final long userId, @RequestParam(defaultValue = "0") final int offset,
-                                        @RequestParam(defaultValue = "0") final int limit, @RequestParam(defaultValue = "desc") final String direction) {
-        return convoService.getConvosSent(userId, offset, limit, SortDirection.fromJson(direction));
+    public DeferredResult<ConvosResponse> getConvosSent(@PathVariable final long userId, @RequestParam(defaultValue = "0") final int offset,
+                                        @RequestParam(defaultValue = "0") final int limit, @RequestParam(defaultValue = "desc") final String direction,
+                                        @RequestParam(required = false) final String cursor,
+                                        @RequestParam(defaultValue = "full") final String view,
+                                        final HttpServletRequest request, final HttpServletResponse response) {
+        if (notModified(userId, request, response)) {
+            return null;
+        }
+        if (cursor == null && limit == 0) {
+            convoService.streamConvosSent(userId, offset, SortDirection.fromJson(direction), ConvoView.fromJson(view),
+                    new JsonListingStream(response, objectMapper));
+            return null;
+        }
+        if (cursor != null) {
+            return tagged(response, convoService.getConvosSent(userId, PageCursor.decode(cursor), limit, SortDirection.fromJson(direction), ConvoView.fromJson(view)));
+        }
+        return tagged(response, convoService.getConvosSent(userId, offset, limit, SortDirection.fromJson(direction), ConvoView.fromJson(view)));
     }
 
     @RequestMapping(value = "/api/v1/{userId}/convos/received", method = RequestMethod.GET)
-    public ConvosResponse getConvosReceived(@PathVariable final long userId, @RequestParam(defaultValue = "0") final int offset,
-                                        @RequestParam(defaultValue = "0") final int limit, @RequestParam(defaultValue = "desc") final String direction) {
-        return convoService.getConvosReceived(userId, offset, limit, SortDirection.fromJson(direction));
+    public DeferredResult<ConvosResponse> getConvosReceived(@PathVariable final long userId, @RequestParam(defaultValue = "0") final int offset,
+                                        @RequestParam(defaultValue = "0") final int limit, @RequestParam(defaultValue = "desc") final String direction,
+                                        @RequestParam(required = false) final String cursor,
+                                        @RequestParam(defaultValue = "full") final String view,
+                                        final HttpServletRequest request, final HttpServletResponse response) {
+        if (notModified(userId, request, response)) {
+            return null;
+        }
+        if (cursor == null && limit == 0) {
+            convoService.streamConvosReceived(userId, offset, SortDirection.fromJson(direction), ConvoView.fromJson(view),
+                    new JsonListingStream(response, objectMapper));
+            return null;
+        }
+        if (cursor != null) {
+            return tagged(response, convoService.getConvosReceived(userId, PageCursor.decode(cursor), limit, SortDirection.fromJson(direction), ConvoView.fromJson(view)));
+        }
+        return tagged(response, convoService.getConvosReceived(userId, offset, limit, SortDirection.fromJson(direction), ConvoView.fromJson(view)));
+    }
+
+    @RequestMapping(value = "/api/v1/{userId}/convos/search", method = RequestMethod.GET)
+    public DeferredResult<SearchResponse> searchConvos(@PathVariable final long userId, @RequestParam(required = false) final String q,
+                                       @RequestParam(defaultValue = "20") final int limit,
+                                       @RequestParam(required = false) final String cursor,
+                                       @RequestParam(defaultValue = "full") final String view) {
+        return deferred(convoService.searchConvos(userId, q, SearchCursor.decode(cursor), limit, ConvoView.fromJson(view)));
+    }
+
+    @RequestMapping(value = "/api/v1/{userId}/convos/changes", method = RequestMethod.GET)
+    public DeferredResult<ChangesResponse> getChanges(@PathVariable final long userId, @RequestParam(required = false) final String since,
+                                      @RequestParam(defaultValue = "100") final int limit,
+                                      @RequestParam(defaultValue = "full") final String view) {
+        return deferred(convoService.getChanges(userId, SyncToken.decode(since), limit, ConvoView.fromJson(view)));
+    }
+
+    @RequestMapping(value = "/api/v1/{userId}/convos/stream", method = RequestMethod.GET)
+    public DeferredResult<StreamResponse> streamEvents(@PathVariable final long userId, @RequestParam(required = false) final String cursor) {
+        return convoService.pollEvents(userId, cursor);
     }
 
     @RequestMapping(value = "/api/v1/{userId}/threads", method = RequestMethod.GET)
-    public ThreadsResponse getThreads(@PathVariable final long userId, @RequestParam(defaultValue = "0") final int offset,
-                                      @RequestParam(defaultValue = "0") final int limit, @RequestParam(defaultValue = "desc") final String direction) {
-        return convoService.getThreads(userId, offset, limit, SortDirection.fromJson(direction));
+    public DeferredResult<ThreadsResponse> getThreads(@PathVariable final long userId, @RequestParam(defaultValue = "0") final int offset,
+                                      @RequestParam(defaultValue = "0") final int limit, @RequestParam(defaultValue = "desc") final String direction,
+                                      @RequestParam(required = false) final String cursor,
+                                      @RequestParam(defaultValue = "full") final String view,
+                                      final HttpServletRequest request, final HttpServletResponse response) {
+        if (notModified(userId, request, response)) {
+            return null;
+        }
+        if (cursor == null && limit == 0) {
+            convoService.streamThreads(userId, offset, SortDirection.fromJson(direction), ConvoView.fromJson(view),
+                    new JsonThreadListingStream(response, objectMapper));
+            return null;
+        }
+        if (cursor != null) {
+            return tagged(response, convoService.getThreads(userId, PageCursor.decode(cursor), limit, SortDirection.fromJson(direction), ConvoView.fromJson(view)));
+        }
+        return tagged(response, convoService.getThreads(userId, offset, limit, SortDirection.fromJson(direction), ConvoView.fromJson(view)));
     }
 
     @RequestMapping(value = "/api/v1/{userId}/threads/{threadId}", method = RequestMethod.GET)
-    public ConvosResponse getThread(@PathVariable final long userId, @PathVariable final long threadId,
+    public DeferredResult<ConvosResponse> getThread(@PathVariable final long userId, @PathVariable final long threadId,
                                     @RequestParam(defaultValue = "0") final int offset, @RequestParam(defaultValue = "0") final int limit,
-                                    @RequestParam(defaultValue = "desc") final String direction) {
-        ConvosResponse resp = convoService.getThread(userId, threadId, offset, limit, SortDirection.fromJson(direction));
-        if (resp.getTotal() == 0) {
-            throw new ResourceNotFoundException();
+                                    @RequestParam(defaultValue = "desc") final String direction,
+                                    @RequestParam(required = false) final String cursor,
+                                    @RequestParam(defaultValue = "full") final String view,
+                                    final HttpServletRequest request, final HttpServletResponse response) {
+        if (notModified(userId, request, response)) {
+            return null;
         }
-        return resp;
+        if (cursor == null && limit == 0) {
+            convoService.streamThread(userId, threadId, offset, SortDirection.fromJson(direction), ConvoView.fromJson(view),
+                    new JsonListingStream(response, objectMapper));
+            return null;
+        }
+        ListenableFuture<ConvosResponse> resp = cursor != null
+                ? convoService.getThread(userId, threadId, PageCursor.decode(cursor), limit, SortDirection.fromJson(direction), ConvoView.fromJson(view))
+                : convoService.getThread(userId, threadId, offset, limit, SortDirection.fromJson(direction), ConvoView.fromJson(view));
+        return tagged(response, Futures.transform(resp, new Function<ConvosResponse, ConvosResponse>()
+        {
+            @Override
+            public ConvosResponse apply(ConvosResponse r)
+            {
+                if (r.getTotal() == 0) {
+                    throw new ResourceNotFoundException();
+                }
+                return r;
+            }
+        }));
     }
 
     @RequestMapping(value = "/api/v1/{userId}/threads/{threadId}", method = RequestMethod.DELETE)
-    public void deleteThread(@PathVariable final long userId, @PathVariable final long threadId) {
+    public void deleteThread(@PathVariable final long userId, @PathVariable final long threadId, final HttpServletResponse response) {
         convoService.deleteThread(userId, threadId);
+        readAfter(response);
+    }
+
+    /**
+     * Tell the client where the primary's log stood once its write committed, for it to send
+     * back as {@link ReadAfterFilter#HEADER} on reads that must see the write.
+     */
+    private void readAfter(final HttpServletResponse response) {
+        String position = routing.writePosition();
+        if (position != null) {
+            response.setHeader(ReadAfterFilter.HEADER, position);
+        }
+    }
+
+    /**
+     * Answer 304 Not Modified if the client sent the tag of the user's current mailbox version,
+     * after a single primary key lookup instead of the listing's queries.
+     * @return True if the response is complete and the listing needn't run.
+     */
+    private boolean notModified(final long userId, final HttpServletRequest request, final HttpServletResponse response) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String etag = etag(convoService.getMailboxVersion(userId));
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            // Proxies may weaken our tags; the comparison for If-None-Match is weak anyway
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                response.setHeader("ETag", etag);
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hand a listing back like {@link #deferred}, with an ETag of the mailbox version its page was
+     * read at. The header is set before the result, so it is in place when the response is written.
+     */
+    private static <T extends MailboxListing<T>> DeferredResult<T> tagged(final HttpServletResponse response, final ListenableFuture<T> future) {
+        return deferred(Futures.transform(future, new Function<T, T>()
+        {
+            @Override
+            public T apply(T listing)
+            {
+                if (listing.getMailboxVersion() != null) {
+                    response.setHeader("ETag", etag(listing.getMailboxVersion()));
+                }
+                return listing;
+            }
+        }));
+    }
+
+    static String etag(final long mailboxVersion) {
+        return "\"" + mailboxVersion + "\"";
+    }
+
+    /**
+     * Hand a listing back to the servlet container once its queries are done, so the request
+     * thread isn't held while they run. Failures go through the usual exception handling.
+     */
+    private static <T> DeferredResult<T> deferred(final ListenableFuture<T> future) {
+        final DeferredResult<T> result = new DeferredResult<>();
+        Futures.addCallback(future, new FutureCallback<T>()
+        {
+            @Override
+            public void onSuccess(T value)
+            {
+                result.setResult(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+                result.setErrorResult(t);
+            }
+        });
+        return result;
     }
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package convos.controller;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import convos.domain.Convo;
+import convos.service.InboxHeadsStream;
+import org.springframework.http.MediaType;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes the newest convos of many users to the HTTP response as they are read, as a JSON
+ * object mapping each user ID to a list of convos. Users with no convos get an empty list,
+ * written at the end.
+ */
+class JsonInboxHeadsStream implements InboxHeadsStream
+{
+    private final HttpServletResponse response;
+    private final ObjectMapper mapper;
+    private final ObjectWriter convoWriter;
+    private final Set<Long> written = new HashSet<>();
+    private Collection<Long> userIds;
+    private JsonGenerator generator;
+    private Long current;
+
+    JsonInboxHeadsStream(HttpServletResponse response, ObjectMapper mapper)
+    {
+        this.response = response;
+        this.mapper = mapper;
+        this.convoWriter = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    @Override
+    public void start(Collection<Long> userIds)
+    {
+        this.userIds = userIds;
+        try {
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.setCharacterEncoding("UTF-8");
+            generator = mapper.getFactory().createGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+            generator.writeStartObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void handle(Convo convo)
+    {
+        try {
+            if (current == null || current != convo.getRecipient()) {
+                if (current != null) {
+                    generator.writeEndArray();
+                }
+                current = convo.getRecipient();
+                written.add(current);
+                generator.writeArrayFieldStart(String.valueOf(current));
+            }
+            convoWriter.writeValue(generator, convo);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        try {
+            if (current != null) {
+                generator.writeEndArray();
+            }
+            for (Long userId : userIds) {
+                if (!written.contains(userId)) {
+                    generator.writeArrayFieldStart(String.valueOf(userId));
+                    generator.writeEndArray();
+                }
+            }
+            generator.writeEndObject();
+            generator.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package convos.controller;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import convos.domain.Convo;
+import convos.service.ListingStream;
+import org.springframework.http.MediaType;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes a listing to the HTTP response as it is read from the database, in the same shape
+ * as ConvosResponse/ThreadsResponse, so memory use doesn't grow with the size of the listing.
+ * Tagged with an ETag like the paged listings.
+ */
+class JsonListingStream implements ListingStream
+{
+    private final HttpServletResponse response;
+    private final ObjectMapper mapper;
+    private final ObjectWriter convoWriter;
+    private JsonGenerator generator;
+
+    JsonListingStream(HttpServletResponse response, ObjectMapper mapper)
+    {
+        this.response = response;
+        this.mapper = mapper;
+        // Let the generator's buffer decide when to flush, rather than flushing after every convo
+        this.convoWriter = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    @Override
+    public void start(long mailboxVersion, int total, int offset, String next, String previous)
+    {
+        try {
+            // Headers have to go out before the first byte of the body commits the response
+            response.setHeader("ETag", Controller.etag(mailboxVersion));
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.setCharacterEncoding("UTF-8");
+            generator = mapper.getFactory().createGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+            generator.writeStartObject();
+            generator.writeNumberField("total", total);
+            generator.writeNumberField("offset", offset);
+            generator.writeStringField("next", next);
+            generator.writeStringField("previous", previous);
+            generator.writeArrayFieldStart("convos");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void handle(Convo convo)
+    {
+        try {
+            convoWriter.writeValue(generator, convo);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        try {
+            generator.writeEndArray();
+            writeTrailingFields(generator);
+            generator.writeEndObject();
+            generator.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write any fields that follow the convos array. None by default.
+     */
+    protected void writeTrailingFields(JsonGenerator generator) throws IOException
+    {
+    }
+}
@@ -0,0 +1,42 @@
+package convos.controller;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import convos.domain.Convo;
+import convos.service.ThreadListingStream;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes a thread listing like JsonListingStream, followed by the unreadCounts object of
+ * ThreadsResponse. Only the counts are held until the end, one small entry per thread.
+ */
+class JsonThreadListingStream extends JsonListingStream implements ThreadListingStream
+{
+    private final Map<Long, Integer> unreadCounts = new LinkedHashMap<>();
+
+    JsonThreadListingStream(HttpServletResponse response, ObjectMapper mapper)
+    {
+        super(response, mapper);
+    }
+
+    @Override
+    public void handle(Convo latest, int unreadCount)
+    {
+        unreadCounts.put(latest.getThreadId(), unreadCount);
+        handle(latest);
+    }
+
+    @Override
+    protected void writeTrailingFields(JsonGenerator generator) throws IOException
+    {
+        generator.writeObjectFieldStart("unreadCounts");
+        for (Map.Entry<Long, Integer> count : unreadCounts.entrySet()) {
+            generator.writeNumberField(String.valueOf(count.getKey()), count.getValue());
+        }
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,41 @@
+package convos.controller;
+
+import convos.dao.ReadRouting;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Picks up the position a client was handed by an earlier write, so this request's reads only
+ * go to replicas that have caught up with it. See {@link ReadRouting}.
+ */
+@Component
+public class ReadAfterFilter extends OncePerRequestFilter
+{
+    /**
+     * Returned by writes, and sent back by clients that want to read their own writes.
+     */
+    public static final String HEADER = "X-Read-After";
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException
+    {
+        final String position = request.getHeader(HEADER);
+        if (position != null && !ReadRouting.isPosition(position)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid " + HEADER + " header");
+            return;
+        }
+        ReadRouting.setReadAfter(position);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            ReadRouting.setReadAfter(null);
+        }
+    }
+}
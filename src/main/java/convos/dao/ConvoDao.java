@@ -1,20 +1,49 @@
 package convos.dao;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import convos.domain.BatchCreateConvo;
+import convos.domain.BodyCodec;
+import convos.domain.BroadcastConvo;
 import convos.domain.Convo;
+import convos.domain.ConvoChange;
+import convos.domain.ConvoChanges;
+import convos.domain.ConvoView;
 import convos.domain.CreateConvo;
+import convos.domain.PageCursor;
+import convos.domain.SearchCursor;
+import convos.domain.SearchHit;
 import convos.domain.SortDirection;
-import org.joda.time.DateTime;
+import convos.domain.StoredConvo;
+import convos.domain.SyncToken;
+import convos.domain.ThreadPage;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.support.DataAccessUtils;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SqlParameterValue;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Repository;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Data Access Object for maniuplating the convo DB in Postgres.
@@ -26,71 +55,97 @@ import java.util.Map;
 public class ConvoDao
 {
     @Autowired NamedParameterJdbcTemplate jdbcTemplate;
+    @Autowired @Qualifier("streamingJdbcTemplate") NamedParameterJdbcTemplate streamingJdbcTemplate;
 
-    private static final RowMapper<Convo> convoMapper = new RowMapper<Convo>()
-    {
-        @Override
-        public Convo mapRow(ResultSet rs, int rowNum) throws SQLException
-        {
-            final long id = rs.getLong("id");
-            final long sender = rs.getLong("sender");
-            final long recipient = rs.getLong("recipient");
-            final String subject = rs.getString("subject");
-            final String body = rs.getString("body");
-            final boolean wasRead = rs.getBoolean("was_read");
-            final long threadId = rs.getLong("thread_id");
-            final DateTime sendTime = new DateTime(rs.getTimestamp("send_time"));
-            final DateTime updateTime = new DateTime(rs.getTimestamp("update_time"));
-            Long replyToConvo = rs.getLong("reply_to_convo");
-            if (rs.wasNull()) {
-                replyToConvo = null;
-            }
-            return new Convo(id, sender, recipient, subject, body, wasRead, threadId, sendTime, updateTime, replyToConvo);
-        }
-    };
+    /**
+     * List sent and received convos from the per-user mailbox partitions (see {@link MailboxDao})
+     * instead of from the convo tables' sender and recipient indexes. Only turn on once every
+     * existing convo has been copied into the partitions.
+     */
+    @Value("${convos.mailbox.partitioned-reads:false}") boolean partitionedReads;
 
     /**
-     * Get convo from DB based on unique ID, and where sender is given userID
-     * @param userId
-     * @param convoId
-     * @return The convo object
+     * Bodies longer than this many characters are stored compressed in body_z rather than as
+     * text in body.
      */
-    public Convo getSentConvo(final long userId, final long convoId)
-    {
-        final String sql =
-                "SELECT id, sender, recipient, subject, body, was_read, thread_id, reply_to_convo," +
-                        "send_time, update_time " +
-                "FROM convo.convo " +
-                "WHERE id = :id AND sender = :userId AND NOT deleted_by_sender ";
+    @Value("${convos.body.compress-above:2000}") int compressAbove;
 
-        final Map<String, Object> params =
-                ImmutableMap.of(
-                    "id", (Object)convoId,
-                    "userId", userId
-                );
-        return DataAccessUtils.singleResult(jdbcTemplate.query(sql, params, convoMapper));
-    }
+    /**
+     * Deflate level for stored bodies, zlib's default. Compare levels with BodyCodecBenchmark
+     * before changing it.
+     */
+    private static final int BODY_COMPRESSION_LEVEL = 6;
 
     /**
-     * Get convo from DB based on unique ID, and where recipient is given userID
-     * @param userId
+     * Text search configuration for the search column and queries. Changing it means
+     * rebuilding every stored vector.
+     */
+    private static final String SEARCH_CONFIG = "english";
+
+    /**
+     * A search query as typed, for the :query parameter. Every word must match, after
+     * stemming, and operators are taken as plain text.
+     */
+    private static final String TSQUERY = "plainto_tsquery('" + SEARCH_CONFIG + "', :query)";
+
+    /**
+     * Recent convos, which most reads are for.
+     */
+    static final String HOT = "convo.convo";
+
+    /**
+     * Convos moved out of {@link #HOT} by {@link #archive}, once they are old enough. Every
+     * archived convo is older, by (send_time, id), than every convo still in the hot table.
+     */
+    static final String ARCHIVE = "convo.convo_archive";
+
+    /**
+     * A view over both tables, for queries that need every convo whatever its age.
+     */
+    static final String ALL = "convo.convo_all";
+
+    /**
+     * Length of the body preview stored alongside each convo for summary listings.
+     */
+    static final int SNIPPET_LENGTH = 160;
+
+    /**
+     * Select expressions for the body. Broadcast convos leave body NULL and point at a shared
+     * row in convo.convo_body instead, and long bodies leave it NULL and are stored compressed
+     * in body_z.
+     */
+    private static final String BODY = body("");
+
+    /**
+     * Select expressions for send_time and update_time as epoch milliseconds, aliased
+     * send_millis and update_millis. The cast to timestamptz reads the stored local time in
+     * the session time zone, the same way the driver would when building a Timestamp.
+     */
+    private static final String TIMES = times("");
+
+    /**
+     * Get convo from DB based on unique ID alone, with both participants' deleted flags, for
+     * callers that check ownership themselves.
      * @param convoId
-     * @return The convo object
+     * @return The stored convo, or null if there is no such convo. Looks in the archive only
+     * when the convo isn't in the hot table.
      */
-    public Convo getReceivedConvo(final long userId, final long convoId)
+    public StoredConvo getStoredConvo(final long convoId)
+    {
+        final StoredConvo hot = getStoredConvo(HOT, convoId);
+        return hot != null ? hot : getStoredConvo(ARCHIVE, convoId);
+    }
+
+    private StoredConvo getStoredConvo(final String table, final long convoId)
     {
         final String sql =
-                "SELECT id, sender, recipient, subject, body, was_read, thread_id, reply_to_convo," +
-                        "send_time, update_time " +
-                        "FROM convo.convo " +
-                        "WHERE id = :id AND recipient = :userId AND NOT deleted_by_recipient ";
+                "SELECT id, sender, recipient, subject, " + BODY + ", was_read, thread_id, reply_to_convo," +
+                        TIMES + ", deleted_by_sender, deleted_by_recipient " +
+                "FROM " + table + " " +
+                "WHERE id = :id ";
 
-        final Map<String, Object> params =
-                ImmutableMap.of(
-                    "id", (Object)convoId,
-                    "userId", userId
-                );
-        return DataAccessUtils.singleResult(jdbcTemplate.query(sql, params, convoMapper));
+        final Map<String, Object> params = ImmutableMap.of("id", (Object)convoId);
+        return DataAccessUtils.singleResult(jdbcTemplate.query(sql, params, storedConvoMapper()));
     }
 
     /**
@@ -100,76 +155,228 @@ public class ConvoDao
      *                     in a new thread. If not null, marks new convo as a reply,
      *                     part of the same thread as the replied-to convo, and uses
      *                     the subject from that convo.
-     * @return The new unique ID for the convo.
+     * @return The newly created convo.
      */
-    public long createConvo(final CreateConvo convo, final Long replyToConvo) {
+    public Convo createConvo(final CreateConvo convo, final Long replyToConvo) {
         final String sql =
-                "INSERT INTO convo.convo(sender, recipient, subject, body, thread_id, reply_to_convo) " +
+                "INSERT INTO convo.convo(sender, recipient, subject, body, body_z, snippet, thread_id, reply_to_convo, search) " +
                 "VALUES (:sender, :recipient, " +
                         "COALESCE(" +
-                        "   (SELECT subject FROM convo.convo where id = :replyToConvo), " +
+                        "   (SELECT subject FROM " + ALL + " where id = :replyToConvo), " +
                         "   :subject), " +
                         ":body, " +
+                        ":bodyZ, " +
+                        ":snippet, " +
                         "COALESCE(" +
-                        "   (SELECT thread_id FROM convo.convo where id = :replyToConvo), " +
+                        "   (SELECT thread_id FROM " + ALL + " where id = :replyToConvo), " +
                         "   nextval('thread_seq')), " +
-                        "CASE WHEN :replyToConvo = 0 THEN null ELSE :replyToConvo END) " +
-                "RETURNING id";
+                        "CASE WHEN :replyToConvo = 0 THEN null ELSE :replyToConvo END, " +
+                        search("COALESCE((SELECT subject FROM " + ALL + " where id = :replyToConvo), :subject)",
+                                "COALESCE(:body, :searchText)") + ") " +
+                "RETURNING id, sender, recipient, subject, body, body_z, was_read, thread_id, reply_to_convo," +
+                        TIMES + " ";
 
+        final byte[] compressed = compress(convo.getBody());
         final Map<String, Object> params =
-                ImmutableMap.of(
-                    "sender", (Object)convo.getSender(),
-                    "recipient", convo.getRecipient(),
-                    "subject", convo.getSubject() != null ? convo.getSubject() : "",
-                    "body", convo.getBody(),
-                    "replyToConvo", replyToConvo != null ? replyToConvo : 0
-                );
+                ImmutableMap.<String, Object>builder()
+                    .put("sender", convo.getSender())
+                    .put("recipient", convo.getRecipient())
+                    .put("subject", convo.getSubject() != null ? convo.getSubject() : "")
+                    .put("body", new SqlParameterValue(Types.VARCHAR, compressed == null ? convo.getBody() : null))
+                    .put("bodyZ", new SqlParameterValue(Types.BINARY, compressed))
+                    .put("searchText", new SqlParameterValue(Types.VARCHAR, compressed != null ? convo.getBody() : null))
+                    .put("snippet", snippet(convo.getBody()))
+                    .put("replyToConvo", replyToConvo != null ? replyToConvo : 0)
+                    .build();
+
+        return jdbcTemplate.queryForObject(sql, params, mapper(ConvoView.FULL));
+    }
+
+    /**
+     * Create many convos with one multi-row INSERT.
+     *
+     * IDs are drawn from the convo sequence up front and assigned in request order, so the
+     * rows come back in the same order they were given. Replies take their subject and thread
+     * from the replied-to convo, which must already exist.
+     * @param convos The new convos, each optionally a reply
+     * @return The created convos, in the same order as the input.
+     */
+    public List<Convo> createConvos(final List<BatchCreateConvo> convos) {
+        if (convos.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<Long> ids = allocateConvoIds(convos.size());
+
+        final int n = convos.size();
+        final Long[] senders = new Long[n];
+        final Long[] recipients = new Long[n];
+        final String[] subjects = new String[n];
+        final String[] bodies = new String[n];
+        final String[] compressedBodies = new String[n];
+        final String[] searchTexts = new String[n];
+        final String[] snippets = new String[n];
+        final Long[] replyTos = new Long[n];
+        for (int i = 0; i < n; i++) {
+            BatchCreateConvo convo = convos.get(i);
+            senders[i] = convo.getSender();
+            recipients[i] = convo.getRecipient();
+            subjects[i] = convo.getSubject() != null ? convo.getSubject() : "";
+            final byte[] compressed = compress(convo.getBody());
+            if (compressed != null) {
+                compressedBodies[i] = Base64.getEncoder().encodeToString(compressed);
+                searchTexts[i] = convo.getBody();
+            } else {
+                bodies[i] = convo.getBody();
+            }
+            snippets[i] = snippet(convo.getBody());
+            replyTos[i] = convo.getReplyToConvo();
+        }
+
+        final String sql =
+                "INSERT INTO convo.convo(id, sender, recipient, subject, body, body_z, snippet, thread_id, reply_to_convo, search) " +
+                "SELECT v.id, v.sender, v.recipient, COALESCE(p.subject, v.subject), v.body, decode(v.body_z, 'base64'), v.snippet, " +
+                        "COALESCE(p.thread_id, nextval('thread_seq')), p.id, " +
+                        search("COALESCE(p.subject, v.subject)", "COALESCE(v.body, v.search_text)") + " " +
+                "FROM unnest(:ids, :senders, :recipients, :subjects, :bodies, :compressedBodies, :searchTexts, :snippets, :replyTos) " +
+                        "AS v(id, sender, recipient, subject, body, body_z, search_text, snippet, reply_to_convo) " +
+                "LEFT JOIN " + ALL + " p ON p.id = v.reply_to_convo " +
+                "ORDER BY v.id " +
+                "RETURNING id, sender, recipient, subject, body, body_z, was_read, thread_id, reply_to_convo," +
+                        TIMES + " ";
+
+        final Map<String, Object> params =
+                ImmutableMap.<String, Object>builder()
+                    .put("ids", SqlArrays.bigints(ids.toArray(new Long[n])))
+                    .put("senders", SqlArrays.bigints(senders))
+                    .put("recipients", SqlArrays.bigints(recipients))
+                    .put("subjects", SqlArrays.texts(subjects))
+                    .put("bodies", SqlArrays.texts(bodies))
+                    .put("compressedBodies", SqlArrays.texts(compressedBodies))
+                    .put("searchTexts", SqlArrays.texts(searchTexts))
+                    .put("snippets", SqlArrays.texts(snippets))
+                    .put("replyTos", SqlArrays.bigints(replyTos))
+                    .build();
 
-        return jdbcTemplate.queryForObject(sql, params, Long.class);
+        final Map<Long, Convo> created = new HashMap<>();
+        for (Convo convo : jdbcTemplate.query(sql, params, mapper(ConvoView.FULL))) {
+            created.put(convo.getId(), convo);
+        }
+        final List<Convo> result = new ArrayList<>(n);
+        for (Long id : ids) {
+            result.add(created.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * Send one convo to many recipients. The body is stored once in convo.convo_body, keyed by
+     * its SHA-256 hash, and every new convo row references it instead of carrying a copy.
+     * Each recipient's convo starts a new thread, as if it had been sent on its own. The search
+     * vector is computed once and copied to every row.
+     * @param broadcast The sender, recipients and content
+     * @return The created convos, in recipient order. Their body is not returned; the caller already has it.
+     */
+    public List<Convo> broadcastConvo(final BroadcastConvo broadcast) {
+        final byte[] hash = Hashing.sha256().hashBytes(broadcast.getBody().getBytes(StandardCharsets.UTF_8)).asBytes();
+        jdbcTemplate.update(
+                "INSERT INTO convo.convo_body(hash, body) VALUES (:hash, :body) ON CONFLICT (hash) DO NOTHING ",
+                ImmutableMap.of("hash", (Object)hash, "body", broadcast.getBody()));
+
+        final List<Long> ids = allocateConvoIds(broadcast.getRecipients().size());
+        final String sql =
+                "WITH s AS (SELECT " + search(":subject", ":body") + " AS search) " +
+                "INSERT INTO convo.convo(id, sender, recipient, subject, body_hash, snippet, thread_id, search) " +
+                "SELECT v.id, :sender, v.recipient, :subject, :hash, :snippet, nextval('thread_seq'), s.search " +
+                "FROM unnest(:ids, :recipients) AS v(id, recipient), s " +
+                "ORDER BY v.id " +
+                "RETURNING id, sender, recipient, subject, body, body_z, was_read, thread_id, reply_to_convo," +
+                        TIMES + " ";
+
+        final Map<String, Object> params =
+                ImmutableMap.<String, Object>builder()
+                    .put("sender", broadcast.getSender())
+                    .put("subject", broadcast.getSubject() != null ? broadcast.getSubject() : "")
+                    .put("hash", hash)
+                    .put("body", broadcast.getBody())
+                    .put("snippet", snippet(broadcast.getBody()))
+                    .put("ids", SqlArrays.bigints(ids.toArray(new Long[ids.size()])))
+                    .put("recipients", SqlArrays.bigints(broadcast.getRecipients().toArray(new Long[ids.size()])))
+                    .build();
+
+        final List<Convo> created = new ArrayList<>(jdbcTemplate.query(sql, params, mapper(ConvoView.FULL)));
+        Collections.sort(created, new Comparator<Convo>()
+        {
+            @Override
+            public int compare(Convo a, Convo b)
+            {
+                return Long.compare(a.getId(), b.getId());
+            }
+        });
+        return created;
+    }
+
+    /**
+     * Find which of the given convo IDs exist.
+     * @param ids
+     * @return The subset of ids that name an existing convo.
+     */
+    public Set<Long> getExistingConvoIds(final Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptySet();
+        }
+        final String sql = "SELECT id FROM " + ALL + " WHERE id = ANY(:ids) ";
+
+        final Map<String, Object> params =
+                ImmutableMap.of("ids", (Object)SqlArrays.bigints(ids.toArray(new Long[ids.size()])));
+
+        return new HashSet<>(jdbcTemplate.queryForList(sql, params, Long.class));
     }
 
     /**
      * Switch convo from read to un-read, whichever one it is not, based on ID.
      * @param id Unique id of the convo
+     * @return The convo after the change, or null if the user has no such convo in their inbox.
      */
-    public void changeConvoReadStatus(final long userId, final long id) {
-        final String sql =
-                "UPDATE convo.convo SET was_read = not was_read, update_time = now() " +
-                "WHERE id = :id AND recipient = :userId ";
+    public Convo changeConvoReadStatus(final long userId, final long id) {
         final Map<String, Object> params =
                 ImmutableMap.of("id", (Object)id, "userId", userId);
 
-        jdbcTemplate.update(sql, params);
+        return DataAccessUtils.singleResult(update(
+                "was_read = not was_read, update_time = now()",
+                "id = :id AND recipient = :userId AND NOT deleted_by_recipient",
+                params, true));
     }
 
     /**
-     * Mark the convo with the given ID as deleted.
+     * Mark the convo with the given ID as deleted by its sender.
      * @param userId
      * @param convoId
+     * @return The convo that was deleted, or null if the user had not sent it or already deleted it.
      */
-    public void deleteConvo(final long userId, final long convoId) {
-        final String sql =
-                "UPDATE convo.convo SET deleted_by_sender = true WHERE id = :convoId AND sender = :userId;" +
-                "UPDATE convo.convo SET deleted_by_recipient = true WHERE id = :convoId AND recipient = :userId;";
-
+    public Convo deleteSentConvo(final long userId, final long convoId) {
         final Map<String, Object> params =
                 ImmutableMap.of("convoId", (Object)convoId, "userId", userId);
 
-        jdbcTemplate.update(sql, params);
+        return DataAccessUtils.singleResult(update(
+                "deleted_by_sender = true",
+                "id = :convoId AND sender = :userId AND NOT deleted_by_sender",
+                params, true));
     }
 
-    public int getTotalConvosReceived(final long userId) {
-        String sql =
-                "SELECT count(*) " +
-                "FROM convo.convo " +
-                "WHERE recipient = :userId AND NOT deleted_by_recipient ";
-
+    /**
+     * Mark the convo with the given ID as deleted by its recipient.
+     * @param userId
+     * @param convoId
+     * @return The convo that was deleted, or null if the user had not received it or already deleted it.
+     */
+    public Convo deleteReceivedConvo(final long userId, final long convoId) {
         final Map<String, Object> params =
-                ImmutableMap.of(
-                        "userId", (Object)userId
-                );
+                ImmutableMap.of("convoId", (Object)convoId, "userId", userId);
 
-        return jdbcTemplate.queryForObject(sql, params, Integer.class);
+        return DataAccessUtils.singleResult(update(
+                "deleted_by_recipient = true",
+                "id = :convoId AND recipient = :userId AND NOT deleted_by_recipient",
+                params, true));
     }
 
     /**
@@ -178,15 +385,77 @@ public class ConvoDao
      * @param offset
      * @param limit
      * @param direction
+     * @param view Whether to return full bodies or just snippets
+     * @return
+     */
+    @ReplicaRead
+    public List<Convo> getConvosReceived(final long userId, final int offset, final int limit, final SortDirection direction, final ConvoView view) {
+        return mailboxPage(userId, false, offset, limit, direction, view);
+    }
+
+    /**
+     * Get a page of convos that have the given userID as a recipient, seeking directly to the
+     * cursor position instead of skipping over an offset.
+     * @param userId
+     * @param cursor Position to continue from, null for the first page
+     * @param limit
+     * @param direction
+     * @param view Whether to return full bodies or just snippets
      * @return
      */
-    public List<Convo> getConvosReceived(final long userId, final int offset, final int limit, final SortDirection direction) {
+    @ReplicaRead
+    public List<Convo> getConvosReceived(final long userId, final PageCursor cursor, final int limit, final SortDirection direction, final ConvoView view) {
+        return mailboxPage(userId, false, cursor, limit, direction, view);
+    }
+
+    /**
+     * Get all convos that have the given userID as a sender, ordered by send_time ASC/DESC
+     * @param userId
+     * @param offset
+     * @param limit
+     * @param direction
+     * @param view Whether to return full bodies or just snippets
+     * @return
+     */
+    @ReplicaRead
+    public List<Convo> getConvosSent(final long userId, final int offset, final int limit, final SortDirection direction, final ConvoView view) {
+        return mailboxPage(userId, true, offset, limit, direction, view);
+    }
+
+    /**
+     * Get a page of convos that have the given userID as a sender, seeking directly to the
+     * cursor position instead of skipping over an offset.
+     * @param userId
+     * @param cursor Position to continue from, null for the first page
+     * @param limit
+     * @param direction
+     * @param view Whether to return full bodies or just snippets
+     * @return
+     */
+    @ReplicaRead
+    public List<Convo> getConvosSent(final long userId, final PageCursor cursor, final int limit, final SortDirection direction, final ConvoView view) {
+        return mailboxPage(userId, true, cursor, limit, direction, view);
+    }
+
+    /**
+     * Get all the most recent convos in all threads that have the given userID as a recipient or sender,
+     * ordered by the send_time of that latest convo ASC/DESC. Reads the per-user thread summaries,
+     * so this is a range scan over the user's threads rather than a sort of all their convos.
+     * @param userId
+     * @param offset
+     * @param limit
+     * @param direction
+     * @param view Whether to return full bodies or just snippets
+     * @return The threads, with the user's unread count of each
+     */
+    @ReplicaRead
+    public ThreadPage getThreads(final long userId, final int offset, final int limit, final SortDirection direction, final ConvoView view) {
         String sql =
-                "SELECT id, sender, recipient, subject, body, was_read, thread_id, reply_to_convo," +
-                        "send_time, update_time " +
-                        "FROM convo.convo " +
-                        "WHERE recipient = :userId AND NOT deleted_by_recipient " +
-                        "ORDER BY send_time " + direction.getVal();
+                "SELECT " + columns(view, "c.") + ", s.unread_count " +
+                        "FROM convo.thread_summary s " +
+                        "JOIN " + ALL + " c ON c.id = s.last_convo_id " +
+                        "WHERE s.user_id = :userId AND NOT s.deleted " +
+                        "ORDER BY s.last_send_time " + direction.getVal() + ", s.last_convo_id " + direction.getVal();
         if (limit > 0) {
             sql += " LIMIT :limit ";
         }
@@ -198,37 +467,107 @@ public class ConvoDao
                         "limit", limit,
                         "offset", offset);
 
-        return jdbcTemplate.query(sql, params, convoMapper);
+        return threadPage(sql, params, null, view);
     }
 
-    public int getTotalConvosSent(final long userId) {
+    /**
+     * Get a page of the most recent convo of each thread the given userID takes part in, ordered by
+     * the send_time of that convo and positioned by cursor.
+     * @param userId
+     * @param cursor Position to continue from, null for the first page
+     * @param limit
+     * @param direction
+     * @param view Whether to return full bodies or just snippets
+     * @return The threads, with the user's unread count of each
+     */
+    @ReplicaRead
+    public ThreadPage getThreads(final long userId, final PageCursor cursor, final int limit, final SortDirection direction, final ConvoView view) {
         String sql =
-                "SELECT count(*) " +
-                        "FROM convo.convo " +
-                        "WHERE sender = :userId AND NOT deleted_by_sender ";
+                "SELECT " + columns(view, "c.") + ", s.unread_count " +
+                        "FROM convo.thread_summary s " +
+                        "JOIN " + ALL + " c ON c.id = s.last_convo_id " +
+                        "WHERE s.user_id = :userId AND NOT s.deleted " +
+                        seekPredicate(cursor, direction, "s.last_send_time", "s.last_convo_id") +
+                        seekOrder(cursor, direction, "s.last_send_time", "s.last_convo_id");
+        if (limit > 0) {
+            sql += " LIMIT :limit ";
+        }
+
+        final Map<String, Object> params = cursorParams(userId, cursor, limit);
 
+        return threadPage(sql, params, cursor, view);
+    }
+
+    /**
+     * Read a page of threads, collecting the unread_count of each row alongside its convo.
+     * @param cursor The page's cursor, null for offset pages
+     */
+    private ThreadPage threadPage(final String sql, final Map<String, Object> params, final PageCursor cursor, final ConvoView view)
+    {
+        final RowMapper<Convo> convoMapper = mapper(view);
+        final Map<Long, Integer> unread = new HashMap<>();
+        final List<Convo> threads = jdbcTemplate.query(sql, params, new RowMapper<Convo>()
+        {
+            @Override
+            public Convo mapRow(ResultSet rs, int rowNum) throws SQLException
+            {
+                Convo convo = convoMapper.mapRow(rs, rowNum);
+                unread.put(convo.getThreadId(), rs.getInt("unread_count"));
+                return convo;
+            }
+        });
+        return new ThreadPage(inDisplayOrder(cursor, threads), unread);
+    }
+
+    /**
+     * Mark all convos the given user sent in the given thread as deleted
+     * @param userId
+     * @param threadId
+     * @return The convos that were deleted by this call
+     */
+    public List<Convo> deleteSentInThread(final long userId, final long threadId) {
         final Map<String, Object> params =
-                ImmutableMap.of(
-                        "userId", (Object)userId
-                );
+                ImmutableMap.of("threadId", (Object)threadId, "userId", userId);
 
-        return jdbcTemplate.queryForObject(sql, params, Integer.class);
+        return update(
+                "deleted_by_sender = true",
+                "thread_id = :threadId AND sender = :userId AND NOT deleted_by_sender",
+                params, false);
     }
 
     /**
-     * Get all convos that have the given userID as a sender, ordered by send_time ASC/DESC
+     * Mark all convos the given user received in the given thread as deleted
+     * @param userId
+     * @param threadId
+     * @return The convos that were deleted by this call
+     */
+    public List<Convo> deleteReceivedInThread(final long userId, final long threadId) {
+        final Map<String, Object> params =
+                ImmutableMap.of("threadId", (Object)threadId, "userId", userId);
+
+        return update(
+                "deleted_by_recipient = true",
+                "thread_id = :threadId AND recipient = :userId AND NOT deleted_by_recipient",
+                params, false);
+    }
+
+    /**
+     * Get all convos in the given thread, ordered by send-time ASC/DESC
      * @param userId
+     * @param threadId
      * @param offset
      * @param limit
      * @param direction
+     * @param view Whether to return full bodies or just snippets
      * @return
      */
-    public List<Convo> getConvosSent(final long userId, final int offset, final int limit, final SortDirection direction) {
+    @ReplicaRead
+    public List<Convo> getThread(final long userId, final long threadId, final int offset, final int limit, final SortDirection direction, final ConvoView view)
+    {
         String sql =
-                "SELECT id, sender, recipient, subject, body, was_read, thread_id, reply_to_convo," +
-                        "send_time, update_time " +
-                        "FROM convo.convo " +
-                        "WHERE sender = :userId AND NOT deleted_by_sender " +
+                "SELECT " + columns(view, "") +
+                        "FROM " + ALL + " " +
+                        "WHERE thread_id = :threadId AND ((sender = :userId AND NOT deleted_by_sender) OR (recipient = :userId AND NOT deleted_by_recipient)) " +
                         "ORDER BY send_time " + direction.getVal();
         if (limit > 0) {
             sql += " LIMIT :limit ";
@@ -237,109 +576,199 @@ public class ConvoDao
 
         final Map<String, Object> params =
                 ImmutableMap.of(
-                        "userId", (Object)userId,
+                        "threadId", (Object)threadId,
                         "limit", limit,
-                        "offset", offset);
+                        "offset", offset,
+                        "userId", userId);
 
-        return jdbcTemplate.query(sql, params, convoMapper);
+        return jdbcTemplate.query(sql, params, mapper(view));
     }
 
-    public int getTotalThreads(final long userId) {
+    /**
+     * Get a page of convos in the given thread, seeking directly to the cursor position.
+     * @param userId
+     * @param threadId
+     * @param cursor Position to continue from, null for the first page
+     * @param limit
+     * @param direction
+     * @param view Whether to return full bodies or just snippets
+     * @return
+     */
+    @ReplicaRead
+    public List<Convo> getThread(final long userId, final long threadId, final PageCursor cursor, final int limit, final SortDirection direction, final ConvoView view)
+    {
         String sql =
-                "SELECT count(distinct thread_id) " +
-                        "FROM convo.convo " +
-                        "WHERE (sender = :userId AND NOT deleted_by_sender) OR (recipient = :userId AND NOT deleted_by_recipient) ";
+                "SELECT " + columns(view, "") +
+                        "FROM " + ALL + " " +
+                        "WHERE thread_id = :threadId AND ((sender = :userId AND NOT deleted_by_sender) OR (recipient = :userId AND NOT deleted_by_recipient)) " +
+                        seekPredicate(cursor, direction, "send_time", "id") +
+                        seekOrder(cursor, direction, "send_time", "id");
+        if (limit > 0) {
+            sql += " LIMIT :limit ";
+        }
+
+        final Map<String, Object> params = new HashMap<>(cursorParams(userId, cursor, limit));
+        params.put("threadId", threadId);
+
+        return inDisplayOrder(cursor, jdbcTemplate.query(sql, params, mapper(view)));
+    }
+
+    /**
+     * Stream every convo that has the given userID as a recipient, from the given offset, without
+     * holding them all in memory. Must be called inside a transaction for Postgres to use a cursor.
+     * @param userId
+     * @param offset
+     * @param direction
+     * @param view
+     * @param handler Called once per convo, in order
+     */
+    @ReplicaRead
+    public void streamConvosReceived(final long userId, final int offset, final SortDirection direction, final ConvoView view,
+                                     final ConvoHandler handler) {
+        final String sql =
+                "SELECT " + columns(view, "c.") +
+                        mailbox(userId, false, ALL) +
+                        "ORDER BY " + mailboxOrder(direction) +
+                        " OFFSET :offset ";
 
         final Map<String, Object> params =
                 ImmutableMap.of(
-                        "userId", (Object)userId
-                );
+                        "userId", (Object)userId,
+                        "offset", offset);
 
-        return jdbcTemplate.queryForObject(sql, params, Integer.class);
+        stream(sql, params, view, handler);
     }
 
     /**
-     * Get all the most recent convos in all threads that have the given userID as a recipient or sender, ordered by send_time ASC/DESC
+     * Stream every convo that has the given userID as a sender, from the given offset.
+     * Must be called inside a transaction.
      * @param userId
      * @param offset
-     * @param limit
      * @param direction
-     * @return
+     * @param view
+     * @param handler Called once per convo, in order
      */
-    public List<Convo> getThreads(final long userId, final int offset, final int limit, final SortDirection direction) {
-        String sql =
-                "SELECT DISTINCT ON (thread_id) id, sender, recipient, subject, body, was_read, thread_id, reply_to_convo," +
-                        "send_time, update_time " +
-                        "FROM convo.convo " +
-                        "WHERE (sender = :userId AND NOT deleted_by_sender) OR (recipient = :userId AND NOT deleted_by_recipient) " +
-                        "ORDER BY " + direction.getVal();
-        if (limit > 0) {
-            sql += " LIMIT :limit ";
-        }
-        sql += " OFFSET :offset ";
+    @ReplicaRead
+    public void streamConvosSent(final long userId, final int offset, final SortDirection direction, final ConvoView view,
+                                 final ConvoHandler handler) {
+        final String sql =
+                "SELECT " + columns(view, "c.") +
+                        mailbox(userId, true, ALL) +
+                        "ORDER BY " + mailboxOrder(direction) +
+                        " OFFSET :offset ";
 
         final Map<String, Object> params =
                 ImmutableMap.of(
                         "userId", (Object)userId,
-                        "limit", limit,
                         "offset", offset);
 
-        return jdbcTemplate.query(sql, params, convoMapper);
+        stream(sql, params, view, handler);
     }
 
     /**
-     * Mark all convos in the given thread as deleted
+     * Stream the most recent convo of every thread the given userID takes part in, from the given offset.
+     * Must be called inside a transaction.
      * @param userId
-     * @param threadId
+     * @param offset
+     * @param direction
+     * @param view
+     * @param handler Called once per thread, in order, with the thread's unread count
      */
-    public void deleteThread(final long userId, final long threadId) {
+    @ReplicaRead
+    public void streamThreads(final long userId, final int offset, final SortDirection direction, final ConvoView view,
+                              final ThreadHandler handler) {
         final String sql =
-                "UPDATE convo.convo SET deleted_by_sender = true WHERE thread_id = :threadId AND sender = :userId;" +
-                "UPDATE convo.convo SET deleted_by_recipient = true WHERE thread_id = :threadId AND recipient = :userId;";
+                "SELECT " + columns(view, "c.") + ", s.unread_count " +
+                        "FROM convo.thread_summary s " +
+                        "JOIN " + ALL + " c ON c.id = s.last_convo_id " +
+                        "WHERE s.user_id = :userId AND NOT s.deleted " +
+                        "ORDER BY s.last_send_time " + direction.getVal() + ", s.last_convo_id " + direction.getVal() +
+                        " OFFSET :offset ";
 
         final Map<String, Object> params =
-                ImmutableMap.of("id", (Object)threadId, "userId", userId);
+                ImmutableMap.of(
+                        "userId", (Object)userId,
+                        "offset", offset);
 
-        jdbcTemplate.update(sql, params);
+        final RowMapper<Convo> rowMapper = mapper(view);
+        streamingJdbcTemplate.query(sql, params, new RowCallbackHandler()
+        {
+            private int rowNum = 0;
+
+            @Override
+            public void processRow(ResultSet rs) throws SQLException
+            {
+                handler.handle(rowMapper.mapRow(rs, rowNum++), rs.getInt("unread_count"));
+            }
+        });
     }
 
     /**
-     * Get all convos in the given thread, ordered by send-time ASC/DESC
+     * Stream every convo in the given thread, from the given offset. Must be called inside a transaction.
      * @param userId
      * @param threadId
      * @param offset
-     * @param limit
      * @param direction
-     * @return
+     * @param view
+     * @param handler Called once per convo, in order
      */
-    public List<Convo> getThread(final long userId, final long threadId, final int offset, final int limit, final SortDirection direction)
-    {
-        String sql =
-                "SELECT id, sender, recipient, subject, body, was_read, thread_id, reply_to_convo," +
-                        "send_time, update_time " +
-                        "FROM convo.convo " +
+    @ReplicaRead
+    public void streamThread(final long userId, final long threadId, final int offset, final SortDirection direction,
+                             final ConvoView view, final ConvoHandler handler) {
+        final String sql =
+                "SELECT " + columns(view, "") +
+                        "FROM " + ALL + " " +
                         "WHERE thread_id = :threadId AND ((sender = :userId AND NOT deleted_by_sender) OR (recipient = :userId AND NOT deleted_by_recipient)) " +
-                        "ORDER BY send_time " + direction.getVal();
-        if (limit > 0) {
-            sql += " LIMIT :limit ";
-        }
-        sql += " OFFSET :offset ";
+                        "ORDER BY send_time " + direction.getVal() + ", id " + direction.getVal() +
+                        " OFFSET :offset ";
 
         final Map<String, Object> params =
                 ImmutableMap.of(
                         "threadId", (Object)threadId,
-                        "limit", limit,
                         "offset", offset,
                         "userId", userId);
 
-        return jdbcTemplate.query(sql, params, convoMapper);
+        stream(sql, params, view, handler);
     }
 
+    /**
+     * Stream the newest convos each of the given users received, for batch jobs. All users are
+     * read with one query (one per mailbox partition with partitioned reads), a lateral join
+     * reading at most limit rows from each user's range of the inbox index. Must be called inside
+     * a transaction.
+     * @param userIds
+     * @param limit Max number of convos per user
+     * @param view
+     * @param handler Called once per convo. Each user's convos come one after the other, newest first.
+     */
+    @ReplicaRead
+    public void streamNewestReceived(final Collection<Long> userIds, final int limit, final ConvoView view,
+                                     final ConvoHandler handler) {
+        if (!partitionedReads) {
+            streamNewestReceived(null, userIds, limit, view, handler);
+            return;
+        }
+        final Map<Integer, List<Long>> byPartition = new TreeMap<>();
+        for (Long userId : userIds) {
+            final int partition = MailboxPartitions.of(userId);
+            List<Long> users = byPartition.get(partition);
+            if (users == null) {
+                users = new ArrayList<>();
+                byPartition.put(partition, users);
+            }
+            users.add(userId);
+        }
+        for (Map.Entry<Integer, List<Long>> partition : byPartition.entrySet()) {
+            streamNewestReceived(MailboxPartitions.table(partition.getKey()), partition.getValue(), limit, view, handler);
+        }
+    }
+
+    @ReplicaRead
     public int getTotalInThread(final long userId, final long threadId)
     {
         String sql =
                 "SELECT count(*) " +
-                        "FROM convo.convo " +
+                        "FROM " + ALL + " " +
                         "WHERE thread_id = :threadId AND ((sender = :userId AND NOT deleted_by_sender) OR (recipient = :userId AND NOT deleted_by_recipient)) ";
 
         final Map<String, Object> params =
@@ -351,5 +780,568 @@ public class ConvoDao
         return jdbcTemplate.queryForObject(sql, params, Integer.class);
     }
 
+    /**
+     * Get the next batch of user IDs with a mailbox, for walking every mailbox: users who can
+     * still see a convo they sent or received, or who have a counter row.
+     *
+     * Each source is read in user ID order from an index and cut at the limit before they are
+     * merged, so a batch reads at most three batches' worth of IDs however far the walk has got.
+     * @param afterUserId Only return IDs greater than this one
+     * @param limit Max number of IDs to return
+     * @return User IDs in ascending order
+     */
+    public List<Long> getUserIds(final long afterUserId, final int limit)
+    {
+        final String sql =
+                "SELECT user_id FROM (" +
+                "   (SELECT DISTINCT sender AS user_id FROM convo.convo WHERE sender > :after AND NOT deleted_by_sender " +
+                "       ORDER BY sender LIMIT :limit) " +
+                "   UNION " +
+                "   (SELECT DISTINCT recipient AS user_id FROM convo.convo WHERE recipient > :after AND NOT deleted_by_recipient " +
+                "       ORDER BY recipient LIMIT :limit) " +
+                "   UNION " +
+                "   (SELECT user_id FROM convo.mailbox_counter WHERE user_id > :after ORDER BY user_id LIMIT :limit) " +
+                ") users " +
+                "ORDER BY user_id " +
+                "LIMIT :limit ";
+
+        final Map<String, Object> params = ImmutableMap.of("after", (Object)afterUserId, "limit", limit);
+
+        return jdbcTemplate.queryForList(sql, params, Long.class);
+    }
+
+    /**
+     * @return The highest convo ID in use, hot or archived, or 0 if there are no convos.
+     */
+    public long lastConvoId()
+    {
+        final String sql =
+                "SELECT GREATEST((SELECT max(id) FROM " + HOT + "), (SELECT max(id) FROM " + ARCHIVE + "), 0) ";
+
+        return jdbcTemplate.queryForObject(sql, ImmutableMap.<String, Object>of(), Long.class);
+    }
+
+    /**
+     * Get what changed in a user's inbox and outbox after a sync token, hot or archived: convos
+     * created, and convos whose read status or deleted flag changed, in their current state.
+     *
+     * Only changes made by transactions below the snapshot's xmin are returned, as a transaction
+     * still running could commit a change that sorts before the ones already seen. Each side
+     * of each table is read in (change_txid, id) order from its own index, cut at the limit,
+     * and the four are merged.
+     * @param userId
+     * @param since Position after which to continue, or null to start from the beginning
+     * @param limit Max number of changes; 0 only reads the horizon
+     * @param view
+     * @return Changes in (change_txid, id, side) order, and the horizon they were read below.
+     */
+    @ReplicaRead
+    public ConvoChanges getChanges(final long userId, final SyncToken since, final int limit, final ConvoView view)
+    {
+        // A convo sent to oneself has both sides at the same (change_txid, id); received sorts first.
+        final String sentOp = since != null && !since.isSent() ? ">=" : ">";
+        final String sql =
+                "WITH s AS (SELECT txid_snapshot_xmin(txid_current_snapshot()) AS horizon) " +
+                "SELECT s.horizon, u.* FROM s LEFT JOIN LATERAL (" +
+                "   SELECT * FROM (" +
+                "       " + changes(HOT, "recipient", ">", view) +
+                "       UNION ALL " + changes(HOT, "sender", sentOp, view) +
+                "       UNION ALL " + changes(ARCHIVE, "recipient", ">", view) +
+                "       UNION ALL " + changes(ARCHIVE, "sender", sentOp, view) +
+                "   ) changes " +
+                "   ORDER BY change_txid, id, sent LIMIT :limit" +
+                ") u ON true ";
+
+        final Map<String, Object> params = ImmutableMap.<String, Object>of(
+                "userId", userId,
+                "txid", since != null ? since.getTxid() : 0L,
+                "id", since != null ? since.getId() : 0L,
+                "limit", limit);
+
+        final RowMapper<Convo> convoMapper = mapper(view);
+        final List<ConvoChange> changes = new ArrayList<>();
+        final long[] horizon = new long[1];
+        jdbcTemplate.query(sql, params, new RowCallbackHandler()
+        {
+            private int rowNum = 0;
+
+            @Override
+            public void processRow(ResultSet rs) throws SQLException
+            {
+                horizon[0] = rs.getLong("horizon");
+                if (rs.getObject("id") != null) {
+                    changes.add(new ConvoChange(rs.getLong("id"), rs.getBoolean("sent"), rs.getBoolean("deleted"),
+                            convoMapper.mapRow(rs, rowNum++), rs.getLong("change_txid")));
+                }
+            }
+        });
+        return new ConvoChanges(changes, horizon[0]);
+    }
+
+    /**
+     * One side of one table for {@link #getChanges}, as a parenthesized subquery.
+     * @param side "sender" or "recipient"
+     * @param op How the position compares to the token's: ">", or ">=" to take the same convo's other side
+     */
+    private static String changes(final String table, final String side, final String op, final ConvoView view)
+    {
+        final boolean sent = side.equals("sender");
+        return "(SELECT " + columns(view, "c.") + ", c.change_txid, c.deleted_by_" + side + " AS deleted, " + sent + " AS sent " +
+                "FROM " + table + " c " +
+                "WHERE c." + side + " = :userId AND (c.change_txid, c.id) " + op + " (:txid, :id) " +
+                "AND c.change_txid < (SELECT horizon FROM s) " +
+                "ORDER BY c.change_txid, c.id LIMIT :limit) ";
+    }
+
+    /**
+     * Search the convos a user sent or received and hasn't deleted, hot or archived, best
+     * match first. Matches are found through the user's range of the search indexes, but all
+     * of them are ranked to find the best, so a query matching most of a large mailbox costs
+     * about as much as listing it.
+     * @param userId
+     * @param query Words to look for, as typed; every word must match, after stemming
+     * @param cursor Position after which to continue, or null for the first page
+     * @param limit Max number of results
+     * @param view
+     * @return Matches in (rank, id) order, descending.
+     */
+    @ReplicaRead
+    public List<SearchHit> searchConvos(final long userId, final String query, final SearchCursor cursor, final int limit, final ConvoView view)
+    {
+        final String rank = "ts_rank(c.search, " + TSQUERY + ")";
+        String sql =
+                "SELECT " + columns(view, "c.") + ", " + rank + " AS rank " +
+                "FROM " + ALL + " c " +
+                "WHERE c.search @@ " + TSQUERY + " " +
+                "AND ((c.recipient = :userId AND NOT c.deleted_by_recipient) OR (c.sender = :userId AND NOT c.deleted_by_sender)) ";
+        if (cursor != null) {
+            sql += "AND (" + rank + ", c.id) < (:rank, :id) ";
+        }
+        sql += "ORDER BY rank DESC, c.id DESC LIMIT :limit ";
+
+        final Map<String, Object> params =
+                ImmutableMap.<String, Object>builder()
+                    .put("userId", userId)
+                    .put("query", query)
+                    .put("limit", limit)
+                    .put("rank", cursor != null ? cursor.getRank() : 0f)
+                    .put("id", cursor != null ? cursor.getId() : 0L)
+                    .build();
+
+        final RowMapper<Convo> convoMapper = mapper(view);
+        return jdbcTemplate.query(sql, params, new RowMapper<SearchHit>()
+        {
+            @Override
+            public SearchHit mapRow(ResultSet rs, int rowNum) throws SQLException
+            {
+                return new SearchHit(convoMapper.mapRow(rs, rowNum), rs.getFloat("rank"));
+            }
+        });
+    }
+
+    /**
+     * Fill in the search vector of convos in a range of IDs, hot or archived, that were
+     * written before convos had one. Their bodies are read here, decompressing them if need be,
+     * and sent back to be indexed.
+     * @param afterConvoId Index convos with a greater ID
+     * @param throughConvoId and up to and including this ID
+     * @return How many convos were indexed.
+     */
+    public int indexForSearch(final long afterConvoId, final long throughConvoId)
+    {
+        final Map<String, Object> range = ImmutableMap.of("after", (Object)afterConvoId, "through", throughConvoId);
+
+        int indexed = 0;
+        for (String table : new String[] {HOT, ARCHIVE}) {
+            final String select =
+                    "SELECT id, " + BODY + " " +
+                    "FROM " + table + " " +
+                    "WHERE id > :after AND id <= :through AND search IS NULL ";
+
+            final List<Long> ids = new ArrayList<>();
+            final List<String> bodies = new ArrayList<>();
+            jdbcTemplate.query(select, range, new RowCallbackHandler()
+            {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException
+                {
+                    final byte[] compressed = rs.getBytes("body_z");
+                    ids.add(rs.getLong("id"));
+                    bodies.add(compressed != null ? BodyCodec.decompress(compressed) : rs.getString("body"));
+                }
+            });
+            if (ids.isEmpty()) {
+                continue;
+            }
+
+            final String update =
+                    "UPDATE " + table + " c SET search = " + search("c.subject", "v.body") + " " +
+                    "FROM unnest(:ids, :bodies) AS v(id, body) " +
+                    "WHERE c.id = v.id AND c.search IS NULL ";
+
+            final Map<String, Object> params = ImmutableMap.of(
+                    "ids", (Object)SqlArrays.bigints(ids.toArray(new Long[ids.size()])),
+                    "bodies", SqlArrays.texts(bodies.toArray(new String[bodies.size()])));
+
+            indexed += jdbcTemplate.update(update, params);
+        }
+        return indexed;
+    }
+
+    /**
+     * Move the oldest convos sent before a cutoff from the hot table to the archive, oldest
+     * first by (send_time, id). The moved rows stay locked until the transaction commits, so
+     * an update racing the move waits, misses them in the hot table and finds them in the
+     * archive.
+     * @param sentBefore Cutoff send time, as epoch millis
+     * @param limit Max number of convos to move
+     * @return How many convos were moved, fewer than the limit once none are left to move
+     */
+    public int archive(final long sentBefore, final int limit)
+    {
+        final String columns =
+                "id, sender, recipient, subject, body, body_z, body_hash, snippet, was_read, thread_id, reply_to_convo, " +
+                "send_time, update_time, deleted_by_sender, deleted_by_recipient, search, change_txid";
+        final String sql =
+                "WITH batch AS (" +
+                "   SELECT id FROM " + HOT + " WHERE send_time < :sentBefore ORDER BY send_time, id LIMIT :limit FOR UPDATE" +
+                "), moved AS (" +
+                "   DELETE FROM " + HOT + " c USING batch b WHERE c.id = b.id RETURNING c.*" +
+                "), archived AS (" +
+                "   INSERT INTO " + ARCHIVE + "(" + columns + ") SELECT " + columns + " FROM moved RETURNING id" +
+                ") " +
+                "SELECT count(*) FROM archived ";
+
+        final Map<String, Object> params = ImmutableMap.of(
+                "sentBefore", (Object)new Timestamp(sentBefore),
+                "limit", limit);
+
+        return jdbcTemplate.queryForObject(sql, params, Integer.class);
+    }
+
+    /**
+     * Update convos in the hot table, then in the archive. Convos only ever move from the hot
+     * table to the archive, so one archived while this runs is missed by the first update and
+     * found by the second. Every update is a change the participants sync, so it stamps
+     * change_txid too.
+     * @param set SET clause
+     * @param where WHERE clause
+     * @param params
+     * @param single True if at most one convo can match, so the archive is only updated if the
+     *               hot table had no match
+     * @return The changed convos
+     */
+    private List<Convo> update(final String set, final String where, final Map<String, Object> params, final boolean single)
+    {
+        final List<Convo> hot = update(HOT, set, where, params);
+        if (single && !hot.isEmpty()) {
+            return hot;
+        }
+        return concat(hot, update(ARCHIVE, set, where, params));
+    }
+
+    private List<Convo> update(final String table, final String set, final String where, final Map<String, Object> params)
+    {
+        final String sql =
+                "UPDATE " + table + " SET " + set + ", change_txid = txid_current() " +
+                "WHERE " + where + " " +
+                "RETURNING id, sender, recipient, subject, " + BODY + ", was_read, thread_id, reply_to_convo," +
+                        TIMES + " ";
+
+        return jdbcTemplate.query(sql, params, mapper(ConvoView.FULL));
+    }
+
+    /**
+     * A page of a user's inbox or outbox, by offset.
+     *
+     * Read from the convo_all view in a single statement, so the page comes from one snapshot
+     * even while convos move to the archive. The view's UNION ALL is planned as a Merge Append
+     * of both tables' listing indexes, which stops once the page is full, so a page that doesn't
+     * reach the archive costs one probe of its index.
+     */
+    private List<Convo> mailboxPage(final long userId, final boolean sent, final int offset, final int limit,
+                                    final SortDirection direction, final ConvoView view)
+    {
+        return offsetPage(userId, mailbox(userId, sent, ALL), offset, limit, direction, view);
+    }
+
+    /**
+     * A page of a user's inbox or outbox, by cursor, read from both tables in one statement
+     * the same way as paging by offset.
+     */
+    private List<Convo> mailboxPage(final long userId, final boolean sent, final PageCursor cursor, final int limit,
+                                    final SortDirection direction, final ConvoView view)
+    {
+        return inDisplayOrder(cursor, cursorPage(userId, mailbox(userId, sent, ALL), cursor, limit, direction, view));
+    }
+
+    private List<Convo> offsetPage(final long userId, final String mailbox, final int offset, final int limit,
+                                   final SortDirection direction, final ConvoView view)
+    {
+        String sql =
+                "SELECT " + columns(view, "c.") +
+                        mailbox +
+                        "ORDER BY " + mailboxOrder(direction);
+        if (limit > 0) {
+            sql += " LIMIT :limit ";
+        }
+        sql += " OFFSET :offset ";
+
+        final Map<String, Object> params =
+                ImmutableMap.of(
+                        "userId", (Object)userId,
+                        "limit", limit,
+                        "offset", offset);
+
+        return jdbcTemplate.query(sql, params, mapper(view));
+    }
+
+    /**
+     * @return The page in scan order, see {@link #inDisplayOrder(PageCursor, List)}.
+     */
+    private List<Convo> cursorPage(final long userId, final String mailbox, final PageCursor cursor, final int limit,
+                                   final SortDirection direction, final ConvoView view)
+    {
+        String sql =
+                "SELECT " + columns(view, "c.") +
+                        mailbox +
+                        seekPredicate(cursor, direction, mailboxTime(), mailboxId()) +
+                        seekOrder(cursor, direction, mailboxTime(), mailboxId());
+        if (limit > 0) {
+            sql += " LIMIT :limit ";
+        }
+
+        final Map<String, Object> params = cursorParams(userId, cursor, limit);
+
+        return jdbcTemplate.query(sql, params, mapper(view));
+    }
 
+    /**
+     * @param partition Mailbox partition of every one of the users, or null without partitioned reads
+     */
+    private void streamNewestReceived(final String partition, final Collection<Long> userIds, final int limit,
+                                      final ConvoView view, final ConvoHandler handler)
+    {
+        final String sql =
+                "SELECT h.* " +
+                "FROM unnest(:userIds) WITH ORDINALITY AS u(user_id, ord) " +
+                "CROSS JOIN LATERAL (" +
+                "   SELECT " + columns(view, "c.") + ", " + mailboxTime() + " AS head_time, " + mailboxId() + " AS head_id " +
+                        mailbox(partition, false, ALL, "u.user_id") +
+                "   ORDER BY " + mailboxOrder(SortDirection.DESCENDING) + " " +
+                "   LIMIT :limit" +
+                ") h " +
+                "ORDER BY u.ord, h.head_time DESC, h.head_id DESC ";
+
+        final Map<String, Object> params =
+                ImmutableMap.of(
+                        "userIds", (Object)SqlArrays.bigints(userIds.toArray(new Long[userIds.size()])),
+                        "limit", limit);
+
+        stream(sql, params, view, handler);
+    }
+
+    private static List<Convo> concat(final List<Convo> first, final List<Convo> second)
+    {
+        if (first.isEmpty()) {
+            return second;
+        }
+        final List<Convo> all = new ArrayList<>(first.size() + second.size());
+        all.addAll(first);
+        all.addAll(second);
+        return all;
+    }
+
+    /**
+     * FROM and WHERE clauses selecting the convos a user can still see in their inbox or
+     * outbox, as alias c. With partitioned reads they come from the user's mailbox partition,
+     * joined by ID to every convo, archived or not; otherwise straight from the given table.
+     * @param userId Bound as :userId
+     * @param sent True for the outbox, false for the inbox
+     * @param table {@link #HOT}, {@link #ARCHIVE} or {@link #ALL}
+     */
+    private String mailbox(final long userId, final boolean sent, final String table)
+    {
+        return mailbox(partitionedReads ? MailboxPartitions.table(userId) : null, sent, table, ":userId");
+    }
+
+    /**
+     * As {@link #mailbox(long, boolean, String)}, for a user given by a SQL expression.
+     * @param partition The user's mailbox partition, only used with partitioned reads
+     * @param user SQL expression for the user's ID, e.g. a column of a lateral join
+     */
+    private String mailbox(final String partition, final boolean sent, final String table, final String user)
+    {
+        if (partitionedReads) {
+            return "FROM " + partition + " m " +
+                    "JOIN " + ALL + " c ON c.id = m.convo_id " +
+                    "WHERE m.user_id = " + user + " AND m.sent = " + sent + " ";
+        }
+        final String owner = sent ? "sender" : "recipient";
+        return "FROM " + table + " c " +
+                "WHERE c." + owner + " = " + user + " AND NOT c.deleted_by_" + owner + " ";
+    }
+
+    /**
+     * Position of a convo within the mailbox selected by {@link #mailbox(long, boolean, String)}.
+     */
+    private String mailboxTime()
+    {
+        return partitionedReads ? "m.send_time" : "c.send_time";
+    }
+
+    private String mailboxId()
+    {
+        return partitionedReads ? "m.convo_id" : "c.id";
+    }
+
+    private String mailboxOrder(final SortDirection direction)
+    {
+        return mailboxTime() + " " + direction.getVal() + ", " + mailboxId() + " " + direction.getVal();
+    }
+
+    private void stream(final String sql, final Map<String, Object> params, final ConvoView view, final ConvoHandler handler)
+    {
+        final RowMapper<Convo> rowMapper = mapper(view);
+        streamingJdbcTemplate.query(sql, params, new RowCallbackHandler()
+        {
+            private int rowNum = 0;
+
+            @Override
+            public void processRow(ResultSet rs) throws SQLException
+            {
+                handler.handle(rowMapper.mapRow(rs, rowNum++));
+            }
+        });
+    }
+
+    /**
+     * Select list for a listing query. Summary listings swap the body for its stored snippet,
+     * so the (up to 64k) body column is never read or shipped.
+     * @param view
+     * @param alias Table alias prefix, e.g. "c.", or "" for none
+     */
+    private static String columns(final ConvoView view, final String alias)
+    {
+        return String.format("%1$sid, %1$ssender, %1$srecipient, %1$ssubject, %2$s, %1$swas_read, %1$sthread_id, %1$sreply_to_convo, " +
+                "%3$s ", alias, view == ConvoView.SUMMARY ? alias + "snippet" : body(alias), times(alias));
+    }
+
+    /**
+     * Draw IDs from the convo sequence ahead of a multi-row insert, so the caller decides which
+     * row gets which ID.
+     * @return count new IDs, ascending.
+     */
+    private List<Long> allocateConvoIds(final int count)
+    {
+        final List<Long> ids = new ArrayList<>(jdbcTemplate.queryForList(
+                "SELECT nextval(pg_get_serial_sequence('convo.convo', 'id')) FROM generate_series(1, :count) ",
+                ImmutableMap.of("count", (Object)count), Long.class));
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static String body(final String alias)
+    {
+        return "COALESCE(" + alias + "body, (SELECT b.body FROM convo.convo_body b WHERE b.hash = " + alias + "body_hash)) AS body, " +
+                alias + "body_z";
+    }
+
+    /**
+     * Search vector of a convo: the subject, weighted above the body.
+     * @param subject SQL expression for the subject
+     * @param body SQL expression for the body text
+     */
+    private static String search(final String subject, final String body)
+    {
+        return "setweight(to_tsvector('" + SEARCH_CONFIG + "', " + subject + "), 'A') || " +
+                "setweight(to_tsvector('" + SEARCH_CONFIG + "', COALESCE(" + body + ", '')), 'B')";
+    }
+
+    /**
+     * @return The body compressed for the body_z column, or null if it is to be stored as text
+     * because it is short or doesn't compress.
+     */
+    private byte[] compress(final String body)
+    {
+        return body.length() > compressAbove ? BodyCodec.compress(body, BODY_COMPRESSION_LEVEL) : null;
+    }
+
+    private static String times(final String alias)
+    {
+        return "(extract(epoch FROM " + alias + "send_time::timestamptz) * 1000)::bigint AS send_millis, " +
+                "(extract(epoch FROM " + alias + "update_time::timestamptz) * 1000)::bigint AS update_millis";
+    }
+
+    /**
+     * @return A new mapper for one query. Mappers cache column positions, so they can't be shared.
+     */
+    private static RowMapper<Convo> mapper(final ConvoView view)
+    {
+        return new ConvoRowMapper(view == ConvoView.SUMMARY);
+    }
+
+    private static RowMapper<StoredConvo> storedConvoMapper()
+    {
+        final RowMapper<Convo> convoMapper = mapper(ConvoView.FULL);
+        return new RowMapper<StoredConvo>()
+        {
+            @Override
+            public StoredConvo mapRow(ResultSet rs, int rowNum) throws SQLException
+            {
+                return new StoredConvo(convoMapper.mapRow(rs, rowNum),
+                        rs.getBoolean("deleted_by_sender"), rs.getBoolean("deleted_by_recipient"));
+            }
+        };
+    }
+
+    static String snippet(final String body)
+    {
+        if (body.length() <= SNIPPET_LENGTH) {
+            return body;
+        }
+        // Don't cut a surrogate pair in half
+        int end = Character.isHighSurrogate(body.charAt(SNIPPET_LENGTH - 1)) ? SNIPPET_LENGTH - 1 : SNIPPET_LENGTH;
+        return body.substring(0, end);
+    }
+
+    /**
+     * Direction the index is walked in: the requested one, or its reverse when paging backwards.
+     */
+    private static SortDirection scanDirection(final PageCursor cursor, final SortDirection direction)
+    {
+        return cursor != null && cursor.isBefore() ? direction.reverse() : direction;
+    }
+
+    private static String seekPredicate(final PageCursor cursor, final SortDirection direction, final String timeColumn, final String idColumn)
+    {
+        if (cursor == null) {
+            return "";
+        }
+        final String op = scanDirection(cursor, direction) == SortDirection.ASCENDING ? ">" : "<";
+        return String.format("AND (%s, %s) %s (:cursorTime, :cursorId) ", timeColumn, idColumn, op);
+    }
+
+    private static String seekOrder(final PageCursor cursor, final SortDirection direction, final String timeColumn, final String idColumn)
+    {
+        final String dir = scanDirection(cursor, direction).getVal();
+        return String.format("ORDER BY %s %s, %s %s", timeColumn, dir, idColumn, dir);
+    }
+
+    private static Map<String, Object> cursorParams(final long userId, final PageCursor cursor, final int limit)
+    {
+        return ImmutableMap.of(
+                "userId", (Object)userId,
+                "limit", limit,
+                "cursorTime", new Timestamp(cursor != null ? cursor.getSendTime() : 0L),
+                "cursorId", cursor != null ? cursor.getId() : 0L);
+    }
+
+    /**
+     * Rows fetched while paging backwards come out in reverse; flip them back to the requested order.
+     */
+    private static List<Convo> inDisplayOrder(final PageCursor cursor, final List<Convo> convos)
+    {
+        return cursor != null && cursor.isBefore() ? Lists.reverse(convos) : convos;
+    }
 }
@@ -0,0 +1,55 @@
+package convos.dao;
+
+import com.google.common.collect.ImmutableMap;
+import convos.domain.ConvoEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes convo events to every node through Postgres NOTIFY.
+ *
+ * Notifications are only delivered when the transaction sending them commits, so listeners
+ * never hear about a change that was rolled back, nor about one before it is visible to them.
+ */
+@Repository
+public class ConvoEventDao
+{
+    @Autowired NamedParameterJdbcTemplate jdbcTemplate;
+
+    /**
+     * Notification channel the events are sent on.
+     */
+    public static final String CHANNEL = "convo_events";
+
+    /**
+     * Postgres rejects payloads of 8000 bytes or more; events are ASCII, so characters are bytes.
+     */
+    static final int MAX_PAYLOAD = 7900;
+
+    /**
+     * Send events once the current transaction commits, packed into as few notifications as fit.
+     * @param events
+     * @return How many notifications were sent.
+     */
+    public int publish(final List<ConvoEvent> events)
+    {
+        if (events.isEmpty()) {
+            return 0;
+        }
+        final List<String> payloads = ConvoEvent.encode(events, MAX_PAYLOAD);
+
+        final String sql =
+                "SELECT count(pg_notify(:channel, p)) " +
+                "FROM unnest(:payloads) p ";
+
+        final Map<String, Object> params = ImmutableMap.<String, Object>of(
+                "channel", CHANNEL,
+                "payloads", SqlArrays.texts(payloads.toArray(new String[payloads.size()])));
+
+        return jdbcTemplate.queryForObject(sql, params, Integer.class);
+    }
+}
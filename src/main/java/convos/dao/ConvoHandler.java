@@ -0,0 +1,11 @@
+package convos.dao;
+
+import convos.domain.Convo;
+
+/**
+ * Receives convos one at a time from a streamed query.
+ */
+public interface ConvoHandler
+{
+    void handle(Convo convo);
+}
@@ -0,0 +1,95 @@
+package convos.dao;
+
+import convos.domain.Convo;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps convo rows selected with {@link ConvoDao}'s column lists.
+ *
+ * Column indexes are looked up once per result set rather than by name on every row, and
+ * times arrive as epoch milliseconds, so mapping a row allocates nothing but the Convo and
+ * its strings. Compressed bodies are handed to the Convo as they are, to be decompressed
+ * only if the body is read. Holds per-query state: use a new instance for each query.
+ */
+class ConvoRowMapper implements RowMapper<Convo>
+{
+    private final boolean summary;
+
+    private ResultSet resolvedFor;
+    private int id;
+    private int sender;
+    private int recipient;
+    private int subject;
+    private int text;
+    private int compressedBody;
+    private int wasRead;
+    private int threadId;
+    private int sendTime;
+    private int updateTime;
+    private int replyToConvo;
+
+    /**
+     * @param summary True if rows carry the snippet instead of the body.
+     */
+    ConvoRowMapper(final boolean summary)
+    {
+        this.summary = summary;
+    }
+
+    @Override
+    public Convo mapRow(ResultSet rs, int rowNum) throws SQLException
+    {
+        if (rs != resolvedFor) {
+            resolve(rs);
+        }
+        final String text = rs.getString(this.text);
+        // getLong returns 0 for NULL, which Convo takes to mean "never updated" and "not a reply".
+        if (!summary && text == null) {
+            final byte[] compressed = rs.getBytes(compressedBody);
+            if (compressed != null) {
+                return Convo.withCompressedBody(
+                        rs.getLong(id),
+                        rs.getLong(sender),
+                        rs.getLong(recipient),
+                        rs.getString(subject),
+                        compressed,
+                        rs.getBoolean(wasRead),
+                        rs.getLong(threadId),
+                        rs.getLong(sendTime),
+                        rs.getLong(updateTime),
+                        rs.getLong(replyToConvo));
+            }
+        }
+        return new Convo(
+                rs.getLong(id),
+                rs.getLong(sender),
+                rs.getLong(recipient),
+                rs.getString(subject),
+                summary ? null : text,
+                summary ? text : null,
+                rs.getBoolean(wasRead),
+                rs.getLong(threadId),
+                rs.getLong(sendTime),
+                rs.getLong(updateTime),
+                rs.getLong(replyToConvo));
+    }
+
+    private void resolve(final ResultSet rs) throws SQLException
+    {
+        id = rs.findColumn("id");
+        sender = rs.findColumn("sender");
+        recipient = rs.findColumn("recipient");
+        subject = rs.findColumn("subject");
+        text = rs.findColumn(summary ? "snippet" : "body");
+        compressedBody = summary ? 0 : rs.findColumn("body_z");
+        wasRead = rs.findColumn("was_read");
+        threadId = rs.findColumn("thread_id");
+        sendTime = rs.findColumn("send_millis");
+        updateTime = rs.findColumn("update_millis");
+        replyToConvo = rs.findColumn("reply_to_convo");
+        resolvedFor = rs;
+    }
+}
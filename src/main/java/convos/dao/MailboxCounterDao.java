@@ -0,0 +1,173 @@
+package convos.dao;
+
+import com.google.common.collect.ImmutableMap;
+import convos.domain.MailboxCounters;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.support.DataAccessUtils;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Data Access Object for the per-user counters in convo.mailbox_counter.
+ *
+ * Counters are adjusted by the service in the same transaction as the convo change
+ * they account for, and can be rebuilt from the convos, hot and archived, if they ever drift.
+ * Every adjustment and rebuild also bumps the user's mailbox version, which listings use as
+ * their ETag.
+ */
+@Repository
+public class MailboxCounterDao
+{
+    @Autowired NamedParameterJdbcTemplate jdbcTemplate;
+
+    private static final MailboxCounters EMPTY = new MailboxCounters(0, 0, 0, 0, 0L);
+
+    private static final String ADJUST_SQL =
+            "INSERT INTO convo.mailbox_counter(user_id, received, sent, unread, threads, version) " +
+            "VALUES (:userId, :received, :sent, :unread, :threads, 1) " +
+            "ON CONFLICT (user_id) DO UPDATE SET " +
+            "   received = mailbox_counter.received + EXCLUDED.received, " +
+            "   sent = mailbox_counter.sent + EXCLUDED.sent, " +
+            "   unread = mailbox_counter.unread + EXCLUDED.unread, " +
+            "   threads = mailbox_counter.threads + EXCLUDED.threads, " +
+            "   version = mailbox_counter.version + 1 ";
+
+    private static final RowMapper<MailboxCounters> countersMapper = new RowMapper<MailboxCounters>()
+    {
+        @Override
+        public MailboxCounters mapRow(ResultSet rs, int rowNum) throws SQLException
+        {
+            return new MailboxCounters(
+                    rs.getInt("received"),
+                    rs.getInt("sent"),
+                    rs.getInt("unread"),
+                    rs.getInt("threads"),
+                    rs.getLong("version"));
+        }
+    };
+
+    /**
+     * Get the counters for a user, by primary key.
+     * @param userId
+     * @return The counters and version, all zero if the user has never sent or received a convo.
+     */
+    @ReplicaRead
+    public MailboxCounters getCounters(final long userId)
+    {
+        final String sql =
+                "SELECT received, sent, unread, threads, version " +
+                "FROM convo.mailbox_counter " +
+                "WHERE user_id = :userId ";
+
+        final Map<String, Object> params = ImmutableMap.of("userId", (Object)userId);
+
+        MailboxCounters counters = DataAccessUtils.singleResult(jdbcTemplate.query(sql, params, countersMapper));
+        return counters != null ? counters : EMPTY;
+    }
+
+    /**
+     * Get the unread counts of many users with a single index lookup per user.
+     * @param userIds
+     * @return Unread counts keyed by user ID. Users who have never sent or received a convo are left out.
+     */
+    @ReplicaRead
+    public Map<Long, Integer> getUnreadCounts(final Collection<Long> userIds)
+    {
+        final String sql =
+                "SELECT user_id, unread " +
+                "FROM convo.mailbox_counter " +
+                "WHERE user_id = ANY(:userIds) ";
+
+        final Map<String, Object> params =
+                ImmutableMap.of("userIds", (Object)SqlArrays.bigints(userIds.toArray(new Long[userIds.size()])));
+
+        final Map<Long, Integer> unread = new HashMap<>();
+        for (Map<String, Object> row : jdbcTemplate.queryForList(sql, params)) {
+            unread.put(((Number)row.get("user_id")).longValue(), ((Number)row.get("unread")).intValue());
+        }
+        return unread;
+    }
+
+    /**
+     * Add the given deltas to a user's counters, creating the row if needed, and bump their
+     * mailbox version; all-zero deltas only bump the version.
+     * Must run in the same transaction as the convo change being counted.
+     */
+    public void adjust(final long userId, final int received, final int sent, final int unread, final int threads)
+    {
+        final Map<String, Object> params =
+                ImmutableMap.<String, Object>builder()
+                        .put("userId", userId)
+                        .put("received", received)
+                        .put("sent", sent)
+                        .put("unread", unread)
+                        .put("threads", threads)
+                        .build();
+
+        jdbcTemplate.update(ADJUST_SQL, params);
+    }
+
+    /**
+     * Add deltas to many users' counters in one JDBC batch, using the same upsert as
+     * {@link #adjust(long, int, int, int, int)}. Rows are written in the map's key order.
+     * @param deltas Counter deltas keyed by user ID
+     */
+    public void adjustAll(final SortedMap<Long, MailboxCounters> deltas)
+    {
+        final List<Map<String, Object>> batch = new ArrayList<>(deltas.size());
+        for (Map.Entry<Long, MailboxCounters> entry : deltas.entrySet()) {
+            MailboxCounters d = entry.getValue();
+            batch.add(ImmutableMap.<String, Object>builder()
+                    .put("userId", entry.getKey())
+                    .put("received", d.getReceived())
+                    .put("sent", d.getSent())
+                    .put("unread", d.getUnread())
+                    .put("threads", d.getThreads())
+                    .build());
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, ?>[] batchParams = batch.toArray(new Map[batch.size()]);
+        jdbcTemplate.batchUpdate(ADJUST_SQL, batchParams);
+    }
+
+    /**
+     * Recompute a user's counters from their convos, hot and archived. Must run inside a transaction.
+     *
+     * The counter row is locked before counting, so writers that have changed convos but not yet
+     * committed are blocked until we are done, and then apply their own deltas on top of ours.
+     * @param userId
+     */
+    public void rebuild(final long userId)
+    {
+        final Map<String, Object> params = ImmutableMap.of("userId", (Object)userId);
+
+        jdbcTemplate.update(
+                "INSERT INTO convo.mailbox_counter(user_id) VALUES (:userId) ON CONFLICT (user_id) DO NOTHING ",
+                params);
+        jdbcTemplate.queryForList(
+                "SELECT user_id FROM convo.mailbox_counter WHERE user_id = :userId FOR UPDATE ",
+                params, Long.class);
+
+        final String sql =
+                "UPDATE convo.mailbox_counter SET " +
+                "   received = (SELECT count(*) FROM " + ConvoDao.ALL + " WHERE recipient = :userId AND NOT deleted_by_recipient), " +
+                "   sent = (SELECT count(*) FROM " + ConvoDao.ALL + " WHERE sender = :userId AND NOT deleted_by_sender), " +
+                "   unread = (SELECT count(*) FROM " + ConvoDao.ALL + " WHERE recipient = :userId AND NOT deleted_by_recipient AND NOT was_read), " +
+                "   threads = (SELECT count(distinct thread_id) FROM " + ConvoDao.ALL + " " +
+                "       WHERE (sender = :userId AND NOT deleted_by_sender) OR (recipient = :userId AND NOT deleted_by_recipient)), " +
+                "   version = version + 1 " +
+                "WHERE user_id = :userId ";
+
+        jdbcTemplate.update(sql, params);
+    }
+}
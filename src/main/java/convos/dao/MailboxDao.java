@@ -0,0 +1,167 @@
+package convos.dao;
+
+import com.google.common.collect.ImmutableMap;
+import convos.domain.Convo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Data Access Object for the per-user mailbox partitions, convo.mailbox_0 to convo.mailbox_15.
+ *
+ * Every convo a user can still see has one row in their partition: a sent copy for the sender
+ * and a received copy for the recipient. The service writes and removes copies in the same
+ * transaction as the convo change, and {@link ConvoDao} lists mailboxes from them. Each
+ * statement only touches the partitions of the users involved.
+ */
+@Repository
+public class MailboxDao
+{
+    @Autowired NamedParameterJdbcTemplate jdbcTemplate;
+
+    /**
+     * Add both copies of new convos, one multi-row insert per partition involved. Copies that
+     * are already there are left alone, so this can be repeated.
+     * @param convos The convos just created
+     */
+    public void add(final List<Convo> convos)
+    {
+        final Map<Integer, Entries> partitions = new TreeMap<>();
+        for (Convo convo : convos) {
+            entries(partitions, convo.getSender()).add(convo.getSender(), true, convo.getSendTime(), convo.getId());
+            entries(partitions, convo.getRecipient()).add(convo.getRecipient(), false, convo.getSendTime(), convo.getId());
+        }
+        insert(partitions);
+    }
+
+    /**
+     * Remove one user's copies of convos they deleted.
+     * @param userId
+     * @param sent True to remove their sent copies, false for their received copies
+     * @param convos The deleted convos
+     */
+    public void remove(final long userId, final boolean sent, final List<Convo> convos)
+    {
+        if (convos.isEmpty()) {
+            return;
+        }
+        final Timestamp[] sendTimes = new Timestamp[convos.size()];
+        final Long[] ids = new Long[convos.size()];
+        for (int i = 0; i < convos.size(); i++) {
+            sendTimes[i] = new Timestamp(convos.get(i).getSendTime());
+            ids[i] = convos.get(i).getId();
+        }
+
+        final String sql =
+                "DELETE FROM " + MailboxPartitions.table(userId) + " " +
+                "WHERE user_id = :userId AND sent = :sent " +
+                "AND (send_time, convo_id) IN (SELECT * FROM unnest(:sendTimes, :ids)) ";
+
+        final Map<String, Object> params =
+                ImmutableMap.of(
+                        "userId", (Object)userId,
+                        "sent", sent,
+                        "sendTimes", SqlArrays.timestamps(sendTimes),
+                        "ids", SqlArrays.bigints(ids));
+
+        jdbcTemplate.update(sql, params);
+    }
+
+    /**
+     * Copy existing convos in a range of IDs, hot or archived, into the partitions: a copy for
+     * each participant who can still see the convo. Must run inside a transaction. The convo
+     * rows stay locked until it commits, so a concurrent delete either happens first and is
+     * seen here, or waits and then removes the copy made here.
+     * @param afterConvoId Copy convos with a greater ID
+     * @param throughConvoId and up to and including this ID
+     */
+    public void backfill(final long afterConvoId, final long throughConvoId)
+    {
+        final Map<String, Object> params = ImmutableMap.of("after", (Object)afterConvoId, "through", throughConvoId);
+
+        final Map<Integer, Entries> partitions = new TreeMap<>();
+        for (String table : new String[] {ConvoDao.HOT, ConvoDao.ARCHIVE}) {
+            final String sql =
+                    "SELECT id, sender, recipient, send_time, deleted_by_sender, deleted_by_recipient " +
+                    "FROM " + table + " " +
+                    "WHERE id > :after AND id <= :through " +
+                    "FOR SHARE ";
+
+            for (Map<String, Object> row : jdbcTemplate.queryForList(sql, params)) {
+                long id = ((Number)row.get("id")).longValue();
+                long sender = ((Number)row.get("sender")).longValue();
+                long recipient = ((Number)row.get("recipient")).longValue();
+                long sendTime = ((Timestamp)row.get("send_time")).getTime();
+                if (!(Boolean)row.get("deleted_by_sender")) {
+                    entries(partitions, sender).add(sender, true, sendTime, id);
+                }
+                if (!(Boolean)row.get("deleted_by_recipient")) {
+                    entries(partitions, recipient).add(recipient, false, sendTime, id);
+                }
+            }
+        }
+        insert(partitions);
+    }
+
+    private void insert(final Map<Integer, Entries> partitions)
+    {
+        for (Map.Entry<Integer, Entries> partition : partitions.entrySet()) {
+            final Entries entries = partition.getValue();
+            final String sql =
+                    "INSERT INTO " + MailboxPartitions.table(partition.getKey()) + "(user_id, sent, send_time, convo_id) " +
+                    "SELECT * FROM unnest(:userIds, :sent, :sendTimes, :convoIds) " +
+                    "ON CONFLICT DO NOTHING ";
+
+            final Map<String, Object> params =
+                    ImmutableMap.<String, Object>builder()
+                            .put("userIds", SqlArrays.bigints(entries.userIds.toArray(new Long[entries.size()])))
+                            .put("sent", SqlArrays.bools(entries.sent.toArray(new Boolean[entries.size()])))
+                            .put("sendTimes", SqlArrays.timestamps(entries.sendTimes.toArray(new Timestamp[entries.size()])))
+                            .put("convoIds", SqlArrays.bigints(entries.convoIds.toArray(new Long[entries.size()])))
+                            .build();
+
+            jdbcTemplate.update(sql, params);
+        }
+    }
+
+    private static Entries entries(final Map<Integer, Entries> partitions, final long userId)
+    {
+        final int partition = MailboxPartitions.of(userId);
+        Entries entries = partitions.get(partition);
+        if (entries == null) {
+            entries = new Entries();
+            partitions.put(partition, entries);
+        }
+        return entries;
+    }
+
+    /**
+     * Rows bound for one partition, as parallel columns for unnest.
+     */
+    private static class Entries
+    {
+        final List<Long> userIds = new ArrayList<>();
+        final List<Boolean> sent = new ArrayList<>();
+        final List<Timestamp> sendTimes = new ArrayList<>();
+        final List<Long> convoIds = new ArrayList<>();
+
+        void add(final long userId, final boolean isSent, final long sendTime, final long convoId)
+        {
+            userIds.add(userId);
+            sent.add(isSent);
+            sendTimes.add(new Timestamp(sendTime));
+            convoIds.add(convoId);
+        }
+
+        int size()
+        {
+            return userIds.size();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package convos.dao;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Which of the convo.mailbox_{n} tables holds a user's mailbox. Users are spread by a hash of
+ * their ID, so neighbouring IDs (often created together, and alike in activity) land apart.
+ */
+final class MailboxPartitions
+{
+    /**
+     * Number of partitions created by migration V3. Changing it moves most users to another partition.
+     */
+    static final int COUNT = 16;
+
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    private MailboxPartitions()
+    {
+    }
+
+    static int of(final long userId)
+    {
+        return Math.floorMod(HASH.hashLong(userId).asInt(), COUNT);
+    }
+
+    /**
+     * @return The qualified name of the user's partition, e.g. "convo.mailbox_7".
+     */
+    static String table(final long userId)
+    {
+        return table(of(userId));
+    }
+
+    static String table(final int partition)
+    {
+        return "convo.mailbox_" + partition;
+    }
+}
@@ -0,0 +1,90 @@
+package convos.dao;
+
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/**
+ * Per-thread state that {@link ReplicaRoutingDataSource} routes on: whether the current DAO
+ * method may read from a replica, and the write position (a PostgreSQL WAL location such as
+ * "16/B374D848") that a replica must have replayed before it may serve this request's reads.
+ */
+public final class ReadRouting
+{
+    private static final Pattern POSITION = Pattern.compile("[0-9A-Fa-f]{1,8}/[0-9A-Fa-f]{1,8}");
+
+    private static final ThreadLocal<Boolean> replicaRead = new ThreadLocal<>();
+    private static final ThreadLocal<String> readAfter = new ThreadLocal<>();
+
+    private ReadRouting()
+    {
+    }
+
+    /**
+     * @param position A position returned by an earlier write, or null for none
+     */
+    public static void setReadAfter(final String position)
+    {
+        if (position == null) {
+            readAfter.remove();
+        } else {
+            readAfter.set(position);
+        }
+    }
+
+    public static String getReadAfter()
+    {
+        return readAfter.get();
+    }
+
+    /**
+     * @return True if the value looks like a WAL position, and so can be passed to {@link #setReadAfter(String)}.
+     */
+    public static boolean isPosition(final String value)
+    {
+        return value != null && POSITION.matcher(value).matches();
+    }
+
+    /**
+     * Carry the current thread's read position over to a task run on another thread.
+     */
+    public static <T> Callable<T> propagate(final Callable<T> task)
+    {
+        final String position = readAfter.get();
+        return new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                final String previous = readAfter.get();
+                setReadAfter(position);
+                try {
+                    return task.call();
+                } finally {
+                    setReadAfter(previous);
+                }
+            }
+        };
+    }
+
+    static boolean isReplicaRead()
+    {
+        return Boolean.TRUE.equals(replicaRead.get());
+    }
+
+    /**
+     * @return Whether the thread was already in a replica read, to pass to {@link #endReplicaRead(boolean)}.
+     */
+    static boolean beginReplicaRead()
+    {
+        final boolean previous = isReplicaRead();
+        replicaRead.set(Boolean.TRUE);
+        return previous;
+    }
+
+    static void endReplicaRead(final boolean previous)
+    {
+        if (!previous) {
+            replicaRead.remove();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package convos.dao;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a read-only DAO method that may be served by a read replica.
+ *
+ * Only takes effect when the method opens its own connection: outside a transaction, or as the
+ * first statement of a read-only one. Inside a read-write transaction it reads from the
+ * transaction's connection on the primary, as always. See {@link ReplicaRoutingDataSource}.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ReplicaRead
+{
+}
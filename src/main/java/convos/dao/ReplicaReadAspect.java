@@ -0,0 +1,25 @@
+package convos.dao;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.stereotype.Component;
+
+/**
+ * Lets connections opened inside {@link ReplicaRead} methods go to a replica.
+ */
+@Aspect
+@Component
+public class ReplicaReadAspect
+{
+    @Around("@annotation(convos.dao.ReplicaRead)")
+    public Object replicaRead(ProceedingJoinPoint joinPoint) throws Throwable
+    {
+        final boolean previous = ReadRouting.beginReplicaRead();
+        try {
+            return joinPoint.proceed();
+        } finally {
+            ReadRouting.endReplicaRead(previous);
+        }
+    }
+}
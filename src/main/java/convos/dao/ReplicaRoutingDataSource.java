@@ -0,0 +1,210 @@
+package convos.dao;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends reads made by {@link ReplicaRead} DAO methods to read replicas, and everything else to
+ * the primary.
+ *
+ * A read goes to a replica when it opens its own connection: outside a transaction, or in a
+ * read-only one. Wrap this in a LazyConnectionDataSourceProxy, so a read-only transaction only
+ * asks for its connection at its first statement, once it is known to be read-only. Replicas are
+ * tried round robin. One that can't be reached is skipped for a while.
+ *
+ * When the request carries a position from an earlier write ({@link ReadRouting#getReadAfter()}),
+ * a replica only serves it once it has replayed up to that position. If no replica has, we poll
+ * until one does, for at most the max wait, and then read from the primary. Clients therefore
+ * always see their own writes, and usually without loading the primary.
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource
+{
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    private final DataSource primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long maxWaitMillis;
+    private final long pollMillis;
+    private final long retryMillis;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final Meter replicaReads;
+    private final Meter primaryReads;
+
+    /**
+     * @param primary
+     * @param replicas Replica pools, may be empty
+     * @param maxWaitMillis How long a read may wait for a replica to catch up with its position
+     * @param pollMillis How often to check replicas while waiting
+     * @param retryMillis How long to skip a replica that couldn't be reached
+     * @param registry Where to count reads by destination
+     */
+    public ReplicaRoutingDataSource(final DataSource primary, final List<DataSource> replicas,
+                                    final long maxWaitMillis, final long pollMillis, final long retryMillis,
+                                    final MetricRegistry registry)
+    {
+        this.primary = primary;
+        for (DataSource replica : replicas) {
+            this.replicas.add(new Replica(replica));
+        }
+        this.maxWaitMillis = maxWaitMillis;
+        this.pollMillis = Math.max(1, pollMillis);
+        this.retryMillis = retryMillis;
+        this.replicaReads = registry.meter(MetricRegistry.name("datasource", "reads", "replica"));
+        this.primaryReads = registry.meter(MetricRegistry.name("datasource", "reads", "primary-fallback"));
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException
+    {
+        if (replicas.isEmpty() || !ReadRouting.isReplicaRead()) {
+            return primary.getConnection();
+        }
+        if (TransactionSynchronizationManager.isActualTransactionActive()
+                && !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return primary.getConnection();
+        }
+        return replicaConnection(ReadRouting.getReadAfter());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException
+    {
+        return primary.getConnection(username, password);
+    }
+
+    /**
+     * The primary's current WAL position, to hand back to a client after a write so it can
+     * read its own writes from a replica. Call after the write's transaction has committed.
+     * @return The position, or null if there are no replicas or it couldn't be read.
+     */
+    public String writePosition()
+    {
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        try (Connection con = primary.getConnection(); Statement st = con.createStatement()) {
+            String function = con.getMetaData().getDatabaseMajorVersion() >= 10 ? "pg_current_wal_lsn()" : "pg_current_xlog_location()";
+            try (ResultSet rs = st.executeQuery("SELECT " + function + "::text")) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            logger.warn("Could not read the primary's write position", e);
+            return null;
+        }
+    }
+
+    /**
+     * Close the replica pools. The primary is a bean of its own, and closed with the context.
+     */
+    public void close()
+    {
+        for (Replica replica : replicas) {
+            DataSource target = replica.dataSource;
+            while (target instanceof DelegatingDataSource) {
+                target = ((DelegatingDataSource)target).getTargetDataSource();
+            }
+            if (target instanceof org.apache.tomcat.jdbc.pool.DataSource) {
+                ((org.apache.tomcat.jdbc.pool.DataSource)target).close();
+            }
+        }
+    }
+
+    private Connection replicaConnection(final String position) throws SQLException
+    {
+        final long deadline = System.currentTimeMillis() + (position != null ? maxWaitMillis : 0);
+        final int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        while (true) {
+            for (int i = 0; i < replicas.size(); i++) {
+                Replica replica = replicas.get((start + i) % replicas.size());
+                Connection con = replica.connect();
+                if (con == null) {
+                    continue;
+                }
+                try {
+                    if (position == null || caughtUp(con, position)) {
+                        replicaReads.mark();
+                        return con;
+                    }
+                } catch (SQLException e) {
+                    replica.failed(e);
+                }
+                con.close();
+            }
+            if (System.currentTimeMillis() + pollMillis > deadline) {
+                break;
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        primaryReads.mark();
+        return primary.getConnection();
+    }
+
+    /**
+     * @return True if the server has replayed the WAL up to the position. A server that
+     * isn't replaying (not a standby) counts as caught up.
+     */
+    private static boolean caughtUp(final Connection con, final String position) throws SQLException
+    {
+        String function = con.getMetaData().getDatabaseMajorVersion() >= 10 ? "pg_last_wal_replay_lsn()" : "pg_last_xlog_replay_location()";
+        try (PreparedStatement ps = con.prepareStatement("SELECT COALESCE(" + function + " >= ?::pg_lsn, true)")) {
+            ps.setString(1, position);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+
+    private class Replica
+    {
+        final DataSource dataSource;
+        volatile long downUntil;
+
+        Replica(final DataSource dataSource)
+        {
+            this.dataSource = dataSource;
+        }
+
+        /**
+         * @return A connection, or null if the replica is down.
+         */
+        Connection connect()
+        {
+            if (System.currentTimeMillis() < downUntil) {
+                return null;
+            }
+            try {
+                return dataSource.getConnection();
+            } catch (SQLException e) {
+                failed(e);
+                return null;
+            }
+        }
+
+        void failed(final SQLException e)
+        {
+            logger.warn("Replica unavailable, reading from other servers for {} ms", retryMillis, e);
+            downUntil = System.currentTimeMillis() + retryMillis;
+        }
+    }
+}
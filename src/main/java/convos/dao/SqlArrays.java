@@ -0,0 +1,54 @@
+package convos.dao;
+
+import org.springframework.jdbc.core.support.AbstractSqlTypeValue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Bind Java arrays as Postgres array parameters, for multi-row statements built on unnest(...)
+ * and for "= ANY(:ids)" lookups.
+ */
+final class SqlArrays
+{
+    private SqlArrays()
+    {
+    }
+
+    static AbstractSqlTypeValue bigints(final Long[] values)
+    {
+        return of("int8", values);
+    }
+
+    static AbstractSqlTypeValue ints(final Integer[] values)
+    {
+        return of("int4", values);
+    }
+
+    static AbstractSqlTypeValue bools(final Boolean[] values)
+    {
+        return of("bool", values);
+    }
+
+    static AbstractSqlTypeValue texts(final String[] values)
+    {
+        return of("text", values);
+    }
+
+    static AbstractSqlTypeValue timestamps(final java.sql.Timestamp[] values)
+    {
+        return of("timestamp", values);
+    }
+
+    private static AbstractSqlTypeValue of(final String type, final Object[] values)
+    {
+        return new AbstractSqlTypeValue()
+        {
+            @Override
+            protected Object createTypeValue(Connection con, int sqlType, String typeName) throws SQLException
+            {
+                return con.createArrayOf(type, values);
+            }
+        };
+    }
+}
@@ -0,0 +1,15 @@
+package convos.dao;
+
+import convos.domain.Convo;
+
+/**
+ * Receives threads one at a time from a streamed query.
+ */
+public interface ThreadHandler
+{
+    /**
+     * @param latest The most recent convo of the thread
+     * @param unreadCount How many unread convos the user has in the thread
+     */
+    void handle(Convo latest, int unreadCount);
+}
@@ -0,0 +1,296 @@
+package convos.dao;
+
+import com.google.common.collect.ImmutableMap;
+import convos.domain.Convo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.support.DataAccessUtils;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Data Access Object for convo.thread_summary, one row per user per thread they take part in.
+ *
+ * Each row points at the latest convo of the thread the user can still see, so listing
+ * threads is a range scan over (user_id, last_send_time) rather than a sort of every convo
+ * the user ever touched. Rows are maintained by the service in the same transaction as the
+ * convo change.
+ */
+@Repository
+public class ThreadSummaryDao
+{
+    @Autowired NamedParameterJdbcTemplate jdbcTemplate;
+
+    /**
+     * Account for a new convo in the user's view of its thread.
+     * @param userId Sender or recipient of the convo
+     * @param convo The convo just created
+     * @return True if the thread was not visible to the user before this convo.
+     */
+    public boolean recordConvo(final long userId, final Convo convo)
+    {
+        final String sql =
+                "INSERT INTO convo.thread_summary(user_id, thread_id, last_convo_id, last_send_time, message_count, unread_count, deleted) " +
+                "VALUES (:userId, :threadId, :convoId, :sendTime, 1, :unread, false) " +
+                "ON CONFLICT (user_id, thread_id) DO UPDATE SET " +
+                "   last_convo_id = CASE WHEN thread_summary.deleted " +
+                "           OR (EXCLUDED.last_send_time, EXCLUDED.last_convo_id) > (thread_summary.last_send_time, thread_summary.last_convo_id) " +
+                "       THEN EXCLUDED.last_convo_id ELSE thread_summary.last_convo_id END, " +
+                "   last_send_time = CASE WHEN thread_summary.deleted " +
+                "           OR (EXCLUDED.last_send_time, EXCLUDED.last_convo_id) > (thread_summary.last_send_time, thread_summary.last_convo_id) " +
+                "       THEN EXCLUDED.last_send_time ELSE thread_summary.last_send_time END, " +
+                "   message_count = thread_summary.message_count + 1, " +
+                "   unread_count = thread_summary.unread_count + EXCLUDED.unread_count, " +
+                "   deleted = false " +
+                "RETURNING message_count ";
+
+        final Map<String, Object> params =
+                ImmutableMap.<String, Object>builder()
+                        .put("userId", userId)
+                        .put("threadId", convo.getThreadId())
+                        .put("convoId", convo.getId())
+                        .put("sendTime", new Timestamp(convo.getSendTime()))
+                        .put("unread", convo.getRecipient() == userId && !convo.isWasRead() ? 1 : 0)
+                        .build();
+
+        return jdbcTemplate.queryForObject(sql, params, Integer.class) == 1;
+    }
+
+    /**
+     * Account for a batch of new convos with one multi-row upsert.
+     *
+     * Convos are grouped per user and thread first, so each summary row is written once,
+     * and rows are written in (user ID, thread ID) order to lock them in the same order as
+     * {@link #recordConvo(long, Convo)} does.
+     * @param convos The convos just created
+     * @return For each user, the number of threads that were not visible to them before this batch.
+     */
+    public Map<Long, Integer> recordConvos(final List<Convo> convos)
+    {
+        final Map<Long, Map<Long, Activity>> activity = new TreeMap<>();
+        for (Convo convo : convos) {
+            record(activity, convo.getSender(), convo);
+            if (convo.getRecipient() != convo.getSender()) {
+                record(activity, convo.getRecipient(), convo);
+            }
+        }
+
+        final List<Long> userIds = new ArrayList<>();
+        final List<Long> threadIds = new ArrayList<>();
+        final List<Long> convoIds = new ArrayList<>();
+        final List<Timestamp> sendTimes = new ArrayList<>();
+        final List<Integer> counts = new ArrayList<>();
+        final List<Integer> unreads = new ArrayList<>();
+        for (Map.Entry<Long, Map<Long, Activity>> user : activity.entrySet()) {
+            for (Map.Entry<Long, Activity> thread : user.getValue().entrySet()) {
+                Activity a = thread.getValue();
+                userIds.add(user.getKey());
+                threadIds.add(thread.getKey());
+                convoIds.add(a.latest.getId());
+                sendTimes.add(new Timestamp(a.latest.getSendTime()));
+                counts.add(a.count);
+                unreads.add(a.unread);
+            }
+        }
+        if (userIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final String sql =
+                "INSERT INTO convo.thread_summary(user_id, thread_id, last_convo_id, last_send_time, message_count, unread_count, deleted) " +
+                "SELECT v.user_id, v.thread_id, v.last_convo_id, v.last_send_time, v.message_count, v.unread_count, false " +
+                "FROM unnest(:userIds, :threadIds, :convoIds, :sendTimes, :counts, :unreads) " +
+                "       AS v(user_id, thread_id, last_convo_id, last_send_time, message_count, unread_count) " +
+                "ORDER BY v.user_id, v.thread_id " +
+                "ON CONFLICT (user_id, thread_id) DO UPDATE SET " +
+                "   last_convo_id = CASE WHEN thread_summary.deleted " +
+                "           OR (EXCLUDED.last_send_time, EXCLUDED.last_convo_id) > (thread_summary.last_send_time, thread_summary.last_convo_id) " +
+                "       THEN EXCLUDED.last_convo_id ELSE thread_summary.last_convo_id END, " +
+                "   last_send_time = CASE WHEN thread_summary.deleted " +
+                "           OR (EXCLUDED.last_send_time, EXCLUDED.last_convo_id) > (thread_summary.last_send_time, thread_summary.last_convo_id) " +
+                "       THEN EXCLUDED.last_send_time ELSE thread_summary.last_send_time END, " +
+                "   message_count = thread_summary.message_count + EXCLUDED.message_count, " +
+                "   unread_count = thread_summary.unread_count + EXCLUDED.unread_count, " +
+                "   deleted = false " +
+                "RETURNING user_id, thread_id, message_count ";
+
+        final Map<String, Object> params =
+                ImmutableMap.<String, Object>builder()
+                        .put("userIds", SqlArrays.bigints(userIds.toArray(new Long[userIds.size()])))
+                        .put("threadIds", SqlArrays.bigints(threadIds.toArray(new Long[threadIds.size()])))
+                        .put("convoIds", SqlArrays.bigints(convoIds.toArray(new Long[convoIds.size()])))
+                        .put("sendTimes", SqlArrays.timestamps(sendTimes.toArray(new Timestamp[sendTimes.size()])))
+                        .put("counts", SqlArrays.ints(counts.toArray(new Integer[counts.size()])))
+                        .put("unreads", SqlArrays.ints(unreads.toArray(new Integer[unreads.size()])))
+                        .build();
+
+        final Map<Long, Integer> newThreads = new TreeMap<>();
+        for (Map<String, Object> row : jdbcTemplate.queryForList(sql, params)) {
+            long userId = ((Number)row.get("user_id")).longValue();
+            long threadId = ((Number)row.get("thread_id")).longValue();
+            // The thread only just became visible if every message now counted came from this batch.
+            if (((Number)row.get("message_count")).intValue() == activity.get(userId).get(threadId).count) {
+                Integer n = newThreads.get(userId);
+                newThreads.put(userId, n != null ? n + 1 : 1);
+            }
+        }
+        return newThreads;
+    }
+
+    /**
+     * Adjust the unread count of a thread after a read toggle.
+     * @param userId Recipient of the toggled convo
+     * @param threadId
+     * @param delta +1 if the convo became unread, -1 if it became read
+     */
+    public void adjustUnread(final long userId, final long threadId, final int delta)
+    {
+        final String sql =
+                "UPDATE convo.thread_summary SET unread_count = unread_count + :delta " +
+                "WHERE user_id = :userId AND thread_id = :threadId ";
+
+        final Map<String, Object> params =
+                ImmutableMap.of("userId", (Object)userId, "threadId", threadId, "delta", delta);
+
+        jdbcTemplate.update(sql, params);
+    }
+
+    /**
+     * Recompute one thread's row from its convos, hot and archived, after some of its convos were deleted.
+     * Must run inside a transaction. The row is locked before recounting, so concurrent
+     * inserts into the thread are either included or applied on top afterwards.
+     * @param userId
+     * @param threadId
+     * @return True if the user has no visible convos left in the thread.
+     */
+    public boolean refresh(final long userId, final long threadId)
+    {
+        final Map<String, Object> params =
+                ImmutableMap.of("userId", (Object)userId, "threadId", threadId);
+
+        jdbcTemplate.queryForList(
+                "SELECT thread_id FROM convo.thread_summary WHERE user_id = :userId AND thread_id = :threadId FOR UPDATE ",
+                params, Long.class);
+
+        final String sql =
+                "WITH visible AS (" +
+                "   SELECT id, recipient, was_read, send_time FROM " + ConvoDao.ALL + " " +
+                "   WHERE thread_id = :threadId " +
+                "   AND ((sender = :userId AND NOT deleted_by_sender) OR (recipient = :userId AND NOT deleted_by_recipient))" +
+                "), latest AS (" +
+                "   SELECT id, send_time FROM visible ORDER BY send_time DESC, id DESC LIMIT 1" +
+                ") " +
+                "UPDATE convo.thread_summary SET " +
+                "   last_convo_id = COALESCE((SELECT id FROM latest), last_convo_id), " +
+                "   last_send_time = COALESCE((SELECT send_time FROM latest), last_send_time), " +
+                "   message_count = (SELECT count(*) FROM visible), " +
+                "   unread_count = (SELECT count(*) FROM visible WHERE recipient = :userId AND NOT was_read), " +
+                "   deleted = NOT EXISTS (SELECT 1 FROM visible) " +
+                "WHERE user_id = :userId AND thread_id = :threadId " +
+                "RETURNING deleted ";
+
+        Boolean deleted = DataAccessUtils.singleResult(jdbcTemplate.queryForList(sql, params, Boolean.class));
+        return deleted != null && deleted;
+    }
+
+    /**
+     * Hide a thread the user deleted entirely.
+     * @param userId
+     * @param threadId
+     */
+    public void markDeleted(final long userId, final long threadId)
+    {
+        final String sql =
+                "UPDATE convo.thread_summary SET deleted = true, message_count = 0, unread_count = 0 " +
+                "WHERE user_id = :userId AND thread_id = :threadId ";
+
+        final Map<String, Object> params =
+                ImmutableMap.of("userId", (Object)userId, "threadId", threadId);
+
+        jdbcTemplate.update(sql, params);
+    }
+
+    /**
+     * Rebuild all of a user's rows from their convos, hot and archived. Must run inside a transaction.
+     *
+     * A row is created for every thread the user can see a convo in, all of the user's rows
+     * are locked, and then they are recomputed from a fresh snapshot. Threads the user has
+     * deleted entirely get no new row, which lists the same as a row flagged deleted.
+     * @param userId
+     */
+    public void rebuild(final long userId)
+    {
+        final Map<String, Object> params = ImmutableMap.of("userId", (Object)userId);
+
+        jdbcTemplate.update(
+                "INSERT INTO convo.thread_summary(user_id, thread_id, last_convo_id, last_send_time, message_count, unread_count, deleted) " +
+                "SELECT :userId, thread_id, max(id), max(send_time), 0, 0, true " +
+                "FROM " + ConvoDao.ALL + " " +
+                "WHERE (sender = :userId AND NOT deleted_by_sender) OR (recipient = :userId AND NOT deleted_by_recipient) " +
+                "GROUP BY thread_id " +
+                "ON CONFLICT (user_id, thread_id) DO NOTHING ",
+                params);
+        jdbcTemplate.queryForList(
+                "SELECT thread_id FROM convo.thread_summary WHERE user_id = :userId FOR UPDATE ",
+                params, Long.class);
+
+        final String sql =
+                "UPDATE convo.thread_summary s SET " +
+                "   last_convo_id = COALESCE(t.last_convo_id, s.last_convo_id), " +
+                "   last_send_time = COALESCE(t.last_send_time, s.last_send_time), " +
+                "   message_count = COALESCE(t.message_count, 0), " +
+                "   unread_count = COALESCE(t.unread_count, 0), " +
+                "   deleted = t.thread_id IS NULL " +
+                "FROM convo.thread_summary s2 " +
+                "LEFT JOIN (" +
+                "   SELECT DISTINCT ON (thread_id) thread_id, id AS last_convo_id, send_time AS last_send_time, " +
+                "       count(*) OVER w AS message_count, " +
+                "       count(*) FILTER (WHERE recipient = :userId AND NOT was_read) OVER w AS unread_count " +
+                "   FROM " + ConvoDao.ALL + " " +
+                "   WHERE (sender = :userId AND NOT deleted_by_sender) OR (recipient = :userId AND NOT deleted_by_recipient) " +
+                "   WINDOW w AS (PARTITION BY thread_id) " +
+                "   ORDER BY thread_id, send_time DESC, id DESC" +
+                ") t ON t.thread_id = s2.thread_id " +
+                "WHERE s.user_id = :userId AND s2.user_id = :userId AND s2.thread_id = s.thread_id ";
+
+        jdbcTemplate.update(sql, params);
+    }
+
+    private static void record(final Map<Long, Map<Long, Activity>> activity, final long userId, final Convo convo)
+    {
+        Map<Long, Activity> threads = activity.get(userId);
+        if (threads == null) {
+            threads = new TreeMap<>();
+            activity.put(userId, threads);
+        }
+        Activity a = threads.get(convo.getThreadId());
+        if (a == null) {
+            a = new Activity();
+            threads.put(convo.getThreadId(), a);
+        }
+        a.count++;
+        if (convo.getRecipient() == userId && !convo.isWasRead()) {
+            a.unread++;
+        }
+        if (a.latest == null || convo.getSendTime() > a.latest.getSendTime()
+                || (convo.getSendTime() == a.latest.getSendTime() && convo.getId() > a.latest.getId())) {
+            a.latest = convo;
+        }
+    }
+
+    /**
+     * What one batch did to one user's view of one thread.
+     */
+    private static class Activity
+    {
+        Convo latest;
+        int count;
+        int unread;
+    }
+}
@@ -0,0 +1,29 @@
+package convos.domain;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One entry of a batch create request: a new convo, or a reply when replyToConvo is set.
+ */
+public class BatchCreateConvo extends CreateConvo
+{
+    private final Long replyToConvo;
+
+    @JsonCreator
+    public BatchCreateConvo(
+            @JsonProperty("sender") long sender,
+            @JsonProperty("recipient") long recipient,
+            @JsonProperty("subject") String subject,
+            @JsonProperty("body") String body,
+            @JsonProperty("replyToConvo") Long replyToConvo)
+    {
+        super(sender, recipient, subject, body);
+        this.replyToConvo = replyToConvo;
+    }
+
+    public Long getReplyToConvo()
+    {
+        return replyToConvo;
+    }
+}
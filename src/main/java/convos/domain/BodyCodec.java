@@ -0,0 +1,85 @@
+package convos.domain;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed form of convo bodies, as stored in the body_z column.
+ *
+ * The first byte names the format, so bodies written by an older format can still be read
+ * after a new one is added. Format 1 is the UTF-8 length of the body as a 4 byte big-endian
+ * int, followed by the UTF-8 bytes as a zlib stream. The length lets decompression allocate
+ * its output once.
+ */
+public final class BodyCodec
+{
+    static final byte DEFLATE = 1;
+
+    private static final int HEADER_LENGTH = 5;
+
+    private BodyCodec()
+    {
+    }
+
+    /**
+     * @param body
+     * @param level Deflater level, 1 (fastest) to 9 (smallest)
+     * @return The compressed body, or null if compressing doesn't make it any smaller.
+     */
+    public static byte[] compress(final String body, final int level)
+    {
+        final byte[] utf8 = body.getBytes(StandardCharsets.UTF_8);
+        final Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(utf8);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 2 + HEADER_LENGTH);
+            out.write(DEFLATE);
+            out.write(ByteBuffer.allocate(4).putInt(utf8.length).array(), 0, 4);
+            final byte[] buffer = new byte[Math.min(utf8.length + 64, 8192)];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() >= utf8.length) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param stored A body as returned by {@link #compress}
+     * @return The body text.
+     * @throws IllegalStateException If the format is unknown or the data is corrupt.
+     */
+    public static String decompress(final byte[] stored)
+    {
+        if (stored.length < HEADER_LENGTH || stored[0] != DEFLATE) {
+            throw new IllegalStateException("Unknown compressed body format " + (stored.length > 0 ? stored[0] : -1));
+        }
+        final byte[] utf8 = new byte[ByteBuffer.wrap(stored, 1, 4).getInt()];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, HEADER_LENGTH, stored.length - HEADER_LENGTH);
+            int length = 0;
+            while (length < utf8.length) {
+                int n = inflater.inflate(utf8, length, utf8.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Corrupt compressed body");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed body", e);
+        } finally {
+            inflater.end();
+        }
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,55 @@
+package convos.domain;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * One convo sent from one sender to many recipients. Each recipient gets their own convo,
+ * in its own thread, but all of them share a single stored copy of the body.
+ */
+public class BroadcastConvo
+{
+    private final long sender;
+    private final List<Long> recipients;
+    private final String subject;
+    private final String body;
+
+    @JsonCreator
+    public BroadcastConvo(
+            @JsonProperty("sender") long sender,
+            @JsonProperty("recipients") List<Long> recipients,
+            @JsonProperty("subject") String subject,
+            @JsonProperty("body") String body)
+    {
+        this.sender = sender;
+        if (recipients == null || recipients.isEmpty() || recipients.contains(null)) {
+            throw new IllegalArgumentException("A broadcast needs at least one recipient, and no null recipients.");
+        }
+        this.recipients = recipients;
+        CreateConvo.checkLengths(subject, body);
+        this.subject = subject;
+        this.body = body;
+    }
+
+    public long getSender()
+    {
+        return sender;
+    }
+
+    public List<Long> getRecipients()
+    {
+        return recipients;
+    }
+
+    public String getSubject()
+    {
+        return subject;
+    }
+
+    public String getBody()
+    {
+        return body;
+    }
+}
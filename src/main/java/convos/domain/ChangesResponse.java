@@ -0,0 +1,47 @@
+package convos.domain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * What changed in a user's mailboxes since a sync token, oldest change first, and the token to
+ * ask with next time. When more is set the page was full, and the client should ask again at
+ * once with the new token.
+ */
+public class ChangesResponse
+{
+    private final List<ConvoChange> changes;
+    private final String token;
+    private final boolean more;
+    private final String next;
+
+    public ChangesResponse(List<ConvoChange> changes, String token, boolean more, String next)
+    {
+        this.changes = changes;
+        this.token = token;
+        this.more = more;
+        this.next = next;
+    }
+
+    public List<ConvoChange> getChanges()
+    {
+        return changes;
+    }
+
+    public String getToken()
+    {
+        return token;
+    }
+
+    public boolean isMore()
+    {
+        return more;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getNext()
+    {
+        return next;
+    }
+}
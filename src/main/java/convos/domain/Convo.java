@@ -1,6 +1,7 @@
 package convos.domain;
 
-import org.joda.time.DateTime;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 public class Convo
 {
@@ -9,19 +10,37 @@ public class Convo
     private final long recipient;
     private final String subject;
     private final String body;
+    private final byte[] compressedBody;
+    private final String snippet;
     private final boolean wasRead;
     private final long threadId;
-    private final DateTime sendTime;
-    private final DateTime updateTime;
-    private final Long replyToConvo;
+    private final long sendTime;
+    private final long updateTime;
+    private final long replyToConvo;
 
-    public Convo(long id, long sender, long recipient, String subject, String body, boolean wasRead, long threadId, DateTime sendTime, DateTime updateTime, Long replyToConvo)
+    /**
+     * Times are epoch milliseconds. updateTime is 0 if the convo was never updated, and
+     * replyToConvo is 0 if it is not a reply.
+     */
+    public Convo(long id, long sender, long recipient, String subject, String body, boolean wasRead, long threadId, long sendTime, long updateTime, long replyToConvo)
+    {
+        this(id, sender, recipient, subject, body, null, wasRead, threadId, sendTime, updateTime, replyToConvo);
+    }
+
+    public Convo(long id, long sender, long recipient, String subject, String body, String snippet, boolean wasRead, long threadId, long sendTime, long updateTime, long replyToConvo)
+    {
+        this(id, sender, recipient, subject, body, null, snippet, wasRead, threadId, sendTime, updateTime, replyToConvo);
+    }
+
+    private Convo(long id, long sender, long recipient, String subject, String body, byte[] compressedBody, String snippet, boolean wasRead, long threadId, long sendTime, long updateTime, long replyToConvo)
     {
         this.id = id;
         this.sender = sender;
         this.recipient = recipient;
         this.subject = subject;
         this.body = body;
+        this.compressedBody = compressedBody;
+        this.snippet = snippet;
         this.wasRead = wasRead;
         this.threadId = threadId;
         this.sendTime = sendTime;
@@ -29,6 +48,15 @@ public class Convo
         this.replyToConvo = replyToConvo;
     }
 
+    /**
+     * A convo whose body is kept compressed as stored (see {@link BodyCodec}), and only
+     * decompressed when {@link #getBody} is called, e.g. when the convo is written out.
+     */
+    public static Convo withCompressedBody(long id, long sender, long recipient, String subject, byte[] compressedBody, boolean wasRead, long threadId, long sendTime, long updateTime, long replyToConvo)
+    {
+        return new Convo(id, sender, recipient, subject, null, compressedBody, null, wasRead, threadId, sendTime, updateTime, replyToConvo);
+    }
+
     public long getId()
     {
         return id;
@@ -49,9 +77,23 @@ public class Convo
         return subject;
     }
 
+    /**
+     * Full body text, or null in summary listings. A compressed body is decompressed on every
+     * call.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     public String getBody()
     {
-        return body;
+        return compressedBody != null ? BodyCodec.decompress(compressedBody) : body;
+    }
+
+    /**
+     * Start of the body, only set in summary listings.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getSnippet()
+    {
+        return snippet;
     }
 
     public boolean isWasRead()
@@ -64,19 +106,24 @@ public class Convo
         return threadId;
     }
 
-    public DateTime getSendTime()
+    @JsonSerialize(using = EpochMillisSerializer.class)
+    public long getSendTime()
     {
         return sendTime;
     }
 
-    public DateTime getUpdateTime()
+    /**
+     * Last update time, or 0 if the convo was never updated, which is written as null.
+     */
+    @JsonSerialize(using = EpochMillisSerializer.class)
+    public long getUpdateTime()
     {
         return updateTime;
     }
 
     public Long getReplyToConvo()
     {
-        return replyToConvo;
+        return replyToConvo != 0 ? replyToConvo : null;
     }
 
 
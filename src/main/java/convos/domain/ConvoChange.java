@@ -0,0 +1,63 @@
+package convos.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * The current state of a convo in one of a user's mailboxes, reported because it was created
+ * or changed after the client's sync token. Deleted convos are tombstones: the ID and mailbox
+ * only.
+ */
+public class ConvoChange
+{
+    private final long id;
+    private final boolean sent;
+    private final boolean deleted;
+    private final Convo convo;
+    private final long changeTxid;
+
+    public ConvoChange(long id, boolean sent, boolean deleted, Convo convo, long changeTxid)
+    {
+        this.id = id;
+        this.sent = sent;
+        this.deleted = deleted;
+        this.convo = deleted ? null : convo;
+        this.changeTxid = changeTxid;
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return "sent" or "received"
+     */
+    public String getMailbox()
+    {
+        return sent ? "sent" : "received";
+    }
+
+    @JsonIgnore
+    public boolean isSent()
+    {
+        return sent;
+    }
+
+    public boolean isDeleted()
+    {
+        return deleted;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Convo getConvo()
+    {
+        return convo;
+    }
+
+    @JsonIgnore
+    public long getChangeTxid()
+    {
+        return changeTxid;
+    }
+}
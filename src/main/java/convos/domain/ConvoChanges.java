@@ -0,0 +1,29 @@
+package convos.domain;
+
+import java.util.List;
+
+/**
+ * A page of changes as read from the database, with the transaction horizon of the snapshot it
+ * was read in: every transaction below it had finished, so no change below it can still appear.
+ */
+public class ConvoChanges
+{
+    private final List<ConvoChange> changes;
+    private final long horizon;
+
+    public ConvoChanges(List<ConvoChange> changes, long horizon)
+    {
+        this.changes = changes;
+        this.horizon = horizon;
+    }
+
+    public List<ConvoChange> getChanges()
+    {
+        return changes;
+    }
+
+    public long getHorizon()
+    {
+        return horizon;
+    }
+}
@@ -0,0 +1,133 @@
+package convos.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A change to one of a user's convos, pushed to their open streams. Events carry IDs only;
+ * clients fetch the convo itself if they need it.
+ *
+ * Events travel between nodes as database notification payloads, packed as
+ * "{code},{userId},{convoId},{threadId}" and joined with ';'.
+ */
+public class ConvoEvent
+{
+    public enum Type
+    {
+        /** The user received a new convo. */
+        RECEIVED("received", 'r'),
+        /** The user marked a received convo read. */
+        READ("read", 'a'),
+        /** The user marked a received convo unread. */
+        UNREAD("unread", 'u'),
+        /** The user deleted a convo they sent or received. */
+        DELETED("deleted", 'd');
+
+        private final String val;
+        private final char code;
+
+        Type(String val, char code)
+        {
+            this.val = val;
+            this.code = code;
+        }
+
+        @JsonValue
+        public String getVal()
+        {
+            return val;
+        }
+
+        static Type fromCode(char code)
+        {
+            for (Type t : Type.values()) {
+                if (t.code == code) {
+                    return t;
+                }
+            }
+            throw new IllegalArgumentException("Unknown event code " + code);
+        }
+    }
+
+    private final Type type;
+    private final long userId;
+    private final long convoId;
+    private final long threadId;
+
+    public ConvoEvent(Type type, long userId, long convoId, long threadId)
+    {
+        this.type = type;
+        this.userId = userId;
+        this.convoId = convoId;
+        this.threadId = threadId;
+    }
+
+    /**
+     * Pack events into payloads of at most maxLength characters each.
+     */
+    public static List<String> encode(List<ConvoEvent> events, int maxLength)
+    {
+        List<String> payloads = new ArrayList<>();
+        StringBuilder payload = new StringBuilder();
+        for (ConvoEvent e : events) {
+            String encoded = e.type.code + "," + e.userId + "," + e.convoId + "," + e.threadId;
+            if (payload.length() > 0 && payload.length() + 1 + encoded.length() > maxLength) {
+                payloads.add(payload.toString());
+                payload.setLength(0);
+            }
+            if (payload.length() > 0) {
+                payload.append(';');
+            }
+            payload.append(encoded);
+        }
+        if (payload.length() > 0) {
+            payloads.add(payload.toString());
+        }
+        return payloads;
+    }
+
+    /**
+     * Unpack a payload written by {@link #encode}.
+     * @throws IllegalArgumentException if it is malformed
+     */
+    public static List<ConvoEvent> decode(String payload)
+    {
+        List<ConvoEvent> events = new ArrayList<>();
+        for (String encoded : payload.split(";")) {
+            String[] parts = encoded.split(",");
+            if (parts.length != 4 || parts[0].length() != 1) {
+                throw new IllegalArgumentException("Malformed event " + encoded);
+            }
+            events.add(new ConvoEvent(Type.fromCode(parts[0].charAt(0)),
+                    Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+        }
+        return events;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * The user whose streams get the event; always the user the stream belongs to.
+     */
+    @JsonIgnore
+    public long getUserId()
+    {
+        return userId;
+    }
+
+    public long getConvoId()
+    {
+        return convoId;
+    }
+
+    public long getThreadId()
+    {
+        return threadId;
+    }
+}
@@ -0,0 +1,38 @@
+package convos.domain;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * How much of each convo a listing returns.
+ */
+public enum ConvoView
+{
+    /** Every field, including the full body. */
+    FULL("full"),
+    /** Every field except the body, which is replaced by a short snippet. */
+    SUMMARY("summary");
+
+    private final String val;
+
+    ConvoView(String val)
+    {
+        this.val = val;
+    }
+
+    @JsonValue
+    public String getVal()
+    {
+        return val;
+    }
+
+    @JsonCreator
+    public static ConvoView fromJson(String val) {
+        for (ConvoView v : ConvoView.values()) {
+            if (v.getVal().equals(val)) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("Invalid view.");
+    }
+}
@@ -1,22 +1,43 @@
 package convos.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.util.List;
 
-public class ConvosResponse
+public class ConvosResponse implements MailboxListing<ConvosResponse>
 {
     private final int total;
     private final List<Convo> convos;
     private final int offset;
     private final String next;
     private final String previous;
+    private final String nextCursor;
+    private final String previousCursor;
+    private final Long mailboxVersion;
 
     public ConvosResponse(int total, List<Convo> convos, int offset, String next, String previous)
+    {
+        this(total, convos, offset, next, previous, null, null);
+    }
+
+    public ConvosResponse(int total, List<Convo> convos, int offset, String next, String previous,
+                          String nextCursor, String previousCursor)
+    {
+        this(total, convos, offset, next, previous, nextCursor, previousCursor, null);
+    }
+
+    private ConvosResponse(int total, List<Convo> convos, int offset, String next, String previous,
+                           String nextCursor, String previousCursor, Long mailboxVersion)
     {
         this.total = total;
         this.convos = convos;
         this.offset = offset;
         this.next = next;
         this.previous = previous;
+        this.nextCursor = nextCursor;
+        this.previousCursor = previousCursor;
+        this.mailboxVersion = mailboxVersion;
     }
 
     public int getTotal()
@@ -43,4 +64,29 @@ public class ConvosResponse
     {
         return previous;
     }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getNextCursor()
+    {
+        return nextCursor;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getPreviousCursor()
+    {
+        return previousCursor;
+    }
+
+    @Override
+    @JsonIgnore
+    public Long getMailboxVersion()
+    {
+        return mailboxVersion;
+    }
+
+    @Override
+    public ConvosResponse withMailboxVersion(long mailboxVersion)
+    {
+        return new ConvosResponse(total, convos, offset, next, previous, nextCursor, previousCursor, mailboxVersion);
+    }
 }
@@ -22,14 +22,19 @@ public class CreateConvo
     {
         this.sender = sender;
         this.recipient = recipient;
+        checkLengths(subject, body);
+        this.subject = subject;
+        this.body = body;
+    }
+
+    static void checkLengths(String subject, String body)
+    {
         if (subject.length() > MAX_SUBJECT_LENGTH) {
             throw new IllegalArgumentException(String.format("Subject can be at most %d characters long.", MAX_SUBJECT_LENGTH));
         }
-        this.subject = subject;
         if (body.length() > MAX_BODY_LENGTH) {
             throw new IllegalArgumentException(String.format("Body can be at most %d characters long.", MAX_BODY_LENGTH));
         }
-        this.body = body;
     }
 
     public long getSender()
@@ -0,0 +1,33 @@
+package convos.domain;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.io.IOException;
+
+/**
+ * Writes an epoch-millis time exactly as the Joda module writes a DateTime: a number when
+ * WRITE_DATES_AS_TIMESTAMPS is enabled, otherwise an ISO-8601 string in UTC. 0 stands for
+ * "no time" and is written as null, so getters can return a primitive long.
+ */
+public class EpochMillisSerializer extends JsonSerializer<Long>
+{
+    private static final DateTimeFormatter ISO = ISODateTimeFormat.dateTime().withZoneUTC();
+
+    @Override
+    public void serialize(Long value, JsonGenerator gen, SerializerProvider provider) throws IOException
+    {
+        final long millis = value;
+        if (millis == 0) {
+            gen.writeNull();
+        } else if (provider.isEnabled(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)) {
+            gen.writeNumber(millis);
+        } else {
+            gen.writeString(ISO.print(millis));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package convos.domain;
+
+/**
+ * Per-user mailbox totals, kept in step with convo.convo so listings don't need a count(*), and
+ * the mailbox version, which goes up with every change to them.
+ */
+public class MailboxCounters
+{
+    private final int received;
+    private final int sent;
+    private final int unread;
+    private final int threads;
+    private final long version;
+
+    public MailboxCounters(int received, int sent, int unread, int threads)
+    {
+        this(received, sent, unread, threads, 0L);
+    }
+
+    public MailboxCounters(int received, int sent, int unread, int threads, long version)
+    {
+        this.received = received;
+        this.sent = sent;
+        this.unread = unread;
+        this.threads = threads;
+        this.version = version;
+    }
+
+    public int getReceived()
+    {
+        return received;
+    }
+
+    public int getSent()
+    {
+        return sent;
+    }
+
+    public int getUnread()
+    {
+        return unread;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @return How many times the user's mailbox has changed; 0 if it never has.
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+}
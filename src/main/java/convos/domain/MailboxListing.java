@@ -0,0 +1,17 @@
+package convos.domain;
+
+/**
+ * A page of one user's mailbox, tagged with the mailbox version it was read at.
+ */
+public interface MailboxListing<T extends MailboxListing<T>>
+{
+    /**
+     * @return The version the page was read at, or null if it wasn't read with one.
+     */
+    Long getMailboxVersion();
+
+    /**
+     * @return A copy of this listing tagged with the given version.
+     */
+    T withMailboxVersion(long mailboxVersion);
+}
@@ -0,0 +1,79 @@
+package convos.domain;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in a listing ordered by (send_time, id), handed to clients as an opaque string.
+ *
+ * A cursor either points "after" a convo (the next page continues past it in the
+ * requested direction) or "before" a convo (the previous page ends just ahead of it).
+ */
+public class PageCursor
+{
+    private static final String AFTER = "a";
+    private static final String BEFORE = "b";
+
+    private final long sendTime;
+    private final long id;
+    private final boolean before;
+
+    public PageCursor(long sendTime, long id, boolean before)
+    {
+        this.sendTime = sendTime;
+        this.id = id;
+        this.before = before;
+    }
+
+    public static PageCursor after(Convo convo)
+    {
+        return new PageCursor(convo.getSendTime(), convo.getId(), false);
+    }
+
+    public static PageCursor before(Convo convo)
+    {
+        return new PageCursor(convo.getSendTime(), convo.getId(), true);
+    }
+
+    /**
+     * Parse a cursor previously returned by {@link #encode()}.
+     * @param encoded The opaque cursor string. Empty means "start from the first page".
+     * @return The cursor, or null for the first page.
+     */
+    public static PageCursor decode(String encoded)
+    {
+        if (encoded == null || encoded.isEmpty()) {
+            return null;
+        }
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8).split(":");
+            if (parts.length != 3 || !(AFTER.equals(parts[0]) || BEFORE.equals(parts[0]))) {
+                throw new BadRequestException("Invalid cursor.");
+            }
+            return new PageCursor(Long.parseLong(parts[1]), Long.parseLong(parts[2]), BEFORE.equals(parts[0]));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor.");
+        }
+    }
+
+    public String encode()
+    {
+        String raw = (before ? BEFORE : AFTER) + ":" + sendTime + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public long getSendTime()
+    {
+        return sendTime;
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    public boolean isBefore()
+    {
+        return before;
+    }
+}
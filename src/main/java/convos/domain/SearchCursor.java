@@ -0,0 +1,68 @@
+package convos.domain;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in search results ordered by (rank, id), best match first, handed to clients as an
+ * opaque string. A convo's rank for a query never changes, so a cursor keeps its place while
+ * other convos arrive or are deleted.
+ */
+public class SearchCursor
+{
+    private static final String PREFIX = "s";
+
+    private final float rank;
+    private final long id;
+
+    public SearchCursor(float rank, long id)
+    {
+        this.rank = rank;
+        this.id = id;
+    }
+
+    public static SearchCursor after(SearchHit hit)
+    {
+        return new SearchCursor(hit.getRank(), hit.getConvo().getId());
+    }
+
+    /**
+     * Parse a cursor previously returned by {@link #encode()}.
+     * @param encoded The opaque cursor string. Empty means "start from the first page".
+     * @return The cursor, or null for the first page.
+     */
+    public static SearchCursor decode(String encoded)
+    {
+        if (encoded == null || encoded.isEmpty()) {
+            return null;
+        }
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8).split(":");
+            if (parts.length != 3 || !PREFIX.equals(parts[0])) {
+                throw new BadRequestException("Invalid cursor.");
+            }
+            return new SearchCursor(Float.parseFloat(parts[1]), Long.parseLong(parts[2]));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor.");
+        }
+    }
+
+    /**
+     * The rank is written with Float.toString, which parses back to exactly the same float.
+     */
+    public String encode()
+    {
+        String raw = PREFIX + ":" + rank + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public float getRank()
+    {
+        return rank;
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+}
@@ -0,0 +1,26 @@
+package convos.domain;
+
+/**
+ * A convo matching a search, with its rank for the query.
+ */
+public class SearchHit
+{
+    private final Convo convo;
+    private final float rank;
+
+    public SearchHit(Convo convo, float rank)
+    {
+        this.convo = convo;
+        this.rank = rank;
+    }
+
+    public Convo getConvo()
+    {
+        return convo;
+    }
+
+    public float getRank()
+    {
+        return rank;
+    }
+}
@@ -0,0 +1,40 @@
+package convos.domain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * A page of search results, best match first. There is no total: counting every match would
+ * cost as much as ranking them all.
+ */
+public class SearchResponse
+{
+    private final List<Convo> convos;
+    private final String next;
+    private final String nextCursor;
+
+    public SearchResponse(List<Convo> convos, String next, String nextCursor)
+    {
+        this.convos = convos;
+        this.next = next;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Convo> getConvos()
+    {
+        return convos;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getNext()
+    {
+        return next;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getNextCursor()
+    {
+        return nextCursor;
+    }
+}
@@ -21,6 +21,14 @@ public enum SortDirection
         return val;
     }
 
+    /**
+     * The opposite direction, used when walking backwards from a page cursor.
+     */
+    public SortDirection reverse()
+    {
+        return this == ASCENDING ? DESCENDING : ASCENDING;
+    }
+
     @JsonCreator
     public static SortDirection fromJson(String val) {
         for (SortDirection d : SortDirection.values()) {
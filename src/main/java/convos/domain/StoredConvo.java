@@ -0,0 +1,52 @@
+package convos.domain;
+
+/**
+ * A convo as stored, along with which of its two participants have deleted it.
+ * Used to decide who may still see a convo without going back to the database.
+ */
+public class StoredConvo
+{
+    private final Convo convo;
+    private final boolean deletedBySender;
+    private final boolean deletedByRecipient;
+
+    public StoredConvo(Convo convo, boolean deletedBySender, boolean deletedByRecipient)
+    {
+        this.convo = convo;
+        this.deletedBySender = deletedBySender;
+        this.deletedByRecipient = deletedByRecipient;
+    }
+
+    public Convo getConvo()
+    {
+        return convo;
+    }
+
+    public boolean isDeletedBySender()
+    {
+        return deletedBySender;
+    }
+
+    public boolean isDeletedByRecipient()
+    {
+        return deletedByRecipient;
+    }
+
+    /**
+     * @param userId
+     * @return The convo if the user sent it and has not deleted it, otherwise null.
+     */
+    public Convo sentBy(final long userId)
+    {
+        return convo.getSender() == userId && !deletedBySender ? convo : null;
+    }
+
+    /**
+     * @param userId
+     * @return The convo if the user received it and has not deleted it, otherwise null.
+     */
+    public Convo receivedBy(final long userId)
+    {
+        return convo.getRecipient() == userId && !deletedByRecipient ? convo : null;
+    }
+}
@@ -0,0 +1,37 @@
+package convos.domain;
+
+import java.util.List;
+
+/**
+ * What one long poll of a user's stream returns: the events since the given cursor, possibly
+ * none if the poll timed out, and the cursor to poll with next. When resync is set, events may
+ * have been missed; the client should re-read its listings before polling again.
+ */
+public class StreamResponse
+{
+    private final List<ConvoEvent> events;
+    private final String cursor;
+    private final boolean resync;
+
+    public StreamResponse(List<ConvoEvent> events, String cursor, boolean resync)
+    {
+        this.events = events;
+        this.cursor = cursor;
+        this.resync = resync;
+    }
+
+    public List<ConvoEvent> getEvents()
+    {
+        return events;
+    }
+
+    public String getCursor()
+    {
+        return cursor;
+    }
+
+    public boolean isResync()
+    {
+        return resync;
+    }
+}
@@ -0,0 +1,72 @@
+package convos.domain;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in a user's changes, ordered by (change_txid, id, side), handed to clients as an
+ * opaque string. A convo the user sent to themselves changes on both sides at once; the side
+ * breaks the tie, received first.
+ */
+public class SyncToken
+{
+    private static final String PREFIX = "k";
+
+    private final long txid;
+    private final long id;
+    private final boolean sent;
+
+    public SyncToken(long txid, long id, boolean sent)
+    {
+        this.txid = txid;
+        this.id = id;
+        this.sent = sent;
+    }
+
+    public static SyncToken after(ConvoChange change)
+    {
+        return new SyncToken(change.getChangeTxid(), change.getId(), change.isSent());
+    }
+
+    /**
+     * Parse a token previously returned by {@link #encode()}.
+     * @param encoded The opaque token string. Empty means "no token yet".
+     * @return The token, or null if there is none.
+     */
+    public static SyncToken decode(String encoded)
+    {
+        if (encoded == null || encoded.isEmpty()) {
+            return null;
+        }
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8).split(":");
+            if (parts.length != 4 || !PREFIX.equals(parts[0]) || !(parts[3].equals("0") || parts[3].equals("1"))) {
+                throw new BadRequestException("Invalid sync token.");
+            }
+            return new SyncToken(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3].equals("1"));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid sync token.");
+        }
+    }
+
+    public String encode()
+    {
+        String raw = PREFIX + ":" + txid + ":" + id + ":" + (sent ? "1" : "0");
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public long getTxid()
+    {
+        return txid;
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    public boolean isSent()
+    {
+        return sent;
+    }
+}
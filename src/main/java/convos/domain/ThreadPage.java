@@ -0,0 +1,33 @@
+package convos.domain;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page of threads as read from the database, each as its latest convo, with how many unread
+ * convos the user has in each, read by the same statement.
+ */
+public class ThreadPage
+{
+    private final List<Convo> threads;
+    private final Map<Long, Integer> unreadCounts;
+
+    public ThreadPage(List<Convo> threads, Map<Long, Integer> unreadCounts)
+    {
+        this.threads = threads;
+        this.unreadCounts = unreadCounts;
+    }
+
+    public List<Convo> getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @return Unread counts keyed by thread ID, one for every thread of the page.
+     */
+    public Map<Long, Integer> getUnreadCounts()
+    {
+        return unreadCounts;
+    }
+}
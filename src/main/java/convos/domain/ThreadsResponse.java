@@ -1,22 +1,55 @@
 package convos.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.util.List;
+import java.util.Map;
 
-public class ThreadsResponse
+public class ThreadsResponse implements MailboxListing<ThreadsResponse>
 {
     private final int total;
     private final List<Convo> convos;
     private final int offset;
     private final String next;
     private final String previous;
+    private final String nextCursor;
+    private final String previousCursor;
+    private final Map<Long, Integer> unreadCounts;
+    private final Long mailboxVersion;
 
     public ThreadsResponse(int total, List<Convo> convos, int offset, String next, String previous)
+    {
+        this(total, convos, offset, next, previous, null, null);
+    }
+
+    public ThreadsResponse(int total, List<Convo> convos, int offset, String next, String previous,
+                           String nextCursor, String previousCursor)
+    {
+        this(total, convos, offset, next, previous, nextCursor, previousCursor, null);
+    }
+
+    /**
+     * @param unreadCounts How many unread convos the user has in each thread of the page, keyed by thread ID.
+     */
+    public ThreadsResponse(int total, List<Convo> convos, int offset, String next, String previous,
+                           String nextCursor, String previousCursor, Map<Long, Integer> unreadCounts)
+    {
+        this(total, convos, offset, next, previous, nextCursor, previousCursor, unreadCounts, null);
+    }
+
+    private ThreadsResponse(int total, List<Convo> convos, int offset, String next, String previous,
+                            String nextCursor, String previousCursor, Map<Long, Integer> unreadCounts, Long mailboxVersion)
     {
         this.total = total;
         this.convos = convos;
         this.offset = offset;
         this.next = next;
         this.previous = previous;
+        this.nextCursor = nextCursor;
+        this.previousCursor = previousCursor;
+        this.unreadCounts = unreadCounts;
+        this.mailboxVersion = mailboxVersion;
     }
 
     public int getTotal()
@@ -43,4 +76,35 @@ public class ThreadsResponse
     {
         return previous;
     }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getNextCursor()
+    {
+        return nextCursor;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getPreviousCursor()
+    {
+        return previousCursor;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Map<Long, Integer> getUnreadCounts()
+    {
+        return unreadCounts;
+    }
+
+    @Override
+    @JsonIgnore
+    public Long getMailboxVersion()
+    {
+        return mailboxVersion;
+    }
+
+    @Override
+    public ThreadsResponse withMailboxVersion(long mailboxVersion)
+    {
+        return new ThreadsResponse(total, convos, offset, next, previous, nextCursor, previousCursor, unreadCounts, mailboxVersion);
+    }
 }
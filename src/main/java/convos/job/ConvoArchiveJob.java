@@ -0,0 +1,92 @@
+package convos.job;
+
+import convos.dao.ConvoDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves convos older than convos.archive.after-days from convo.convo to convo.convo_archive.
+ *
+ * Runs at startup when the service is launched with --archive-convos, typically once a day.
+ * Convos are moved oldest first, a batch per short transaction, so this is safe to run while
+ * the service is taking traffic, and stopping it part way leaves the tables consistent.
+ */
+@Component
+public class ConvoArchiveJob implements CommandLineRunner
+{
+    private static final Logger logger = LoggerFactory.getLogger(ConvoArchiveJob.class);
+
+    static final String ARG = "--archive-convos";
+    private static final int BATCH_SIZE = 1000;
+    private static final int ATTEMPTS = 3;
+
+    @Value("${convos.archive.after-days:180}") int afterDays;
+
+    @Autowired ConvoDao convoDao;
+    @Autowired PlatformTransactionManager transactionManager;
+
+    @Override
+    public void run(String... args)
+    {
+        for (String arg : args) {
+            if (arg.equals(ARG)) {
+                archive(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(afterDays));
+            }
+        }
+    }
+
+    /**
+     * @param sentBefore Archive convos sent before this time, as epoch millis
+     */
+    public void archive(final long sentBefore)
+    {
+        logger.info("Archiving convos sent more than {} days ago", afterDays);
+        long archived = 0;
+        int moved;
+        do {
+            moved = batch(sentBefore);
+            archived += moved;
+            if (archived % (100 * BATCH_SIZE) < moved) {
+                logger.info("Archived {} convos", archived);
+            }
+        } while (moved == BATCH_SIZE);
+        logger.info("Archived {} convos, done", archived);
+    }
+
+    /**
+     * Move one batch in its own transaction. It locks its convos in send time order, and a
+     * thread delete may lock the same convos in another order, so a batch that loses a
+     * deadlock is tried again.
+     */
+    private int batch(final long sentBefore)
+    {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new TransactionTemplate(transactionManager).execute(new TransactionCallback<Integer>()
+                {
+                    @Override
+                    public Integer doInTransaction(TransactionStatus status)
+                    {
+                        return convoDao.archive(sentBefore, BATCH_SIZE);
+                    }
+                });
+            } catch (ConcurrencyFailureException e) {
+                if (attempt == ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn("Retrying convo archive batch", e);
+            }
+        }
+    }
+}
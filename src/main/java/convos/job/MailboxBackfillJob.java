@@ -0,0 +1,95 @@
+package convos.job;
+
+import convos.dao.ConvoDao;
+import convos.dao.MailboxDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Copies existing convos into the per-user mailbox partitions, for databases that predate them.
+ *
+ * Runs at startup when the service is launched with --backfill-mailboxes, or with
+ * --backfill-mailboxes={convoId} to resume after the given convo ID (the last one logged).
+ * Convos are copied in ID order, hot and archived alike, a range of IDs per short transaction,
+ * so this is safe to run while the service is taking traffic. Start it once every node runs a
+ * version that writes the partitions itself, and turn on convos.mailbox.partitioned-reads once
+ * it has finished.
+ */
+@Component
+public class MailboxBackfillJob implements CommandLineRunner
+{
+    private static final Logger logger = LoggerFactory.getLogger(MailboxBackfillJob.class);
+
+    static final String ARG = "--backfill-mailboxes";
+    private static final int BATCH_SIZE = 1000;
+    private static final int ATTEMPTS = 3;
+
+    @Autowired ConvoDao convoDao;
+    @Autowired MailboxDao mailboxDao;
+    @Autowired PlatformTransactionManager transactionManager;
+
+    @Override
+    public void run(String... args)
+    {
+        for (String arg : args) {
+            if (arg.equals(ARG)) {
+                backfill(0);
+            } else if (arg.startsWith(ARG + "=")) {
+                backfill(Long.parseLong(arg.substring(ARG.length() + 1)));
+            }
+        }
+    }
+
+    /**
+     * @param afterConvoId Copy convos with a greater ID
+     */
+    public void backfill(final long afterConvoId)
+    {
+        // Convos created from here on are written to the partitions by the service itself
+        final long last = convoDao.lastConvoId();
+        logger.info("Backfilling mailbox partitions from convo {} to {}", afterConvoId, last);
+        long batches = 0;
+        for (long after = afterConvoId; after < last; after += BATCH_SIZE) {
+            batch(after, Math.min(after + BATCH_SIZE, last));
+            if (++batches % 100 == 0) {
+                logger.info("Backfilled mailbox partitions up to convo {}", Math.min(after + BATCH_SIZE, last));
+            }
+        }
+        logger.info("Backfilled mailbox partitions up to convo {}, done", last);
+    }
+
+    /**
+     * Copy one range of IDs in its own transaction. It locks its convos in ID order, and a
+     * thread delete may lock the same convos in another order, so a batch that loses a
+     * deadlock is tried again.
+     */
+    private void batch(final long after, final long through)
+    {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult()
+                {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status)
+                    {
+                        mailboxDao.backfill(after, through);
+                    }
+                });
+                return;
+            } catch (ConcurrencyFailureException e) {
+                if (attempt == ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn("Retrying mailbox backfill of convos {} to {}", after + 1, through, e);
+            }
+        }
+    }
+}
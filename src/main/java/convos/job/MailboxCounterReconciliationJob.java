@@ -0,0 +1,76 @@
+package convos.job;
+
+import convos.dao.ConvoDao;
+import convos.dao.MailboxCounterDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+/**
+ * Rebuilds convo.mailbox_counter from the convos, hot and archived.
+ *
+ * Runs at startup when the service is launched with --reconcile-counters (every user)
+ * or --reconcile-counters={userId} (a single user). Each user is rebuilt in its own
+ * short transaction, so this is safe to run while the service is taking traffic.
+ */
+@Component
+public class MailboxCounterReconciliationJob implements CommandLineRunner
+{
+    private static final Logger logger = LoggerFactory.getLogger(MailboxCounterReconciliationJob.class);
+
+    static final String ARG = "--reconcile-counters";
+    private static final int BATCH_SIZE = 1000;
+
+    @Autowired ConvoDao convoDao;
+    @Autowired MailboxCounterDao counterDao;
+    @Autowired PlatformTransactionManager transactionManager;
+
+    @Override
+    public void run(String... args)
+    {
+        for (String arg : args) {
+            if (arg.equals(ARG)) {
+                rebuildAll();
+            } else if (arg.startsWith(ARG + "=")) {
+                rebuild(Long.parseLong(arg.substring(ARG.length() + 1)));
+            }
+        }
+    }
+
+    public void rebuildAll()
+    {
+        logger.info("Rebuilding mailbox counters for all users");
+        long after = Long.MIN_VALUE;
+        int rebuilt = 0;
+        List<Long> userIds = convoDao.getUserIds(after, BATCH_SIZE);
+        while (!userIds.isEmpty()) {
+            for (long userId : userIds) {
+                rebuild(userId);
+            }
+            rebuilt += userIds.size();
+            after = userIds.get(userIds.size() - 1);
+            logger.info("Rebuilt mailbox counters for {} users", rebuilt);
+            userIds = convoDao.getUserIds(after, BATCH_SIZE);
+        }
+    }
+
+    public void rebuild(final long userId)
+    {
+        new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult()
+        {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status)
+            {
+                counterDao.rebuild(userId);
+            }
+        });
+    }
+}
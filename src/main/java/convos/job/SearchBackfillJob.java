@@ -0,0 +1,92 @@
+package convos.job;
+
+import convos.dao.ConvoDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Fills in the search vector of convos written before convos had one, so they show up in
+ * searches.
+ *
+ * Runs at startup when the service is launched with --backfill-search, or with
+ * --backfill-search={convoId} to resume after the given convo ID (the last one logged).
+ * Convos are indexed in ID order, hot and archived alike, a range of IDs per short
+ * transaction, so this is safe to run while the service is taking traffic. Start it once
+ * every node runs a version that indexes new convos itself.
+ */
+@Component
+public class SearchBackfillJob implements CommandLineRunner
+{
+    private static final Logger logger = LoggerFactory.getLogger(SearchBackfillJob.class);
+
+    static final String ARG = "--backfill-search";
+    private static final int BATCH_SIZE = 1000;
+    private static final int ATTEMPTS = 3;
+
+    @Autowired ConvoDao convoDao;
+    @Autowired PlatformTransactionManager transactionManager;
+
+    @Override
+    public void run(String... args)
+    {
+        for (String arg : args) {
+            if (arg.equals(ARG)) {
+                backfill(0);
+            } else if (arg.startsWith(ARG + "=")) {
+                backfill(Long.parseLong(arg.substring(ARG.length() + 1)));
+            }
+        }
+    }
+
+    /**
+     * @param afterConvoId Index convos with a greater ID
+     */
+    public void backfill(final long afterConvoId)
+    {
+        // Convos created from here on are indexed by the service itself
+        final long last = convoDao.lastConvoId();
+        logger.info("Indexing convos for search from convo {} to {}", afterConvoId, last);
+        long indexed = 0;
+        long batches = 0;
+        for (long after = afterConvoId; after < last; after += BATCH_SIZE) {
+            indexed += batch(after, Math.min(after + BATCH_SIZE, last));
+            if (++batches % 100 == 0) {
+                logger.info("Indexed {} convos for search, up to convo {}", indexed, Math.min(after + BATCH_SIZE, last));
+            }
+        }
+        logger.info("Indexed {} convos for search, up to convo {}, done", indexed, last);
+    }
+
+    /**
+     * Index one range of IDs in its own transaction, trying again if it loses a deadlock
+     * against a thread delete touching the same convos.
+     */
+    private int batch(final long after, final long through)
+    {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new TransactionTemplate(transactionManager).execute(new TransactionCallback<Integer>()
+                {
+                    @Override
+                    public Integer doInTransaction(TransactionStatus status)
+                    {
+                        return convoDao.indexForSearch(after, through);
+                    }
+                });
+            } catch (ConcurrencyFailureException e) {
+                if (attempt == ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn("Retrying search backfill of convos {} to {}", after + 1, through, e);
+            }
+        }
+    }
+}
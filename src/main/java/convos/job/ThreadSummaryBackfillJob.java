@@ -0,0 +1,77 @@
+package convos.job;
+
+import convos.dao.ConvoDao;
+import convos.dao.ThreadSummaryDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+/**
+ * Builds convo.thread_summary from existing convos, for databases that predate
+ * the table. Re-running it also repairs any summaries that have drifted.
+ *
+ * Runs at startup when the service is launched with --backfill-thread-summaries (every user)
+ * or --backfill-thread-summaries={userId} (a single user). Each user is rebuilt in its own
+ * short transaction, so this is safe to run while the service is taking traffic.
+ */
+@Component
+public class ThreadSummaryBackfillJob implements CommandLineRunner
+{
+    private static final Logger logger = LoggerFactory.getLogger(ThreadSummaryBackfillJob.class);
+
+    static final String ARG = "--backfill-thread-summaries";
+    private static final int BATCH_SIZE = 1000;
+
+    @Autowired ConvoDao convoDao;
+    @Autowired ThreadSummaryDao threadSummaryDao;
+    @Autowired PlatformTransactionManager transactionManager;
+
+    @Override
+    public void run(String... args)
+    {
+        for (String arg : args) {
+            if (arg.equals(ARG)) {
+                rebuildAll();
+            } else if (arg.startsWith(ARG + "=")) {
+                rebuild(Long.parseLong(arg.substring(ARG.length() + 1)));
+            }
+        }
+    }
+
+    public void rebuildAll()
+    {
+        logger.info("Backfilling thread summaries for all users");
+        long after = Long.MIN_VALUE;
+        int rebuilt = 0;
+        List<Long> userIds = convoDao.getUserIds(after, BATCH_SIZE);
+        while (!userIds.isEmpty()) {
+            for (long userId : userIds) {
+                rebuild(userId);
+            }
+            rebuilt += userIds.size();
+            after = userIds.get(userIds.size() - 1);
+            logger.info("Backfilled thread summaries for {} users", rebuilt);
+            userIds = convoDao.getUserIds(after, BATCH_SIZE);
+        }
+    }
+
+    public void rebuild(final long userId)
+    {
+        new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult()
+        {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status)
+            {
+                threadSummaryDao.rebuild(userId);
+            }
+        });
+    }
+}
@@ -0,0 +1,123 @@
+package convos.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import javax.sql.DataSource;
+
+/**
+ * Metrics for the service, kept in a Dropwizard {@link MetricRegistry} and exposed in
+ * Prometheus text format by {@link PrometheusEndpoint}.
+ *
+ * Endpoint and query timers come from {@link TimingAspect}. This adds JSON serialization
+ * timers, and gauges for the connection pool: active, idle and total connections, threads
+ * waiting for a connection, and a timer of how long they waited.
+ */
+@Configuration
+public class MetricsConfig
+{
+    static final String POOL = "datasource.pool";
+
+    @Bean
+    public MetricRegistry metricRegistry()
+    {
+        return new SummingMetricRegistry();
+    }
+
+    @Bean
+    public MappingJackson2HttpMessageConverter mappingJackson2HttpMessageConverter(ObjectMapper objectMapper, MetricRegistry registry)
+    {
+        return new TimedJacksonConverter(objectMapper, registry);
+    }
+
+    /**
+     * Wraps the connection pool so every connection checkout is timed, and registers the pool
+     * gauges. Everything that uses the pool, the transaction manager included, gets the same
+     * wrapper.
+     */
+    @Bean
+    public static BeanPostProcessor timedDataSourcePostProcessor(final ApplicationContext context)
+    {
+        return new BeanPostProcessor()
+        {
+            @Override
+            public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException
+            {
+                return bean;
+            }
+
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException
+            {
+                if (bean instanceof org.apache.tomcat.jdbc.pool.DataSource) {
+                    return instrument(context.getBean(MetricRegistry.class), POOL, (org.apache.tomcat.jdbc.pool.DataSource)bean);
+                }
+                return bean;
+            }
+        };
+    }
+
+    /**
+     * Time checkouts from a connection pool, and register gauges of its state.
+     * @param registry
+     * @param name Prefix of the metric names, e.g. "datasource.pool"
+     * @param pool
+     * @return The pool, wrapped so that checkouts are timed as {name}.wait
+     */
+    public static DataSource instrument(final MetricRegistry registry, final String name, final org.apache.tomcat.jdbc.pool.DataSource pool)
+    {
+        registerPoolGauges(registry, name, pool);
+        return new TimedDataSource(pool, registry.timer(MetricRegistry.name(name, "wait")));
+    }
+
+    private static void registerPoolGauges(final MetricRegistry registry, final String name, final org.apache.tomcat.jdbc.pool.DataSource pool)
+    {
+        registry.register(MetricRegistry.name(name, "active"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return pool.getActive();
+            }
+        });
+        registry.register(MetricRegistry.name(name, "idle"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return pool.getIdle();
+            }
+        });
+        registry.register(MetricRegistry.name(name, "size"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return pool.getSize();
+            }
+        });
+        registry.register(MetricRegistry.name(name, "max"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return pool.getMaxActive();
+            }
+        });
+        registry.register(MetricRegistry.name(name, "waiting"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return pool.getWaitCount();
+            }
+        });
+    }
+}
@@ -0,0 +1,101 @@
+package convos.metrics;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterDisposer;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.SqlProvider;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A NamedParameterJdbcTemplate that reports the latency of every statement it runs, along with
+ * its SQL and parameters, to a {@link SlowQueryLog}.
+ *
+ * Statements are timed from preparing to the last row being read. Batch updates are timed
+ * too, but with their JDBC "?" SQL and no parameters, so they can't be explained.
+ */
+public class ProfilingJdbcTemplate extends NamedParameterJdbcTemplate
+{
+    public ProfilingJdbcTemplate(final DataSource dataSource, final SlowQueryLog log)
+    {
+        super(new TimingJdbcTemplate(dataSource, log));
+    }
+
+    @Override
+    protected PreparedStatementCreator getPreparedStatementCreator(String sql, SqlParameterSource paramSource)
+    {
+        return new NamedStatement(super.getPreparedStatementCreator(sql, paramSource), sql, paramSource);
+    }
+
+    /**
+     * Carries the named SQL and its parameters through to the timing template. Delegates
+     * everything else, so JdbcTemplate still logs the SQL and cleans up the parameters.
+     */
+    private static class NamedStatement implements PreparedStatementCreator, SqlProvider, ParameterDisposer
+    {
+        private final PreparedStatementCreator target;
+        private final String sql;
+        private final SqlParameterSource params;
+
+        NamedStatement(final PreparedStatementCreator target, final String sql, final SqlParameterSource params)
+        {
+            this.target = target;
+            this.sql = sql;
+            this.params = params;
+        }
+
+        @Override
+        public PreparedStatement createPreparedStatement(Connection con) throws SQLException
+        {
+            return target.createPreparedStatement(con);
+        }
+
+        @Override
+        public String getSql()
+        {
+            return target instanceof SqlProvider ? ((SqlProvider)target).getSql() : sql;
+        }
+
+        @Override
+        public void cleanupParameters()
+        {
+            if (target instanceof ParameterDisposer) {
+                ((ParameterDisposer)target).cleanupParameters();
+            }
+        }
+    }
+
+    private static class TimingJdbcTemplate extends JdbcTemplate
+    {
+        private final SlowQueryLog log;
+
+        TimingJdbcTemplate(final DataSource dataSource, final SlowQueryLog log)
+        {
+            super(dataSource);
+            this.log = log;
+        }
+
+        @Override
+        public <T> T execute(PreparedStatementCreator psc, PreparedStatementCallback<T> action) throws DataAccessException
+        {
+            final long start = System.nanoTime();
+            try {
+                return super.execute(psc, action);
+            } finally {
+                final long elapsed = System.nanoTime() - start;
+                if (psc instanceof NamedStatement) {
+                    log.record(((NamedStatement)psc).sql, ((NamedStatement)psc).params, elapsed);
+                } else if (psc instanceof SqlProvider) {
+                    log.record(((SqlProvider)psc).getSql(), null, elapsed);
+                }
+            }
+        }
+    }
+}
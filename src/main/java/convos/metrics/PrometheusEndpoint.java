@@ -0,0 +1,132 @@
+package convos.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.Endpoint;
+import org.springframework.boot.actuate.endpoint.mvc.MvcEndpoint;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Actuator endpoint at /prometheus serving every metric in the registry in the Prometheus
+ * text exposition format, for scraping.
+ *
+ * Timers and histograms become summaries (timers in seconds) with 0.5, 0.95, 0.99 and 0.999
+ * quantiles over the registry's sliding window, plus _count and _sum since startup; meters
+ * become counters, and numeric gauges stay gauges. The _sum is exact for metrics from a
+ * {@link SummingMetricRegistry}, and estimated from the window's mean for any other. Names are prefixed with "convos_" and dots become underscores.
+ */
+@Component
+public class PrometheusEndpoint implements MvcEndpoint
+{
+    private static final double[] QUANTILES = {0.5, 0.95, 0.99, 0.999};
+    private static final double SECONDS_PER_NANO = 1.0 / TimeUnit.SECONDS.toNanos(1);
+
+    @Autowired MetricRegistry registry;
+
+    @Value("${endpoints.prometheus.sensitive:true}")
+    boolean sensitive;
+
+    @RequestMapping(method = RequestMethod.GET, produces = "text/plain; version=0.0.4")
+    @ResponseBody
+    public String metrics()
+    {
+        return format(registry);
+    }
+
+    @Override
+    public String getPath()
+    {
+        return "/prometheus";
+    }
+
+    @Override
+    public boolean isSensitive()
+    {
+        return sensitive;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Class<? extends Endpoint> getEndpointType()
+    {
+        return null;
+    }
+
+    static String format(final MetricRegistry registry)
+    {
+        final StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
+            Object value = entry.getValue().getValue();
+            if (value instanceof Number) {
+                String name = name(entry.getKey());
+                type(out, name, "gauge");
+                sample(out, name, "", ((Number)value).doubleValue());
+            }
+        }
+        for (Map.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
+            String name = name(entry.getKey());
+            type(out, name, "gauge");
+            sample(out, name, "", entry.getValue().getCount());
+        }
+        for (Map.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
+            String name = name(entry.getKey()) + "_total";
+            type(out, name, "counter");
+            sample(out, name, "", entry.getValue().getCount());
+        }
+        for (Map.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
+            Histogram histogram = entry.getValue();
+            Snapshot snapshot = histogram.getSnapshot();
+            double sum = histogram instanceof SummingMetricRegistry.SummingHistogram
+                    ? ((SummingMetricRegistry.SummingHistogram)histogram).getSum()
+                    : snapshot.getMean() * histogram.getCount();
+            summary(out, name(entry.getKey()), snapshot, histogram.getCount(), sum, 1.0);
+        }
+        for (Map.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
+            Timer timer = entry.getValue();
+            Snapshot snapshot = timer.getSnapshot();
+            double sum = timer instanceof SummingMetricRegistry.SummingTimer
+                    ? ((SummingMetricRegistry.SummingTimer)timer).getSum()
+                    : snapshot.getMean() * timer.getCount();
+            summary(out, name(entry.getKey()) + "_seconds", snapshot, timer.getCount(), sum, SECONDS_PER_NANO);
+        }
+        return out.toString();
+    }
+
+    private static void summary(final StringBuilder out, final String name, final Snapshot snapshot, final long count, final double sum, final double scale)
+    {
+        type(out, name, "summary");
+        for (double q : QUANTILES) {
+            sample(out, name, "{quantile=\"" + q + "\"}", snapshot.getValue(q) * scale);
+        }
+        sample(out, name + "_count", "", count);
+        sample(out, name + "_sum", "", sum * scale);
+    }
+
+    private static void type(final StringBuilder out, final String name, final String type)
+    {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(final StringBuilder out, final String name, final String labels, final double value)
+    {
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    static String name(final String metric)
+    {
+        return "convos_" + metric.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+}
@@ -0,0 +1,75 @@
+package convos.metrics;
+
+import java.util.List;
+
+/**
+ * A statement shape that has run over the slow query threshold, as reported by
+ * {@link SlowQueryLog#top()}. Times are in milliseconds.
+ */
+public class SlowQuery
+{
+    private final String sql;
+    private final long calls;
+    private final long slowCalls;
+    private final double meanMillis;
+    private final double maxMillis;
+    private final List<String> plan;
+    private final Long planCapturedAt;
+
+    public SlowQuery(final String sql, final long calls, final long slowCalls, final double meanMillis, final double maxMillis,
+                     final List<String> plan, final Long planCapturedAt)
+    {
+        this.sql = sql;
+        this.calls = calls;
+        this.slowCalls = slowCalls;
+        this.meanMillis = meanMillis;
+        this.maxMillis = maxMillis;
+        this.plan = plan;
+        this.planCapturedAt = planCapturedAt;
+    }
+
+    /**
+     * @return The statement with its named parameters, whitespace collapsed.
+     */
+    public String getSql()
+    {
+        return sql;
+    }
+
+    public long getCalls()
+    {
+        return calls;
+    }
+
+    public long getSlowCalls()
+    {
+        return slowCalls;
+    }
+
+    public double getMeanMillis()
+    {
+        return meanMillis;
+    }
+
+    public double getMaxMillis()
+    {
+        return maxMillis;
+    }
+
+    /**
+     * @return EXPLAIN (ANALYZE, BUFFERS) output for a slow execution, one line per entry,
+     * or null if none has been captured yet.
+     */
+    public List<String> getPlan()
+    {
+        return plan;
+    }
+
+    /**
+     * @return When the plan was captured, in epoch millis, or null.
+     */
+    public Long getPlanCapturedAt()
+    {
+        return planCapturedAt;
+    }
+}
@@ -0,0 +1,28 @@
+package convos.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Actuator endpoint at /slowqueries listing the worst statement shapes recorded by
+ * {@link SlowQueryLog}, with their plans. Sensitive, since plans include parameter values.
+ */
+@Component
+public class SlowQueryEndpoint extends AbstractEndpoint<List<SlowQuery>>
+{
+    @Autowired SlowQueryLog slowQueryLog;
+
+    public SlowQueryEndpoint()
+    {
+        super("slowqueries");
+    }
+
+    @Override
+    public List<SlowQuery> invoke()
+    {
+        return slowQueryLog.top();
+    }
+}
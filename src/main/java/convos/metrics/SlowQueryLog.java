@@ -0,0 +1,299 @@
+package convos.metrics;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.CharMatcher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Per-statement latency, and the plans of the worst statements.
+ *
+ * Statements are grouped by shape: their named SQL with whitespace collapsed, so every call of
+ * a DAO method with the same options counts as one shape whatever its parameters. When a call
+ * takes longer than the threshold, its shape joins the top-N worst offenders (by slowest call),
+ * pushing out the least bad one once full, and its plan is captured with the same parameters.
+ * Plain SELECTs are run again under EXPLAIN (ANALYZE, BUFFERS); anything that could write or
+ * lock rows (DML, WITH statements, SELECT ... FOR UPDATE) only gets the planner's estimate from
+ * plain EXPLAIN, so capturing a plan never repeats a write's work or its locks on the primary.
+ *
+ * Plans are captured on a single background thread, inside a read-only transaction that is
+ * always rolled back, and with a statement timeout. A shape
+ * is explained again only when a call is at least twice as slow as the explained one, and not
+ * more than once per interval. Captures that can't be queued are dropped.
+ */
+@Component
+public class SlowQueryLog
+{
+    private static final Logger logger = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    private static final int MAX_SHAPES = 1000;
+    private static final int EXPLAIN_QUEUE = 16;
+    private static final Pattern LOCKING = Pattern.compile("\\bFOR\\s+(NO\\s+KEY\\s+UPDATE|UPDATE|KEY\\s+SHARE|SHARE)\\b", Pattern.CASE_INSENSITIVE);
+
+    private final long thresholdNanos;
+    private final int top;
+    private final boolean explain;
+    private final long explainIntervalMillis;
+    private final long explainTimeoutMillis;
+
+    private final ConcurrentMap<String, Shape> shapes = new ConcurrentHashMap<>();
+    private final Map<String, Offender> offenders = new HashMap<>();
+    private final ThreadPoolExecutor explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(EXPLAIN_QUEUE),
+            new ThreadFactoryBuilder().setNameFormat("slow-query-explain").setDaemon(true).build());
+
+    private final Timer statements;
+    private final Meter slow;
+
+    @Autowired DataSource dataSource;
+    @Autowired PlatformTransactionManager transactionManager;
+
+    @Autowired
+    public SlowQueryLog(final MetricRegistry registry,
+                        @Value("${convos.slow-query.threshold-ms:250}") final long thresholdMillis,
+                        @Value("${convos.slow-query.top:20}") final int top,
+                        @Value("${convos.slow-query.explain:true}") final boolean explain,
+                        @Value("${convos.slow-query.explain-interval-seconds:300}") final long explainIntervalSeconds,
+                        @Value("${convos.slow-query.explain-timeout-ms:10000}") final long explainTimeoutMillis)
+    {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.top = top;
+        this.explain = explain;
+        this.explainIntervalMillis = TimeUnit.SECONDS.toMillis(explainIntervalSeconds);
+        this.explainTimeoutMillis = explainTimeoutMillis;
+        this.statements = registry.timer(MetricRegistry.name("sql", "statements"));
+        this.slow = registry.meter(MetricRegistry.name("sql", "slow"));
+    }
+
+    /**
+     * Record one execution of a statement.
+     * @param sql The statement as given to the template
+     * @param params Its parameters, or null if unknown, in which case it is never explained
+     * @param nanos How long it took
+     */
+    public void record(final String sql, final SqlParameterSource params, final long nanos)
+    {
+        statements.update(nanos, TimeUnit.NANOSECONDS);
+
+        final String shapeSql = CharMatcher.WHITESPACE.trimAndCollapseFrom(sql, ' ');
+        Shape shape = shapes.get(shapeSql);
+        if (shape == null && shapes.size() < MAX_SHAPES) {
+            shapes.putIfAbsent(shapeSql, new Shape());
+            shape = shapes.get(shapeSql);
+        }
+        if (shape != null) {
+            shape.record(nanos);
+        }
+
+        if (nanos >= thresholdNanos) {
+            slow.mark();
+            final Offender offender = offender(shapeSql, nanos);
+            if (offender != null && explain && params != null && explainable(shapeSql)) {
+                maybeExplain(offender, shapeSql, params, nanos);
+            }
+        }
+    }
+
+    /**
+     * @return The worst offenders, slowest call first.
+     */
+    public List<SlowQuery> top()
+    {
+        final List<SlowQuery> result = new ArrayList<>();
+        synchronized (offenders) {
+            for (Map.Entry<String, Offender> entry : offenders.entrySet()) {
+                Offender o = entry.getValue();
+                Shape shape = shapes.get(entry.getKey());
+                long calls = shape != null ? shape.count.get() : o.slowCalls;
+                double mean = shape != null && calls > 0 ? millis(shape.totalNanos.get()) / calls : millis(o.worstNanos);
+                result.add(new SlowQuery(entry.getKey(), calls, o.slowCalls, mean, millis(o.worstNanos),
+                        o.plan, o.plan != null ? o.planCapturedAt : null));
+            }
+        }
+        Collections.sort(result, new Comparator<SlowQuery>()
+        {
+            @Override
+            public int compare(SlowQuery a, SlowQuery b)
+            {
+                return Double.compare(b.getMaxMillis(), a.getMaxMillis());
+            }
+        });
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        explainer.shutdownNow();
+    }
+
+    /**
+     * Count a slow call against its shape, adding the shape to the offenders if there is room
+     * or it is worse than the least bad one.
+     * @return The shape's offender entry, or null if it didn't make the top-N.
+     */
+    private Offender offender(final String shapeSql, final long nanos)
+    {
+        synchronized (offenders) {
+            Offender offender = offenders.get(shapeSql);
+            if (offender == null) {
+                if (offenders.size() >= top) {
+                    Map.Entry<String, Offender> least = null;
+                    for (Map.Entry<String, Offender> entry : offenders.entrySet()) {
+                        if (least == null || entry.getValue().worstNanos < least.getValue().worstNanos) {
+                            least = entry;
+                        }
+                    }
+                    if (least == null || least.getValue().worstNanos >= nanos) {
+                        return null;
+                    }
+                    offenders.remove(least.getKey());
+                }
+                offender = new Offender();
+                offenders.put(shapeSql, offender);
+            }
+            offender.slowCalls++;
+            offender.worstNanos = Math.max(offender.worstNanos, nanos);
+            return offender;
+        }
+    }
+
+    private void maybeExplain(final Offender offender, final String shapeSql, final SqlParameterSource params, final long nanos)
+    {
+        synchronized (offenders) {
+            long now = System.currentTimeMillis();
+            boolean due = offender.plan == null
+                    || (nanos >= 2 * offender.explainedNanos && now - offender.planCapturedAt >= explainIntervalMillis);
+            if (offender.explaining || !due) {
+                return;
+            }
+            offender.explaining = true;
+            offender.explainedNanos = nanos;
+        }
+        try {
+            explainer.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    List<String> plan = explain(shapeSql, params);
+                    synchronized (offenders) {
+                        offender.plan = plan;
+                        offender.planCapturedAt = System.currentTimeMillis();
+                        offender.explaining = false;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The explainer is backed up; a later slow call can try again
+            synchronized (offenders) {
+                offender.explaining = false;
+            }
+        }
+    }
+
+    private List<String> explain(final String sql, final SqlParameterSource params)
+    {
+        final NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(dataSource);
+        try {
+            final TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+            transaction.setReadOnly(true);
+            return transaction.execute(new TransactionCallback<List<String>>()
+            {
+                @Override
+                public List<String> doInTransaction(TransactionStatus status)
+                {
+                    status.setRollbackOnly();
+                    template.getJdbcOperations().execute("SET LOCAL statement_timeout = " + explainTimeoutMillis);
+                    String explain = analyzable(sql) ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ";
+                    return template.queryForList(explain + sql, params, String.class);
+                }
+            });
+        } catch (DataAccessException e) {
+            logger.warn("Could not explain slow statement: {}", sql, e);
+            return Collections.singletonList("EXPLAIN failed: " + e.getMostSpecificCause().getMessage());
+        }
+    }
+
+    /**
+     * EXPLAIN only accepts queries and DML.
+     */
+    static boolean explainable(final String sql)
+    {
+        int end = sql.indexOf(' ');
+        String verb = (end < 0 ? sql : sql.substring(0, end)).toUpperCase();
+        return verb.equals("SELECT") || verb.equals("WITH") || verb.equals("INSERT")
+                || verb.equals("UPDATE") || verb.equals("DELETE");
+    }
+
+    /**
+     * Only plain SELECTs are safe to execute for their plan. A WITH statement may hide an INSERT,
+     * UPDATE or DELETE, and a locking SELECT would take its row locks again.
+     */
+    static boolean analyzable(final String sql)
+    {
+        int end = sql.indexOf(' ');
+        String verb = (end < 0 ? sql : sql.substring(0, end)).toUpperCase();
+        return verb.equals("SELECT") && !LOCKING.matcher(sql).find();
+    }
+
+    private static double millis(final long nanos)
+    {
+        return nanos / 1e6;
+    }
+
+    private static class Shape
+    {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+
+        void record(final long nanos)
+        {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+        }
+    }
+
+    /**
+     * Guarded by the offenders map.
+     */
+    private static class Offender
+    {
+        long slowCalls;
+        long worstNanos;
+        long explainedNanos;
+        boolean explaining;
+        List<String> plan;
+        long planCapturedAt;
+    }
+}
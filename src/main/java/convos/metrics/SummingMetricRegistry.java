@@ -0,0 +1,123 @@
+package convos.metrics;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metric registry whose timers and histograms also keep the running total of every value
+ * they were updated with, which Dropwizard doesn't, so {@link PrometheusEndpoint} can serve
+ * a summary's _sum along with its _count.
+ */
+public class SummingMetricRegistry extends MetricRegistry
+{
+    @Override
+    public Timer timer(final String name)
+    {
+        final Metric metric = getMetrics().get(name);
+        if (metric instanceof Timer) {
+            return (Timer)metric;
+        }
+        try {
+            return register(name, new SummingTimer());
+        }
+        catch (IllegalArgumentException e) {
+            // Registered by another thread meanwhile, or taken by a different type of metric
+            final Metric existing = getMetrics().get(name);
+            if (existing instanceof Timer) {
+                return (Timer)existing;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public Histogram histogram(final String name)
+    {
+        final Metric metric = getMetrics().get(name);
+        if (metric instanceof Histogram) {
+            return (Histogram)metric;
+        }
+        try {
+            return register(name, new SummingHistogram());
+        }
+        catch (IllegalArgumentException e) {
+            final Metric existing = getMetrics().get(name);
+            if (existing instanceof Histogram) {
+                return (Histogram)existing;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Timer that also totals its durations.
+     */
+    public static class SummingTimer extends Timer
+    {
+        private final AtomicLong sum = new AtomicLong();
+
+        @Override
+        public void update(final long duration, final TimeUnit unit)
+        {
+            super.update(duration, unit);
+            if (duration >= 0) {
+                sum.addAndGet(unit.toNanos(duration));
+            }
+        }
+
+        @Override
+        public <T> T time(final Callable<T> event) throws Exception
+        {
+            final Context context = time();
+            try {
+                return event.call();
+            }
+            finally {
+                context.stop();
+            }
+        }
+
+        /**
+         * @return The total of every duration, in nanoseconds
+         */
+        public long getSum()
+        {
+            return sum.get();
+        }
+    }
+
+    /**
+     * Histogram that also totals its values.
+     */
+    public static class SummingHistogram extends Histogram
+    {
+        private final AtomicLong sum = new AtomicLong();
+
+        public SummingHistogram()
+        {
+            super(new ExponentiallyDecayingReservoir());
+        }
+
+        @Override
+        public void update(final long value)
+        {
+            super.update(value);
+            sum.addAndGet(value);
+        }
+
+        /**
+         * @return The total of every value
+         */
+        public long getSum()
+        {
+            return sum.get();
+        }
+    }
+}
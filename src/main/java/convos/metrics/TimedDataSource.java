@@ -0,0 +1,44 @@
+package convos.metrics;
+
+import com.codahale.metrics.Timer;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Times how long callers wait for a connection from the pool.
+ */
+public class TimedDataSource extends DelegatingDataSource
+{
+    private final Timer wait;
+
+    public TimedDataSource(final DataSource target, final Timer wait)
+    {
+        super(target);
+        this.wait = wait;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException
+    {
+        final Timer.Context context = wait.time();
+        try {
+            return super.getConnection();
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException
+    {
+        final Timer.Context context = wait.time();
+        try {
+            return super.getConnection(username, password);
+        } finally {
+            context.stop();
+        }
+    }
+}
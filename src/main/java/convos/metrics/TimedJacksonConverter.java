@@ -0,0 +1,38 @@
+package convos.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import java.io.IOException;
+
+/**
+ * Jackson converter that times writing each response body, as json.write.{Type}, so time
+ * spent serializing is told apart from time spent in the endpoint itself.
+ */
+public class TimedJacksonConverter extends MappingJackson2HttpMessageConverter
+{
+    private final MetricRegistry registry;
+
+    public TimedJacksonConverter(final ObjectMapper objectMapper, final MetricRegistry registry)
+    {
+        super(objectMapper);
+        this.registry = registry;
+    }
+
+    @Override
+    protected void writeInternal(Object object, HttpOutputMessage outputMessage)
+            throws IOException, HttpMessageNotWritableException
+    {
+        final Timer.Context context = registry.timer(
+                MetricRegistry.name("json.write", object != null ? object.getClass().getSimpleName() : "null")).time();
+        try {
+            super.writeInternal(object, outputMessage);
+        } finally {
+            context.stop();
+        }
+    }
+}
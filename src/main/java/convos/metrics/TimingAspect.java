@@ -0,0 +1,118 @@
+package convos.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import convos.domain.ChangesResponse;
+import convos.domain.ConvoChanges;
+import convos.domain.ConvosResponse;
+import convos.domain.SearchResponse;
+import convos.domain.StreamResponse;
+import convos.domain.ThreadsResponse;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Collection;
+
+/**
+ * Times every public method of the REST controllers and the DAOs.
+ *
+ * For each method, records a timer named {layer}.{Class}.{method} (rate and latency), a meter
+ * of the calls that threw ({name}.errors), and for methods returning rows, a histogram of how
+ * many rows came back ({name}.rows). Endpoints returning a DeferredResult are timed until
+ * their result is set.
+ */
+@Aspect
+@Component
+public class TimingAspect
+{
+    @Autowired MetricRegistry registry;
+
+    @Around("within(@org.springframework.web.bind.annotation.RestController *) && execution(public * *(..))")
+    public Object timeEndpoint(ProceedingJoinPoint joinPoint) throws Throwable
+    {
+        return time("endpoint", joinPoint);
+    }
+
+    @Around("within(@org.springframework.stereotype.Repository *) && execution(public * *(..))")
+    public Object timeQuery(ProceedingJoinPoint joinPoint) throws Throwable
+    {
+        return time("dao", joinPoint);
+    }
+
+    private Object time(final String layer, final ProceedingJoinPoint joinPoint) throws Throwable
+    {
+        final String name = MetricRegistry.name(layer,
+                joinPoint.getSignature().getDeclaringType().getSimpleName(), joinPoint.getSignature().getName());
+        final Timer.Context context = registry.timer(name).time();
+        final Object result;
+        try {
+            result = joinPoint.proceed();
+        } catch (Throwable t) {
+            registry.meter(name + ".errors").mark();
+            context.stop();
+            throw t;
+        }
+        if (result instanceof DeferredResult) {
+            // Asynchronous endpoints: time until the result is handed back to the servlet
+            final DeferredResult<?> deferred = (DeferredResult<?>)result;
+            deferred.onCompletion(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    context.stop();
+                    completed(name, deferred.getResult());
+                }
+            });
+            return result;
+        }
+        context.stop();
+        completed(name, result);
+        return result;
+    }
+
+    private void completed(final String name, final Object result)
+    {
+        if (result instanceof Throwable) {
+            registry.meter(name + ".errors").mark();
+            return;
+        }
+        final int rows = rows(result);
+        if (rows >= 0) {
+            registry.histogram(name + ".rows").update(rows);
+        }
+    }
+
+    /**
+     * @return How many rows a method returned, or -1 if it doesn't return rows.
+     */
+    private static int rows(final Object result)
+    {
+        if (result instanceof Collection) {
+            return ((Collection<?>)result).size();
+        }
+        if (result instanceof ConvosResponse) {
+            return ((ConvosResponse)result).getConvos().size();
+        }
+        if (result instanceof ThreadsResponse) {
+            return ((ThreadsResponse)result).getConvos().size();
+        }
+        if (result instanceof SearchResponse) {
+            return ((SearchResponse)result).getConvos().size();
+        }
+        if (result instanceof ConvoChanges) {
+            return ((ConvoChanges)result).getChanges().size();
+        }
+        if (result instanceof ChangesResponse) {
+            return ((ChangesResponse)result).getChanges().size();
+        }
+        if (result instanceof StreamResponse) {
+            return ((StreamResponse)result).getEvents().size();
+        }
+        return -1;
+    }
+}
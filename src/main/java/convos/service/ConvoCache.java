@@ -0,0 +1,173 @@
+package convos.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import convos.domain.StoredConvo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process cache of single convos by ID, for clients that open the same convo repeatedly.
+ *
+ * Entries hold the whole stored convo, deleted flags included, so ownership is checked
+ * against the cached copy. Changes made through this node invalidate their entry, both at
+ * once and again when the transaction completes; changes made through other nodes invalidate
+ * it when their event arrives through {@link ConvoEventListener}.
+ *
+ * Every invalidation also bumps a generation counter for the ID. A reader takes the generation
+ * before loading a convo and only caches what it loaded if the generation is unchanged
+ * afterwards, so a row read before a change committed can't be cached after the change
+ * invalidated it. Generations are striped by ID, so an unrelated invalidation now and then
+ * costs a reader its put, never a stale entry.
+ */
+@Component
+public class ConvoCache
+{
+    private static final int STRIPES = 4096;
+
+    @Autowired(required = false) MetricRegistry registry;
+
+    private final Cache<Long, StoredConvo> cache;
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    @Autowired
+    public ConvoCache(@Value("${convos.cache.max-size:10000}") final long maxSize,
+                      @Value("${convos.cache.ttl-seconds:60}") final long ttlSeconds)
+    {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Register gauges of the cache's hits, misses and evictions since startup, and its size.
+     */
+    @PostConstruct
+    public void registerGauges()
+    {
+        if (registry == null) {
+            return;
+        }
+        registry.register("cache.convo.hits", new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return cache.stats().hitCount();
+            }
+        });
+        registry.register("cache.convo.misses", new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return cache.stats().missCount();
+            }
+        });
+        registry.register("cache.convo.evictions", new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return cache.stats().evictionCount();
+            }
+        });
+        registry.register("cache.convo.size", new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return cache.size();
+            }
+        });
+    }
+
+    /**
+     * @param convoId
+     * @return The cached convo, or null if it isn't cached.
+     */
+    public StoredConvo get(final long convoId)
+    {
+        return cache.getIfPresent(convoId);
+    }
+
+    /**
+     * @param convoId
+     * @return The generation to pass to {@link #put} for a convo about to be loaded.
+     */
+    public long generation(final long convoId)
+    {
+        return generations.get(stripe(convoId));
+    }
+
+    /**
+     * Cache a loaded convo, unless it was invalidated since the given generation was taken.
+     * @param convoId
+     * @param convo
+     * @param generation Taken with {@link #generation} before the convo was loaded
+     */
+    public void put(final long convoId, final StoredConvo convo, final long generation)
+    {
+        if (generations.get(stripe(convoId)) != generation) {
+            return;
+        }
+        cache.put(convoId, convo);
+        // An invalidation between the check and the put may have run before the put landed
+        if (generations.get(stripe(convoId)) != generation) {
+            cache.invalidate(convoId);
+        }
+    }
+
+    /**
+     * Drop a convo that is being changed. Call from inside the transaction making the change, or
+     * after another node's change has committed.
+     * @param convoId
+     */
+    public void invalidate(final long convoId)
+    {
+        evict(convoId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter()
+            {
+                @Override
+                public void afterCompletion(int status)
+                {
+                    evict(convoId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop every convo, for when changes made through other nodes may have been missed.
+     */
+    public void invalidateAll()
+    {
+        for (int i = 0; i < STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        cache.invalidateAll();
+    }
+
+    private void evict(final long convoId)
+    {
+        generations.incrementAndGet(stripe(convoId));
+        cache.invalidate(convoId);
+    }
+
+    private static int stripe(final long convoId)
+    {
+        return (int)((convoId ^ (convoId >>> 32)) & (STRIPES - 1));
+    }
+}
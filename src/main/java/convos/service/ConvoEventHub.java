@@ -0,0 +1,305 @@
+package convos.service;
+
+import convos.domain.BadRequestException;
+import convos.domain.ConvoEvent;
+import convos.domain.ServiceUnavailableException;
+import convos.domain.StreamResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fans convo events heard by this node out to the users long-polling their stream.
+ *
+ * Every event is numbered in the order it was heard. Events are only kept for users who hold a
+ * live cursor: each user who polls gets a queue of their own recent events, so a client polling
+ * again with the cursor it was handed gets whatever arrived in between, and a broadcast to users
+ * who aren't streaming costs nothing. A queue keeps at most the user's last buffer events, and is
+ * dropped once its user has gone idle-seconds without polling. Cursors are only good on the node
+ * that issued them, and only while their position is still in the user's queue; otherwise, and
+ * whenever the listener may have missed notifications, the client is told to resync. A poll with
+ * nothing to return parks a DeferredResult, holding no thread and no database connection until
+ * an event for its user arrives or it times out.
+ */
+@Component
+public class ConvoEventHub
+{
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int buffer;
+    private final int maxClients;
+    private final long idleMillis;
+
+    /** Sequence number the next event will get. */
+    private long next;
+    /** Changes whenever earlier cursors can no longer be trusted. */
+    private long epoch = newEpoch();
+    private final Map<Long, UserQueue> users = new HashMap<>();
+    private int clients;
+    private long nextSweep;
+
+    @Autowired
+    public ConvoEventHub(@Value("${convos.stream.buffer:1000}") final int buffer,
+                         @Value("${convos.stream.max-clients:10000}") final int maxClients,
+                         @Value("${convos.stream.idle-seconds:120}") final long idleSeconds)
+    {
+        this.buffer = buffer;
+        this.maxClients = maxClients;
+        this.idleMillis = idleSeconds * 1000;
+    }
+
+    /**
+     * Wait for the user's next events.
+     * @param userId
+     * @param cursor Cursor from the previous poll, or null to get one for the current position
+     * @param timeoutMillis How long to wait for an event before returning none
+     * @return The events since the cursor, at once if there are any. Without a cursor, no
+     * events and a cursor to start from, at once.
+     * @throws ServiceUnavailableException if too many polls are already waiting
+     */
+    public DeferredResult<StreamResponse> poll(final long userId, final String cursor, final long timeoutMillis)
+    {
+        final DeferredResult<StreamResponse> result;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            sweep(now);
+            UserQueue queue = users.get(userId);
+            if (queue == null) {
+                // Events are kept for the user from here on, so the cursor handed back is good
+                queue = new UserQueue(next);
+                users.put(userId, queue);
+            }
+            queue.lastPolled = now;
+            if (cursor == null || cursor.isEmpty()) {
+                return done(new StreamResponse(Collections.<ConvoEvent>emptyList(), cursor(), false));
+            }
+            long from = position(cursor);
+            if (from < queue.since || from > next) {
+                return done(new StreamResponse(Collections.<ConvoEvent>emptyList(), cursor(), true));
+            }
+            List<ConvoEvent> events = new ArrayList<>();
+            for (Queued queued : queue.events) {
+                if (queued.seq >= from) {
+                    events.add(queued.event);
+                }
+            }
+            if (!events.isEmpty()) {
+                return done(new StreamResponse(events, cursor(), false));
+            }
+            if (clients >= maxClients) {
+                throw new ServiceUnavailableException("Too many streams open");
+            }
+            result = new DeferredResult<>(timeoutMillis, new StreamResponse(Collections.<ConvoEvent>emptyList(), cursor(), false));
+            queue.waiting.add(result);
+            clients++;
+        }
+        result.onCompletion(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                remove(userId, result);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Record events heard from the database, in commit order, and answer the polls waiting on them.
+     * Events for users without a queue are only counted.
+     */
+    public void publish(final List<ConvoEvent> events)
+    {
+        final Map<DeferredResult<StreamResponse>, StreamResponse> answers = new LinkedHashMap<>();
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            sweep(now);
+            Map<UserQueue, List<ConvoEvent>> answering = new LinkedHashMap<>();
+            for (ConvoEvent event : events) {
+                long seq = next++;
+                UserQueue queue = users.get(event.getUserId());
+                if (queue == null) {
+                    continue;
+                }
+                queue.add(new Queued(seq, event), buffer);
+                if (!queue.waiting.isEmpty()) {
+                    List<ConvoEvent> forUser = answering.get(queue);
+                    if (forUser == null) {
+                        forUser = new ArrayList<>();
+                        answering.put(queue, forUser);
+                    }
+                    forUser.add(event);
+                }
+            }
+            for (Map.Entry<UserQueue, List<ConvoEvent>> entry : answering.entrySet()) {
+                UserQueue queue = entry.getKey();
+                StreamResponse response = new StreamResponse(entry.getValue(), cursor(), false);
+                for (DeferredResult<StreamResponse> result : queue.waiting) {
+                    answers.put(result, response);
+                    clients--;
+                }
+                queue.waiting.clear();
+                // The client comes back with the new cursor, so its idle time starts now
+                queue.lastPolled = now;
+            }
+        }
+        // Completing a result dispatches it back to the container; keep that out of the lock.
+        for (Map.Entry<DeferredResult<StreamResponse>, StreamResponse> answer : answers.entrySet()) {
+            answer.getKey().setResult(answer.getValue());
+        }
+    }
+
+    /**
+     * Invalidate every cursor handed out so far, and tell every waiting client to resync. Called
+     * when notifications may have been lost, e.g. after the listener reconnects.
+     */
+    public void reset()
+    {
+        final List<DeferredResult<StreamResponse>> results = new ArrayList<>();
+        final StreamResponse resync;
+        synchronized (this) {
+            epoch = newEpoch();
+            for (UserQueue queue : users.values()) {
+                results.addAll(queue.waiting);
+                queue.waiting.clear();
+                queue.events.clear();
+                queue.since = next;
+            }
+            clients = 0;
+            resync = new StreamResponse(Collections.<ConvoEvent>emptyList(), cursor(), true);
+        }
+        for (DeferredResult<StreamResponse> result : results) {
+            result.setResult(resync);
+        }
+    }
+
+    /**
+     * @return How many polls are waiting for events.
+     */
+    public synchronized int getClients()
+    {
+        return clients;
+    }
+
+    /**
+     * @return How many users events are being kept for.
+     */
+    public synchronized int getUsers()
+    {
+        return users.size();
+    }
+
+    private synchronized void remove(final long userId, final DeferredResult<StreamResponse> result)
+    {
+        UserQueue queue = users.get(userId);
+        if (queue != null && queue.waiting.remove(result)) {
+            clients--;
+            queue.lastPolled = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Drop the queues of users who haven't polled for the idle time and aren't waiting, at most
+     * twice per idle time.
+     */
+    private void sweep(final long now)
+    {
+        if (now < nextSweep) {
+            return;
+        }
+        nextSweep = now + idleMillis / 2;
+        for (Iterator<UserQueue> it = users.values().iterator(); it.hasNext(); ) {
+            UserQueue queue = it.next();
+            if (queue.waiting.isEmpty() && now - queue.lastPolled >= idleMillis) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Cursors are "{epoch}.{sequence}" in base 36, opaque to clients.
+     */
+    private String cursor()
+    {
+        return Long.toString(epoch, 36) + "." + Long.toString(next, 36);
+    }
+
+    /**
+     * @return The sequence number the cursor points at, or -1 if it was issued before the last
+     * reset or by another node.
+     */
+    private long position(final String cursor)
+    {
+        int dot = cursor.indexOf('.');
+        if (dot < 0) {
+            throw new BadRequestException("Invalid cursor.");
+        }
+        try {
+            long issuedIn = Long.parseLong(cursor.substring(0, dot), 36);
+            long position = Long.parseLong(cursor.substring(dot + 1), 36);
+            return issuedIn == epoch ? position : -1;
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Invalid cursor.");
+        }
+    }
+
+    private static DeferredResult<StreamResponse> done(final StreamResponse response)
+    {
+        DeferredResult<StreamResponse> result = new DeferredResult<>();
+        result.setResult(response);
+        return result;
+    }
+
+    private static long newEpoch()
+    {
+        return random.nextLong() & Long.MAX_VALUE;
+    }
+
+    /**
+     * A user's recent events and waiting polls. Guarded by the hub.
+     */
+    private static class UserQueue
+    {
+        /** Every event from this sequence number on is in the queue. */
+        long since;
+        long lastPolled;
+        final ArrayDeque<Queued> events = new ArrayDeque<>();
+        final List<DeferredResult<StreamResponse>> waiting = new ArrayList<>(1);
+
+        UserQueue(final long since)
+        {
+            this.since = since;
+        }
+
+        void add(final Queued queued, final int buffer)
+        {
+            events.addLast(queued);
+            if (events.size() > buffer) {
+                since = events.removeFirst().seq + 1;
+            }
+        }
+    }
+
+    private static class Queued
+    {
+        final long seq;
+        final ConvoEvent event;
+
+        Queued(final long seq, final ConvoEvent event)
+        {
+            this.seq = seq;
+            this.event = event;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package convos.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import convos.dao.ConvoEventDao;
+import convos.domain.ConvoEvent;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The one database listener on this node: LISTENs for convo events on a dedicated connection
+ * to the primary and hands them to {@link ConvoEventHub}, however many clients are streaming.
+ * Convos read, unread or deleted through any node are dropped from this node's {@link ConvoCache}.
+ *
+ * The connection is opened outside the pool, since it is held for as long as the node runs.
+ * The driver only picks up notifications during a round trip, so the listener sends a trivial
+ * query every poll interval while idle. Whenever the connection is (re)established the hub is
+ * reset and the cache emptied, as anything sent while it was down was missed.
+ */
+@Component
+public class ConvoEventListener
+{
+    private static final Logger logger = LoggerFactory.getLogger(ConvoEventListener.class);
+
+    @Autowired ConvoEventHub hub;
+    @Autowired ConvoCache convoCache;
+    @Autowired DataSourceProperties properties;
+
+    private final long pollMillis;
+    private final long retryMillis;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    @Autowired
+    public ConvoEventListener(@Value("${convos.stream.poll-ms:100}") final long pollMillis,
+                              @Value("${convos.stream.retry-seconds:5}") final long retrySeconds)
+    {
+        this.pollMillis = pollMillis;
+        this.retryMillis = retrySeconds * 1000;
+        this.thread = new ThreadFactoryBuilder().setNameFormat("convo-event-listener").setDaemon(true).build()
+                .newThread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listen();
+                    }
+                });
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        thread.start();
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void listen()
+    {
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(properties.getUrl(), properties.getUsername(), properties.getPassword())) {
+                receive(connection);
+            } catch (SQLException e) {
+                logger.warn("Convo event listener lost its connection, retrying in {} ms", retryMillis, e);
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Streams and the cache can't be trusted to be complete until we are listening again
+            hub.reset();
+            convoCache.invalidateAll();
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void receive(final Connection connection) throws SQLException, InterruptedException
+    {
+        final PGConnection pg = connection.unwrap(PGConnection.class);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("LISTEN " + ConvoEventDao.CHANNEL);
+            hub.reset();
+            convoCache.invalidateAll();
+            logger.info("Listening for convo events");
+            while (running) {
+                statement.execute("SELECT 1");
+                PGNotification[] notifications = pg.getNotifications();
+                if (notifications == null || notifications.length == 0) {
+                    Thread.sleep(pollMillis);
+                    continue;
+                }
+                List<ConvoEvent> events = new ArrayList<>();
+                for (PGNotification notification : notifications) {
+                    try {
+                        events.addAll(ConvoEvent.decode(notification.getParameter()));
+                    } catch (IllegalArgumentException e) {
+                        logger.warn("Ignoring malformed convo event notification {}", notification.getParameter(), e);
+                    }
+                }
+                for (ConvoEvent event : events) {
+                    if (event.getType() != ConvoEvent.Type.RECEIVED) {
+                        convoCache.invalidate(event.getConvoId());
+                    }
+                }
+                hub.publish(events);
+            }
+        }
+    }
+}
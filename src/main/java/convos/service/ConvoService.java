@@ -1,15 +1,67 @@
 package convos.service;
 
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import convos.dao.ConvoDao;
+import convos.dao.ConvoEventDao;
+import convos.dao.MailboxCounterDao;
+import convos.dao.MailboxDao;
+import convos.dao.ReadRouting;
+import convos.dao.ThreadSummaryDao;
+import convos.domain.BadRequestException;
+import convos.domain.BatchCreateConvo;
+import convos.domain.BroadcastConvo;
+import convos.domain.ChangesResponse;
 import convos.domain.Convo;
+import convos.domain.ConvoChange;
+import convos.domain.ConvoChanges;
+import convos.domain.ConvoEvent;
+import convos.domain.ConvoView;
 import convos.domain.ConvosResponse;
 import convos.domain.CreateConvo;
+import convos.domain.MailboxCounters;
+import convos.domain.MailboxListing;
+import convos.domain.PageCursor;
+import convos.domain.ResourceNotFoundException;
+import convos.domain.SearchCursor;
+import convos.domain.SearchHit;
+import convos.domain.SearchResponse;
+import convos.domain.ServiceUnavailableException;
 import convos.domain.SortDirection;
+import convos.domain.StoredConvo;
+import convos.domain.StreamResponse;
+import convos.domain.SyncToken;
+import convos.domain.ThreadPage;
 import convos.domain.ThreadsResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Marshal data between the API controller and DAOs
@@ -18,6 +70,52 @@ import java.util.List;
 public class ConvoService
 {
     @Autowired ConvoDao convoDao;
+    @Autowired MailboxCounterDao counterDao;
+    @Autowired ThreadSummaryDao threadSummaryDao;
+    @Autowired MailboxDao mailboxDao;
+    @Autowired ConvoCache convoCache;
+    @Autowired ListeningExecutorService listingExecutor;
+    @Autowired PlatformTransactionManager transactionManager;
+    @Autowired ConvoEventDao eventDao;
+    @Autowired ConvoEventHub eventHub;
+
+    @Value("${convos.stream.timeout-seconds:30}") long streamTimeoutSeconds;
+    @Value("${convos.heads.chunk-size:1000}") int headsChunkSize;
+
+    /**
+     * Largest number of convos accepted by one batch create.
+     */
+    static final int MAX_BATCH_SIZE = 500;
+
+    /**
+     * Largest number of recipients accepted by one broadcast.
+     */
+    static final int MAX_BROADCAST_RECIPIENTS = 250000;
+
+    /**
+     * Largest page of search results.
+     */
+    static final int MAX_SEARCH_RESULTS = 100;
+
+    /**
+     * Largest page of changes for a sync.
+     */
+    static final int MAX_CHANGES = 500;
+
+    /**
+     * Largest number of users in one unread count lookup.
+     */
+    static final int MAX_UNREAD_USERS = 10000;
+
+    /**
+     * Largest number of users in one newest-convos lookup.
+     */
+    static final int MAX_HEAD_USERS = 10000;
+
+    /**
+     * Largest number of newest convos returned per user.
+     */
+    static final int MAX_HEAD_CONVOS = 100;
 
     /**
      * Get a convo based on its unique ID, and given userId is the sender.
@@ -27,7 +125,8 @@ public class ConvoService
      */
     public Convo getSentConvo(final long userId, final long convoId)
     {
-        return convoDao.getSentConvo(userId, convoId);
+        StoredConvo stored = getStoredConvo(convoId);
+        return stored != null ? stored.sentBy(userId) : null;
     }
 
     /**
@@ -38,7 +137,25 @@ public class ConvoService
      */
     public Convo getReceivedConvo(final long userId, final long convoId)
     {
-        return convoDao.getReceivedConvo(userId, convoId);
+        StoredConvo stored = getStoredConvo(convoId);
+        return stored != null ? stored.receivedBy(userId) : null;
+    }
+
+    /**
+     * Read a convo through the cache. Convos that don't exist are not cached, since their ID
+     * may already be handed out to a convo that is being created.
+     */
+    private StoredConvo getStoredConvo(final long convoId)
+    {
+        StoredConvo stored = convoCache.get(convoId);
+        if (stored == null) {
+            long generation = convoCache.generation(convoId);
+            stored = convoDao.getStoredConvo(convoId);
+            if (stored != null) {
+                convoCache.put(convoId, stored, generation);
+            }
+        }
+        return stored;
     }
 
     /**
@@ -50,16 +167,116 @@ public class ConvoService
      *                     the subject from that convo.
      * @return The new unique ID for the convo.
      */
+    @Transactional
     public long createConvo(final CreateConvo convo, final Long replyToConvo) {
-        return convoDao.createConvo(convo, replyToConvo);
+        Convo created = convoDao.createConvo(convo, replyToConvo);
+        mailboxDao.add(Collections.singletonList(created));
+        MailboxCounterUpdates counters = new MailboxCounterUpdates()
+                .sent(created.getSender(), 1)
+                .received(created.getRecipient(), 1)
+                .unread(created.getRecipient(), 1);
+        // Summary rows are locked in user ID order, for the same reason as the counters.
+        long first = Math.min(created.getSender(), created.getRecipient());
+        long second = Math.max(created.getSender(), created.getRecipient());
+        if (threadSummaryDao.recordConvo(first, created)) {
+            counters.threads(first, 1);
+        }
+        if (second != first && threadSummaryDao.recordConvo(second, created)) {
+            counters.threads(second, 1);
+        }
+        counters.apply(counterDao);
+        eventDao.publish(Collections.singletonList(
+                new ConvoEvent(ConvoEvent.Type.RECEIVED, created.getRecipient(), created.getId(), created.getThreadId())));
+        return created.getId();
+    }
+
+    /**
+     * Create many convos in one transaction. The whole batch is checked before anything is
+     * written, so either every convo is created or none are.
+     * @param convos The new convos, each optionally a reply to an existing convo
+     * @return The new unique IDs, in the same order as the input.
+     */
+    @Transactional
+    public List<Long> createConvos(final List<BatchCreateConvo> convos) {
+        if (convos.size() > MAX_BATCH_SIZE) {
+            throw new BadRequestException(String.format("A batch can hold at most %d convos.", MAX_BATCH_SIZE));
+        }
+        Set<Long> replyTos = new HashSet<>();
+        for (BatchCreateConvo convo : convos) {
+            if (convo == null) {
+                throw new BadRequestException("A batch cannot contain null convos.");
+            }
+            if (convo.getReplyToConvo() != null) {
+                replyTos.add(convo.getReplyToConvo());
+            }
+        }
+        replyTos.removeAll(convoDao.getExistingConvoIds(replyTos));
+        if (!replyTos.isEmpty()) {
+            throw new BadRequestException(String.format("Cannot reply to unknown convos %s.", replyTos));
+        }
+
+        return recordCreated(convoDao.createConvos(convos));
+    }
+
+    /**
+     * Send the same convo to many recipients in one transaction. The body is stored once and
+     * shared by every recipient's convo.
+     * @param broadcast The sender, recipients and content
+     * @return The new unique IDs, one per recipient, in the same order as the recipients.
+     */
+    @Transactional
+    public List<Long> broadcastConvo(final BroadcastConvo broadcast) {
+        if (broadcast.getRecipients().size() > MAX_BROADCAST_RECIPIENTS) {
+            throw new BadRequestException(String.format("A broadcast can have at most %d recipients.", MAX_BROADCAST_RECIPIENTS));
+        }
+        return recordCreated(convoDao.broadcastConvo(broadcast));
+    }
+
+    /**
+     * Update mailboxes, counters and thread summaries for convos created in bulk, with one
+     * batched write for each.
+     * @return The IDs of the convos, in the given order.
+     */
+    private List<Long> recordCreated(final List<Convo> created) {
+        MailboxCounterUpdates counters = new MailboxCounterUpdates();
+        List<Long> ids = new ArrayList<>(created.size());
+        List<ConvoEvent> events = new ArrayList<>(created.size());
+        for (Convo convo : created) {
+            counters.sent(convo.getSender(), 1)
+                    .received(convo.getRecipient(), 1)
+                    .unread(convo.getRecipient(), 1);
+            ids.add(convo.getId());
+            events.add(new ConvoEvent(ConvoEvent.Type.RECEIVED, convo.getRecipient(), convo.getId(), convo.getThreadId()));
+        }
+        if (!created.isEmpty()) {
+            mailboxDao.add(created);
+            for (Map.Entry<Long, Integer> entry : threadSummaryDao.recordConvos(created).entrySet()) {
+                counters.threads(entry.getKey(), entry.getValue());
+            }
+        }
+        counters.applyBatched(counterDao);
+        eventDao.publish(events);
+        return ids;
     }
 
     /**
      * Switch convo from read to un-read, whichever one it is not, based on ID.
      * @param id Unique id of the convo
      */
+    @Transactional
     public void changeConvoReadStatus(final long userId, final long id) {
-        convoDao.changeConvoReadStatus(userId, id);
+        Convo changed = convoDao.changeConvoReadStatus(userId, id);
+        if (changed != null) {
+            convoCache.invalidate(id);
+            threadSummaryDao.adjustUnread(userId, changed.getThreadId(), changed.isWasRead() ? -1 : 1);
+            // The sender's listings show the read flag too, so their version goes up as well
+            new MailboxCounterUpdates()
+                    .unread(userId, changed.isWasRead() ? -1 : 1)
+                    .touch(changed.getSender())
+                    .apply(counterDao);
+            eventDao.publish(Collections.singletonList(
+                    new ConvoEvent(changed.isWasRead() ? ConvoEvent.Type.READ : ConvoEvent.Type.UNREAD, userId, id, changed.getThreadId())));
+        }
     }
 
     /**
@@ -67,44 +284,696 @@ public class ConvoService
      * @param userId
      * @param convoId
      */
+    @Transactional
     public void deleteConvo(final long userId, final long convoId) {
-        convoDao.deleteConvo(userId, convoId);
+        MailboxCounterUpdates counters = new MailboxCounterUpdates();
+        Convo sent = convoDao.deleteSentConvo(userId, convoId);
+        if (sent != null) {
+            mailboxDao.remove(userId, true, Collections.singletonList(sent));
+            counters.sent(userId, -1);
+        }
+        Convo received = convoDao.deleteReceivedConvo(userId, convoId);
+        if (received != null) {
+            mailboxDao.remove(userId, false, Collections.singletonList(received));
+            counters.received(userId, -1);
+            if (!received.isWasRead()) {
+                counters.unread(userId, -1);
+            }
+        }
+        Convo deleted = sent != null ? sent : received;
+        if (deleted != null) {
+            convoCache.invalidate(convoId);
+            if (threadSummaryDao.refresh(userId, deleted.getThreadId())) {
+                counters.threads(userId, -1);
+            }
+            eventDao.publish(Collections.singletonList(
+                    new ConvoEvent(ConvoEvent.Type.DELETED, userId, convoId, deleted.getThreadId())));
+        }
+        counters.apply(counterDao);
+    }
+
+    /**
+     * The user's mailbox version, which goes up with every change to what their listings show.
+     * Paged listings carry the version their page was read at; this is the current one, for
+     * checking a client's tag against.
+     * @param userId
+     */
+    public long getMailboxVersion(final long userId) {
+        return counterDao.getCounters(userId).getVersion();
+    }
+
+    /**
+     * How many convos the user received and hasn't read, from their counter row.
+     * @param userId
+     */
+    public int getUnreadCount(final long userId) {
+        return counterDao.getCounters(userId).getUnread();
+    }
+
+    /**
+     * How many convos each of the users received and hasn't read, read from their counter rows
+     * with a single query.
+     * @param userIds At most MAX_UNREAD_USERS
+     * @return Unread counts keyed by user ID, in the given order, 0 for users with no convos.
+     */
+    public Map<Long, Integer> getUnreadCounts(final List<Long> userIds) {
+        if (userIds.size() > MAX_UNREAD_USERS) {
+            throw new BadRequestException(String.format("Unread counts can be read for at most %d users at once.", MAX_UNREAD_USERS));
+        }
+        if (userIds.contains(null)) {
+            throw new BadRequestException("User IDs cannot be null.");
+        }
+        Map<Long, Integer> found = userIds.isEmpty()
+                ? Collections.<Long, Integer>emptyMap() : counterDao.getUnreadCounts(new HashSet<>(userIds));
+        Map<Long, Integer> unread = new LinkedHashMap<>();
+        for (Long userId : userIds) {
+            Integer count = found.get(userId);
+            unread.put(userId, count != null ? count : 0);
+        }
+        return unread;
     }
 
-    public ConvosResponse getConvosReceived(final long userId, final int offset, final int limit, final SortDirection direction) {
-        int total = convoDao.getTotalConvosReceived(userId);
-        List<Convo> convos = convoDao.getConvosReceived(userId, offset, limit, direction);
-        return new ConvosResponse(total, convos, offset,
-                String.format("/api/v1/%d/convos/received?offset=%d&limit=%d&direction=%s", userId, offset + limit, limit, direction.getVal()),
-                String.format("/api/v1/%d/convos/received?offset=%d&limit=%d&direction=%s", userId, Math.max(0, offset - limit), limit, direction.getVal()));
+    /**
+     * Get a page of the convos the user received, with the mailbox total. The total and the page
+     * are read concurrently on the listing executor.
+     */
+    public ListenableFuture<ConvosResponse> getConvosReceived(final long userId, final int offset, final int limit,
+                                                              final SortDirection direction, final ConvoView view) {
+        return listing(userId, receivedTotal(userId), new Callable<List<Convo>>()
+        {
+            @Override
+            public List<Convo> call()
+            {
+                return convoDao.getConvosReceived(userId, offset, limit, direction, view);
+            }
+        }, new Listing<List<Convo>, ConvosResponse>()
+        {
+            @Override
+            public ConvosResponse build(int total, List<Convo> convos)
+            {
+                return new ConvosResponse(total, convos, offset,
+                        String.format("/api/v1/%d/convos/received?offset=%d&limit=%d&direction=%s%s", userId, offset + limit, limit, direction.getVal(), viewParam(view)),
+                        String.format("/api/v1/%d/convos/received?offset=%d&limit=%d&direction=%s%s", userId, Math.max(0, offset - limit), limit, direction.getVal(), viewParam(view)));
+            }
+        });
+    }
+
+    public ListenableFuture<ConvosResponse> getConvosReceived(final long userId, final PageCursor cursor, final int limit,
+                                                              final SortDirection direction, final ConvoView view) {
+        return listing(userId, receivedTotal(userId), new Callable<List<Convo>>()
+        {
+            @Override
+            public List<Convo> call()
+            {
+                return convoDao.getConvosReceived(userId, cursor, limit, direction, view);
+            }
+        }, cursorListing(String.format("/api/v1/%d/convos/received", userId), cursor, limit, direction, view, CONVOS));
+    }
+
+    public ListenableFuture<ConvosResponse> getConvosSent(final long userId, final int offset, final int limit,
+                                                          final SortDirection direction, final ConvoView view) {
+        return listing(userId, sentTotal(userId), new Callable<List<Convo>>()
+        {
+            @Override
+            public List<Convo> call()
+            {
+                return convoDao.getConvosSent(userId, offset, limit, direction, view);
+            }
+        }, new Listing<List<Convo>, ConvosResponse>()
+        {
+            @Override
+            public ConvosResponse build(int total, List<Convo> convos)
+            {
+                return new ConvosResponse(total, convos, offset,
+                        String.format("/api/v1/%d/convos/sent?offset=%d&limit=%d&direction=%s%s", userId, offset + limit, limit, direction.getVal(), viewParam(view)),
+                        String.format("/api/v1/%d/convos/sent?offset=%d&limit=%d&direction=%s%s", userId, Math.max(0, offset - limit), limit, direction.getVal(), viewParam(view)));
+            }
+        });
     }
 
-    public ConvosResponse getConvosSent(final long userId, final int offset, final int limit, final SortDirection direction) {
-        int total = convoDao.getTotalConvosSent(userId);
-        List<Convo> convos = convoDao.getConvosSent(userId, offset, limit, direction);
-        return new ConvosResponse(total, convos, offset,
-                String.format("/api/v1/%d/convos/sent?offset=%d&limit=%d&direction=%s", userId, offset + limit, limit, direction.getVal()),
-                String.format("/api/v1/%d/convos/sent?offset=%d&limit=%d&direction=%s", userId, Math.max(0, offset - limit), limit, direction.getVal()));
+    public ListenableFuture<ConvosResponse> getConvosSent(final long userId, final PageCursor cursor, final int limit,
+                                                          final SortDirection direction, final ConvoView view) {
+        return listing(userId, sentTotal(userId), new Callable<List<Convo>>()
+        {
+            @Override
+            public List<Convo> call()
+            {
+                return convoDao.getConvosSent(userId, cursor, limit, direction, view);
+            }
+        }, cursorListing(String.format("/api/v1/%d/convos/sent", userId), cursor, limit, direction, view, CONVOS));
     }
 
-    public ThreadsResponse getThreads(final long userId, final int offset, final int limit, final SortDirection direction) {
-        int total = convoDao.getTotalThreads(userId);
-        List<Convo> convos = convoDao.getThreads(userId, offset, limit, direction);
-        return new ThreadsResponse(total, convos, offset,
-                String.format("/api/v1/%d/threads?offset=%d&limit=%d&direction=%s", userId, offset + limit, limit, direction.getVal()),
-                String.format("/api/v1/%d/threads?offset=%d&limit=%d&direction=%s", userId, Math.max(0, offset - limit), limit, direction.getVal()));
+    public ListenableFuture<ThreadsResponse> getThreads(final long userId, final int offset, final int limit,
+                                                        final SortDirection direction, final ConvoView view) {
+        return listing(userId, threadsTotal(userId), new Callable<ThreadPage>()
+        {
+            @Override
+            public ThreadPage call()
+            {
+                return convoDao.getThreads(userId, offset, limit, direction, view);
+            }
+        }, new Listing<ThreadPage, ThreadsResponse>()
+        {
+            @Override
+            public ThreadsResponse build(int total, ThreadPage page)
+            {
+                return new ThreadsResponse(total, page.getThreads(), offset,
+                        String.format("/api/v1/%d/threads?offset=%d&limit=%d&direction=%s%s", userId, offset + limit, limit, direction.getVal(), viewParam(view)),
+                        String.format("/api/v1/%d/threads?offset=%d&limit=%d&direction=%s%s", userId, Math.max(0, offset - limit), limit, direction.getVal(), viewParam(view)),
+                        null, null, page.getUnreadCounts());
+            }
+        });
     }
 
+    public ListenableFuture<ThreadsResponse> getThreads(final long userId, final PageCursor cursor, final int limit,
+                                                        final SortDirection direction, final ConvoView view) {
+        return listing(userId, threadsTotal(userId), new Callable<ThreadPage>()
+        {
+            @Override
+            public ThreadPage call()
+            {
+                return convoDao.getThreads(userId, cursor, limit, direction, view);
+            }
+        }, new Listing<ThreadPage, ThreadsResponse>()
+        {
+            @Override
+            public ThreadsResponse build(int total, final ThreadPage page)
+            {
+                return cursorListing(String.format("/api/v1/%d/threads", userId), cursor, limit, direction, view, new CursorResponse<ThreadsResponse>()
+                {
+                    @Override
+                    public ThreadsResponse build(int total, List<Convo> convos, String next, String previous, String nextCursor, String previousCursor)
+                    {
+                        return new ThreadsResponse(total, convos, 0, next, previous, nextCursor, previousCursor, page.getUnreadCounts());
+                    }
+                }).build(total, page.getThreads());
+            }
+        });
+    }
+
+    @Transactional
     public void deleteThread(final long userId, final long threadId) {
-        convoDao.deleteThread(userId, threadId);
+        List<Convo> sent = convoDao.deleteSentInThread(userId, threadId);
+        List<Convo> received = convoDao.deleteReceivedInThread(userId, threadId);
+        if (sent.isEmpty() && received.isEmpty()) {
+            return;
+        }
+        mailboxDao.remove(userId, true, sent);
+        mailboxDao.remove(userId, false, received);
+        threadSummaryDao.markDeleted(userId, threadId);
+        for (Convo c : sent) {
+            convoCache.invalidate(c.getId());
+        }
+        List<ConvoEvent> events = new ArrayList<>();
+        for (Convo c : sent) {
+            events.add(new ConvoEvent(ConvoEvent.Type.DELETED, userId, c.getId(), threadId));
+        }
+        int unread = 0;
+        for (Convo c : received) {
+            convoCache.invalidate(c.getId());
+            if (!c.isWasRead()) {
+                unread++;
+            }
+            if (c.getSender() != c.getRecipient()) {
+                events.add(new ConvoEvent(ConvoEvent.Type.DELETED, userId, c.getId(), threadId));
+            }
+        }
+        new MailboxCounterUpdates()
+                .sent(userId, -sent.size())
+                .received(userId, -received.size())
+                .unread(userId, -unread)
+                .threads(userId, -1)
+                .apply(counterDao);
+        eventDao.publish(events);
+    }
+
+    public ListenableFuture<ConvosResponse> getThread(final long userId, final long threadId, final int offset, final int limit,
+                                                      final SortDirection direction, final ConvoView view)
+    {
+        return listing(userId, threadTotal(userId, threadId), new Callable<List<Convo>>()
+        {
+            @Override
+            public List<Convo> call()
+            {
+                return convoDao.getThread(userId, threadId, offset, limit, direction, view);
+            }
+        }, new Listing<List<Convo>, ConvosResponse>()
+        {
+            @Override
+            public ConvosResponse build(int total, List<Convo> convos)
+            {
+                return new ConvosResponse(total, convos, offset,
+                        String.format("/api/v1/%d/threads/%d?offset=%d&limit=%d&direction=%s%s", userId, threadId, offset + limit, limit, direction.getVal(), viewParam(view)),
+                        String.format("/api/v1/%d/threads/%d?offset=%d&limit=%d&direction=%s%s", userId, threadId, Math.max(0, offset - limit), limit, direction.getVal(), viewParam(view)));
+            }
+        });
     }
 
-    public ConvosResponse getThread(final long userId, final long threadId, final int offset, final int limit, final SortDirection direction)
+    public ListenableFuture<ConvosResponse> getThread(final long userId, final long threadId, final PageCursor cursor, final int limit,
+                                                      final SortDirection direction, final ConvoView view)
     {
+        return listing(userId, threadTotal(userId, threadId), new Callable<List<Convo>>()
+        {
+            @Override
+            public List<Convo> call()
+            {
+                return convoDao.getThread(userId, threadId, cursor, limit, direction, view);
+            }
+        }, cursorListing(String.format("/api/v1/%d/threads/%d", userId, threadId), cursor, limit, direction, view, CONVOS));
+    }
+
+    /**
+     * Long-poll the user's stream of convo events: new convos received, and convos marked read,
+     * unread or deleted. Returns at once if events arrived since the cursor, otherwise waits up
+     * to the stream timeout for one without holding a thread or connection.
+     * @param userId
+     * @param cursor Cursor from the previous poll, or null to only get a cursor for now
+     */
+    public DeferredResult<StreamResponse> pollEvents(final long userId, final String cursor) {
+        return eventHub.poll(userId, cursor, streamTimeoutSeconds * 1000);
+    }
+
+    /**
+     * Search the convos a user sent or received and hasn't deleted, best match first. Runs on
+     * the listing executor, like the other listings.
+     * @param userId
+     * @param query Words to look for
+     * @param cursor Where the previous page ended, or null for the first page
+     * @param limit Results per page, 1 to MAX_SEARCH_RESULTS
+     * @param view
+     */
+    public ListenableFuture<SearchResponse> searchConvos(final long userId, final String query, final SearchCursor cursor,
+                                                         final int limit, final ConvoView view) {
+        if (query == null || query.trim().isEmpty()) {
+            throw new BadRequestException("A search needs a query.");
+        }
+        if (limit < 1 || limit > MAX_SEARCH_RESULTS) {
+            throw new BadRequestException(String.format("A search returns from 1 to %d results per page.", MAX_SEARCH_RESULTS));
+        }
+        return Futures.transform(submit(new Callable<List<SearchHit>>()
+        {
+            @Override
+            public List<SearchHit> call()
+            {
+                return convoDao.searchConvos(userId, query, cursor, limit, view);
+            }
+        }), new Function<List<SearchHit>, SearchResponse>()
+        {
+            @Override
+            public SearchResponse apply(List<SearchHit> hits)
+            {
+                List<Convo> convos = new ArrayList<>(hits.size());
+                for (SearchHit hit : hits) {
+                    convos.add(hit.getConvo());
+                }
+                if (hits.size() < limit) {
+                    return new SearchResponse(convos, null, null);
+                }
+                String next = SearchCursor.after(hits.get(hits.size() - 1)).encode();
+                return new SearchResponse(convos,
+                        String.format("/api/v1/%d/convos/search?q=%s&cursor=%s&limit=%d%s", userId, urlEncode(query), next, limit, viewParam(view)),
+                        next);
+            }
+        });
+    }
+
+    /**
+     * Get what changed in the user's inbox and outbox after a sync token: convos created, read
+     * or unread, and deleted (as tombstones), in their current state. Without a token, returns
+     * no changes and a token for now, to be taken before reading the listings. Runs on the
+     * listing executor.
+     * @param userId
+     * @param since Token from the previous sync, or null to start
+     * @param limit Changes per page, 1 to MAX_CHANGES
+     * @param view
+     */
+    public ListenableFuture<ChangesResponse> getChanges(final long userId, final SyncToken since, final int limit,
+                                                        final ConvoView view) {
+        if (limit < 1 || limit > MAX_CHANGES) {
+            throw new BadRequestException(String.format("A sync returns from 1 to %d changes per page.", MAX_CHANGES));
+        }
+        return Futures.transform(submit(new Callable<ConvoChanges>()
+        {
+            @Override
+            public ConvoChanges call()
+            {
+                return convoDao.getChanges(userId, since, since != null ? limit : 0, view);
+            }
+        }), new Function<ConvoChanges, ChangesResponse>()
+        {
+            @Override
+            public ChangesResponse apply(ConvoChanges changes)
+            {
+                List<ConvoChange> page = changes.getChanges();
+                boolean more = since != null && page.size() == limit;
+                SyncToken next;
+                if (more) {
+                    next = SyncToken.after(page.get(page.size() - 1));
+                } else if (since != null && since.getTxid() >= changes.getHorizon()) {
+                    // Read from a replica behind the one the token came from; don't go backwards
+                    next = since;
+                } else {
+                    next = new SyncToken(changes.getHorizon(), 0L, false);
+                }
+                return new ChangesResponse(page, next.encode(), more, more
+                        ? String.format("/api/v1/%d/convos/changes?since=%s&limit=%d%s", userId, next.encode(), limit, viewParam(view))
+                        : null);
+            }
+        });
+    }
+
+    /**
+     * Builds a listing response from its total and page.
+     */
+    interface Listing<P, T>
+    {
+        T build(int total, P page);
+    }
+
+    /**
+     * Read a listing's total and page concurrently on the listing executor, then build the
+     * response from both, tagged with the user's mailbox version. Fails with
+     * ServiceUnavailableException if the executor is full. The request's read position goes
+     * along, so both queries see the client's own writes.
+     */
+    private <P, T extends MailboxListing<T>> ListenableFuture<T> listing(final long userId, final Callable<Integer> total,
+                                                                          final Callable<P> page, final Listing<P, T> listing)
+    {
+        final ListenableFuture<Integer> totalFuture;
+        try {
+            totalFuture = listingExecutor.submit(ReadRouting.propagate(total));
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(new ServiceUnavailableException("Too many listings in progress"));
+        }
+        final ListenableFuture<VersionedPage<P>> pageFuture;
+        try {
+            pageFuture = listingExecutor.submit(ReadRouting.propagate(versioned(userId, page)));
+        } catch (RejectedExecutionException e) {
+            // Don't leave the total's query running, or queued, for a listing that has failed
+            totalFuture.cancel(true);
+            return Futures.immediateFailedFuture(new ServiceUnavailableException("Too many listings in progress"));
+        }
+        return Futures.transform(Futures.<Object>allAsList(totalFuture, pageFuture), new Function<List<Object>, T>()
+        {
+            @Override
+            public T apply(List<Object> ignored)
+            {
+                VersionedPage<P> versioned = Futures.getUnchecked(pageFuture);
+                return listing.build(Futures.getUnchecked(totalFuture), versioned.page).withMailboxVersion(versioned.version);
+            }
+        });
+    }
+
+    /**
+     * Read the user's mailbox version and then the page in one read-only REPEATABLE READ
+     * transaction, so both come from the same snapshot of the same server, replica or primary.
+     * The version then says exactly which state of the mailbox the page shows.
+     */
+    private <P> Callable<VersionedPage<P>> versioned(final long userId, final Callable<P> page)
+    {
+        return new Callable<VersionedPage<P>>()
+        {
+            @Override
+            public VersionedPage<P> call()
+            {
+                TransactionTemplate snapshot = new TransactionTemplate(transactionManager);
+                snapshot.setReadOnly(true);
+                snapshot.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+                return snapshot.execute(new TransactionCallback<VersionedPage<P>>()
+                {
+                    @Override
+                    public VersionedPage<P> doInTransaction(TransactionStatus status)
+                    {
+                        long version = counterDao.getCounters(userId).getVersion();
+                        try {
+                            return new VersionedPage<>(version, page.call());
+                        } catch (Exception e) {
+                            throw Throwables.propagate(e);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    private static class VersionedPage<P>
+    {
+        final long version;
+        final P page;
+
+        VersionedPage(final long version, final P page)
+        {
+            this.version = version;
+            this.page = page;
+        }
+    }
+
+    /**
+     * Run a single query on the listing executor, with the request's read position. Fails with
+     * ServiceUnavailableException if the executor is full.
+     */
+    private <T> ListenableFuture<T> submit(final Callable<T> query)
+    {
+        try {
+            return listingExecutor.submit(ReadRouting.propagate(query));
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(new ServiceUnavailableException("Too many listings in progress"));
+        }
+    }
+
+    /**
+     * Builds a cursor-paged listing response from its total, its page, and the paths and cursors
+     * of the pages either side of it.
+     */
+    interface CursorResponse<T>
+    {
+        T build(int total, List<Convo> convos, String next, String previous, String nextCursor, String previousCursor);
+    }
+
+    private static final CursorResponse<ConvosResponse> CONVOS = new CursorResponse<ConvosResponse>()
+    {
+        @Override
+        public ConvosResponse build(int total, List<Convo> convos, String next, String previous, String nextCursor, String previousCursor)
+        {
+            return new ConvosResponse(total, convos, 0, next, previous, nextCursor, previousCursor);
+        }
+    };
+
+    private <T> Listing<List<Convo>, T> cursorListing(final String path, final PageCursor cursor, final int limit,
+                                                      final SortDirection direction, final ConvoView view, final CursorResponse<T> response)
+    {
+        return new Listing<List<Convo>, T>()
+        {
+            @Override
+            public T build(int total, List<Convo> convos)
+            {
+                PageCursor next = nextCursor(cursor, convos, limit);
+                PageCursor previous = previousCursor(cursor, convos, limit);
+                return response.build(total, convos,
+                        cursorPath(path, next, limit, direction, view), cursorPath(path, previous, limit, direction, view),
+                        encode(next), encode(previous));
+            }
+        };
+    }
+
+    private Callable<Integer> receivedTotal(final long userId)
+    {
+        return new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+            {
+                return counterDao.getCounters(userId).getReceived();
+            }
+        };
+    }
+
+    private Callable<Integer> sentTotal(final long userId)
+    {
+        return new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+            {
+                return counterDao.getCounters(userId).getSent();
+            }
+        };
+    }
+
+    private Callable<Integer> threadsTotal(final long userId)
+    {
+        return new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+            {
+                return counterDao.getCounters(userId).getThreads();
+            }
+        };
+    }
+
+    private Callable<Integer> threadTotal(final long userId, final long threadId)
+    {
+        return new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+            {
+                return convoDao.getTotalInThread(userId, threadId);
+            }
+        };
+    }
+
+    /**
+     * Write every convo the user received, from the given offset, straight to the stream.
+     * Runs in a read-only transaction so the rows are fetched through a cursor in batches,
+     * keeping memory flat however large the mailbox is. The transaction is REPEATABLE READ, so
+     * the mailbox version handed to the stream, the total and the rows share one snapshot.
+     */
+    @Transactional(readOnly = true, isolation = Isolation.REPEATABLE_READ)
+    public void streamConvosReceived(final long userId, final int offset, final SortDirection direction, final ConvoView view,
+                                     final ListingStream stream) {
+        MailboxCounters counters = counterDao.getCounters(userId);
+        String path = String.format("/api/v1/%d/convos/received", userId);
+        stream.start(counters.getVersion(), counters.getReceived(), offset,
+                offsetPath(path, offset, direction, view), offsetPath(path, offset, direction, view));
+        convoDao.streamConvosReceived(userId, offset, direction, view, stream);
+        stream.finish();
+    }
+
+    @Transactional(readOnly = true, isolation = Isolation.REPEATABLE_READ)
+    public void streamConvosSent(final long userId, final int offset, final SortDirection direction, final ConvoView view,
+                                 final ListingStream stream) {
+        MailboxCounters counters = counterDao.getCounters(userId);
+        String path = String.format("/api/v1/%d/convos/sent", userId);
+        stream.start(counters.getVersion(), counters.getSent(), offset,
+                offsetPath(path, offset, direction, view), offsetPath(path, offset, direction, view));
+        convoDao.streamConvosSent(userId, offset, direction, view, stream);
+        stream.finish();
+    }
+
+    @Transactional(readOnly = true, isolation = Isolation.REPEATABLE_READ)
+    public void streamThreads(final long userId, final int offset, final SortDirection direction, final ConvoView view,
+                              final ThreadListingStream stream) {
+        MailboxCounters counters = counterDao.getCounters(userId);
+        String path = String.format("/api/v1/%d/threads", userId);
+        stream.start(counters.getVersion(), counters.getThreads(), offset,
+                offsetPath(path, offset, direction, view), offsetPath(path, offset, direction, view));
+        convoDao.streamThreads(userId, offset, direction, view, stream);
+        stream.finish();
+    }
+
+    /**
+     * Write the newest convos each of the given users received straight to the stream, for batch
+     * jobs. Users are read in chunks of convos.heads.chunk-size, one query per chunk, in a
+     * read-only transaction so the rows are fetched through a cursor.
+     * @param userIds At most MAX_HEAD_USERS; duplicates are read once
+     * @param limit Convos per user, 1 to MAX_HEAD_CONVOS
+     */
+    @Transactional(readOnly = true)
+    public void streamNewestReceived(final List<Long> userIds, final int limit, final ConvoView view,
+                                     final InboxHeadsStream stream) {
+        if (userIds.size() > MAX_HEAD_USERS) {
+            throw new BadRequestException(String.format("Newest convos can be read for at most %d users at once.", MAX_HEAD_USERS));
+        }
+        if (userIds.contains(null)) {
+            throw new BadRequestException("User IDs cannot be null.");
+        }
+        if (limit < 1 || limit > MAX_HEAD_CONVOS) {
+            throw new BadRequestException(String.format("From 1 to %d newest convos can be read per user.", MAX_HEAD_CONVOS));
+        }
+        List<Long> users = new ArrayList<>(new LinkedHashSet<>(userIds));
+        stream.start(users);
+        for (List<Long> chunk : Lists.partition(users, headsChunkSize)) {
+            convoDao.streamNewestReceived(chunk, limit, view, stream);
+        }
+        stream.finish();
+    }
+
+    /**
+     * Stream a thread. Throws ResourceNotFoundException before anything is written if the
+     * user has no convos in it.
+     */
+    @Transactional(readOnly = true, isolation = Isolation.REPEATABLE_READ)
+    public void streamThread(final long userId, final long threadId, final int offset, final SortDirection direction,
+                             final ConvoView view, final ListingStream stream) {
+        long version = counterDao.getCounters(userId).getVersion();
         int total = convoDao.getTotalInThread(userId, threadId);
-        List<Convo> convos = convoDao.getThread(userId, threadId, offset, limit, direction);
-        return new ConvosResponse(total, convos, offset,
-                String.format("/api/v1/%d/threads/%d?offset=%d&limit=%d&direction=%s", userId, threadId, offset + limit, limit, direction.getVal()),
-                String.format("/api/v1/%d/threads/%d?offset=%d&limit=%d&direction=%s", userId, threadId, Math.max(0, offset - limit), limit, direction.getVal()));
+        if (total == 0) {
+            throw new ResourceNotFoundException();
+        }
+        String path = String.format("/api/v1/%d/threads/%d", userId, threadId);
+        stream.start(version, total, offset, offsetPath(path, offset, direction, view), offsetPath(path, offset, direction, view));
+        convoDao.streamThread(userId, threadId, offset, direction, view, stream);
+        stream.finish();
+    }
+
+    /**
+     * Cursor for the page following the given one. When walking forwards a short page means we hit
+     * the end, so there is no next page.
+     */
+    static PageCursor nextCursor(final PageCursor cursor, final List<Convo> convos, final int limit)
+    {
+        if (convos.isEmpty()) {
+            return null;
+        }
+        boolean forwards = cursor == null || !cursor.isBefore();
+        if (forwards && (limit <= 0 || convos.size() < limit)) {
+            return null;
+        }
+        return PageCursor.after(convos.get(convos.size() - 1));
+    }
+
+    /**
+     * Cursor for the page preceding the given one. The first page has no previous page, and a short
+     * page fetched while walking backwards means we reached the start.
+     */
+    static PageCursor previousCursor(final PageCursor cursor, final List<Convo> convos, final int limit)
+    {
+        if (convos.isEmpty() || cursor == null) {
+            return null;
+        }
+        if (cursor.isBefore() && (limit <= 0 || convos.size() < limit)) {
+            return null;
+        }
+        return PageCursor.before(convos.get(0));
+    }
+
+    private static String cursorPath(final String path, final PageCursor cursor, final int limit, final SortDirection direction, final ConvoView view)
+    {
+        if (cursor == null) {
+            return null;
+        }
+        return String.format("%s?cursor=%s&limit=%d&direction=%s%s", path, cursor.encode(), limit, direction.getVal(), viewParam(view));
+    }
+
+    /**
+     * Path for an unbounded listing. With no limit, next and previous both point back at the same offset.
+     */
+    private static String offsetPath(final String path, final int offset, final SortDirection direction, final ConvoView view)
+    {
+        return String.format("%s?offset=%d&limit=0&direction=%s%s", path, offset, direction.getVal(), viewParam(view));
+    }
+
+    /**
+     * Carry a non-default view through to the next/previous paths.
+     */
+    private static String viewParam(final ConvoView view)
+    {
+        return view == ConvoView.FULL ? "" : "&view=" + view.getVal();
+    }
+
+    private static String encode(final PageCursor cursor)
+    {
+        return cursor != null ? cursor.encode() : null;
+    }
+
+    private static String urlEncode(final String value)
+    {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
     }
 }
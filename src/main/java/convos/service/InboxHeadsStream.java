@@ -0,0 +1,20 @@
+package convos.service;
+
+import convos.dao.ConvoHandler;
+
+import java.util.Collection;
+
+/**
+ * Destination for the newest convos of many users, written out as they are read. {@link #start}
+ * is called once before any convos, {@link #finish} once after. Each user's convos arrive one
+ * after the other, newest first; users with no convos don't appear among them.
+ */
+public interface InboxHeadsStream extends ConvoHandler
+{
+    /**
+     * @param userIds Every user asked for, without duplicates.
+     */
+    void start(Collection<Long> userIds);
+
+    void finish();
+}
@@ -0,0 +1,17 @@
+package convos.service;
+
+import convos.dao.ConvoHandler;
+
+/**
+ * Destination for a listing that is written out as it is read, rather than collected into a
+ * response object first. {@link #start} is called once before any convos, {@link #finish} once after.
+ */
+public interface ListingStream extends ConvoHandler
+{
+    /**
+     * @param mailboxVersion The user's mailbox version, read in the same snapshot as the listing
+     */
+    void start(long mailboxVersion, int total, int offset, String next, String previous);
+
+    void finish();
+}
@@ -0,0 +1,89 @@
+package convos.service;
+
+import convos.dao.MailboxCounterDao;
+import convos.domain.MailboxCounters;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Collects counter deltas for every user touched by one change, so each user's counter
+ * row is written once. Writing a row bumps that user's mailbox version.
+ *
+ * Rows are written in ascending user ID order. Two convos sent in opposite directions
+ * between the same pair of users would otherwise lock the two counter rows in opposite
+ * orders and deadlock.
+ */
+class MailboxCounterUpdates
+{
+    private static final int RECEIVED = 0;
+    private static final int SENT = 1;
+    private static final int UNREAD = 2;
+    private static final int THREADS = 3;
+
+    private final Map<Long, int[]> deltas = new TreeMap<>();
+
+    MailboxCounterUpdates received(final long userId, final int delta)
+    {
+        return add(userId, RECEIVED, delta);
+    }
+
+    MailboxCounterUpdates sent(final long userId, final int delta)
+    {
+        return add(userId, SENT, delta);
+    }
+
+    MailboxCounterUpdates unread(final long userId, final int delta)
+    {
+        return add(userId, UNREAD, delta);
+    }
+
+    MailboxCounterUpdates threads(final long userId, final int delta)
+    {
+        return add(userId, THREADS, delta);
+    }
+
+    /**
+     * Bump a user's mailbox version without changing their counts, for changes that show in
+     * their listings but aren't counted there.
+     */
+    MailboxCounterUpdates touch(final long userId)
+    {
+        return add(userId, RECEIVED, 0);
+    }
+
+    void apply(final MailboxCounterDao counterDao)
+    {
+        for (Map.Entry<Long, int[]> entry : deltas.entrySet()) {
+            int[] d = entry.getValue();
+            counterDao.adjust(entry.getKey(), d[RECEIVED], d[SENT], d[UNREAD], d[THREADS]);
+        }
+    }
+
+    /**
+     * Write all rows in one JDBC batch, for changes that touch many users at once.
+     */
+    void applyBatched(final MailboxCounterDao counterDao)
+    {
+        SortedMap<Long, MailboxCounters> batch = new TreeMap<>();
+        for (Map.Entry<Long, int[]> entry : deltas.entrySet()) {
+            int[] d = entry.getValue();
+            batch.put(entry.getKey(), new MailboxCounters(d[RECEIVED], d[SENT], d[UNREAD], d[THREADS]));
+        }
+        if (!batch.isEmpty()) {
+            counterDao.adjustAll(batch);
+        }
+    }
+
+    private MailboxCounterUpdates add(final long userId, final int counter, final int delta)
+    {
+        int[] d = deltas.get(userId);
+        if (d == null) {
+            d = new int[4];
+            deltas.put(userId, d);
+        }
+        d[counter] += delta;
+        return this;
+    }
+}
@@ -0,0 +1,10 @@
+package convos.service;
+
+import convos.dao.ThreadHandler;
+
+/**
+ * A ListingStream of threads, which also receives each thread's unread count.
+ */
+public interface ThreadListingStream extends ListingStream, ThreadHandler
+{
+}
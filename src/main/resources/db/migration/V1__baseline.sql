@@ -0,0 +1,56 @@
+-- The schema as it stood before migrations were introduced. Databases that were set up by hand
+-- from the README already have all of this, and are baselined at version 1 on first startup
+-- (flyway.baseline-on-migrate) so only later migrations run against them.
+
+CREATE SEQUENCE public.thread_seq START 1;
+
+CREATE TABLE convo.convo_body(
+  hash bytea PRIMARY KEY,
+  body text NOT NULL
+);
+
+CREATE TABLE convo.convo(
+  id bigserial PRIMARY KEY,
+  sender bigint NOT NULL,
+  recipient bigint NOT NULL,
+  subject varchar(140) NOT NULL,
+  body text,
+  body_hash bytea REFERENCES convo.convo_body(hash),
+  snippet varchar(160) NOT NULL DEFAULT '',
+  was_read boolean NOT NULL DEFAULT false,
+  thread_id bigint,
+  reply_to_convo bigint REFERENCES convo.convo(id),
+  send_time timestamp(3) NOT NULL DEFAULT now(),
+  update_time timestamp,
+  deleted_by_sender boolean NOT NULL DEFAULT false,
+  deleted_by_recipient boolean NOT NULL DEFAULT false
+);
+
+CREATE INDEX convo_sender_idx ON convo.convo (sender);
+CREATE INDEX convo_recipient_idx ON convo.convo (recipient);
+CREATE INDEX convo_thread_id_idx ON convo.convo (thread_id);
+CREATE INDEX convo_send_time_idx ON convo.convo (send_time);
+CREATE INDEX convo_recipient_send_time_idx ON convo.convo (recipient, send_time, id);
+CREATE INDEX convo_sender_send_time_idx ON convo.convo (sender, send_time, id);
+CREATE INDEX convo_thread_send_time_idx ON convo.convo (thread_id, send_time, id);
+
+CREATE TABLE convo.mailbox_counter(
+  user_id bigint PRIMARY KEY,
+  received int NOT NULL DEFAULT 0,
+  sent int NOT NULL DEFAULT 0,
+  unread int NOT NULL DEFAULT 0,
+  threads int NOT NULL DEFAULT 0
+);
+
+CREATE TABLE convo.thread_summary(
+  user_id bigint NOT NULL,
+  thread_id bigint NOT NULL,
+  last_convo_id bigint NOT NULL,
+  last_send_time timestamp(3) NOT NULL,
+  message_count int NOT NULL,
+  unread_count int NOT NULL,
+  deleted boolean NOT NULL DEFAULT false,
+  PRIMARY KEY (user_id, thread_id)
+);
+
+CREATE INDEX thread_summary_user_last_send_time_idx ON convo.thread_summary (user_id, last_send_time, last_convo_id) WHERE NOT deleted;
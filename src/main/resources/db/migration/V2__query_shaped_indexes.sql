@@ -0,0 +1,23 @@
+-- Replace the per-column indexes on convo.convo with indexes shaped like the queries that use them.
+--
+-- Mailbox listings filter on the owner and their deleted flag and order by (send_time, id), so
+-- partial indexes on (owner, send_time, id) leave out convos the owner deleted and return a page
+-- in order, without a sort. They also serve the counter rebuild and the user walk, which only
+-- look at convos someone can still see. Threads are read by thread_id, ordered the same way.
+--
+-- The single-column indexes are covered by the leading columns of these, and nothing orders the
+-- whole table by send_time.
+--
+-- CREATE INDEX locks out writes to convo.convo while it runs. On a large table, create the new
+-- indexes by hand first with CREATE INDEX CONCURRENTLY and the same names; they are skipped here.
+
+CREATE INDEX IF NOT EXISTS convo_recipient_visible_idx ON convo.convo (recipient, send_time, id) WHERE NOT deleted_by_recipient;
+CREATE INDEX IF NOT EXISTS convo_sender_visible_idx ON convo.convo (sender, send_time, id) WHERE NOT deleted_by_sender;
+CREATE INDEX IF NOT EXISTS convo_thread_send_time_idx ON convo.convo (thread_id, send_time, id);
+
+DROP INDEX IF EXISTS convo.convo_sender_idx;
+DROP INDEX IF EXISTS convo.convo_recipient_idx;
+DROP INDEX IF EXISTS convo.convo_thread_id_idx;
+DROP INDEX IF EXISTS convo.convo_send_time_idx;
+DROP INDEX IF EXISTS convo.convo_recipient_send_time_idx;
+DROP INDEX IF EXISTS convo.convo_sender_send_time_idx;
@@ -0,0 +1,28 @@
+-- Per-user mailbox index, hash-partitioned on user ID into 16 tables, convo.mailbox_0 to mailbox_15.
+--
+-- Each convo has a sender copy (sent = true) in its sender's partition and a recipient copy in
+-- its recipient's partition, for as long as that user can still see it. A mailbox listing reads
+-- one user's range of one partition's primary key, already in (send_time, convo_id) order, and
+-- joins each row of the page to convo.convo by ID. Each partition only holds its users' rows, so
+-- its index stays a sixteenth of the size of one over the whole table.
+--
+-- The partition of a user is picked by the service (MailboxPartitions), not by PostgreSQL, so the
+-- number of partitions can't be changed without moving every row.
+--
+-- The tables start out empty. The service writes both copies of every new convo from this
+-- version on; existing convos are copied by MailboxBackfillJob while the service runs.
+
+DO $$
+BEGIN
+  FOR i IN 0..15 LOOP
+    EXECUTE format(
+      'CREATE TABLE convo.mailbox_%s(
+         user_id bigint NOT NULL,
+         sent boolean NOT NULL,
+         send_time timestamp(3) NOT NULL,
+         convo_id bigint NOT NULL,
+         PRIMARY KEY (user_id, sent, send_time, convo_id)
+       )', i);
+  END LOOP;
+END
+$$;
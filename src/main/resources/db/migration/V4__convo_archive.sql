@@ -0,0 +1,46 @@
+-- Archive for old convos, convo.convo_archive, and a view over both tables, convo.convo_all.
+--
+-- ConvoArchiveJob moves convos past a configurable age out of convo.convo, oldest first by
+-- (send_time, id), so every archived convo is older than every convo left behind. Newest-first
+-- mailbox pages are then served from the small hot table and its indexes, which stay in memory,
+-- and only read the archive when they run past the oldest hot convo.
+--
+-- Archived rows are never updated in place except for read and deleted flags, so the table is
+-- packed full (fillfactor 100). It has the same listing indexes as the hot table.
+--
+-- A reply can point at an archived convo, so reply_to_convo loses its foreign key.
+
+ALTER TABLE convo.convo DROP CONSTRAINT IF EXISTS convo_reply_to_convo_fkey;
+
+CREATE TABLE convo.convo_archive(
+  id bigint PRIMARY KEY,
+  sender bigint NOT NULL,
+  recipient bigint NOT NULL,
+  subject varchar(140) NOT NULL,
+  body text,
+  body_hash bytea REFERENCES convo.convo_body(hash),
+  snippet varchar(160) NOT NULL,
+  was_read boolean NOT NULL,
+  thread_id bigint,
+  reply_to_convo bigint,
+  send_time timestamp(3) NOT NULL,
+  update_time timestamp,
+  deleted_by_sender boolean NOT NULL,
+  deleted_by_recipient boolean NOT NULL
+) WITH (fillfactor = 100);
+
+CREATE INDEX convo_archive_recipient_visible_idx ON convo.convo_archive (recipient, send_time, id) WHERE NOT deleted_by_recipient;
+CREATE INDEX convo_archive_sender_visible_idx ON convo.convo_archive (sender, send_time, id) WHERE NOT deleted_by_sender;
+CREATE INDEX convo_archive_thread_send_time_idx ON convo.convo_archive (thread_id, send_time, id);
+
+-- The archive job walks the hot table oldest first.
+CREATE INDEX IF NOT EXISTS convo_send_time_id_idx ON convo.convo (send_time, id);
+
+CREATE VIEW convo.convo_all AS
+  SELECT id, sender, recipient, subject, body, body_hash, snippet, was_read, thread_id, reply_to_convo,
+         send_time, update_time, deleted_by_sender, deleted_by_recipient
+  FROM convo.convo
+  UNION ALL
+  SELECT id, sender, recipient, subject, body, body_hash, snippet, was_read, thread_id, reply_to_convo,
+         send_time, update_time, deleted_by_sender, deleted_by_recipient
+  FROM convo.convo_archive;
@@ -0,0 +1,23 @@
+-- Long convo bodies stored compressed by the service, in body_z, with body left NULL.
+--
+-- body_z holds the format written by BodyCodec: a format byte, the UTF-8 length, then a zlib
+-- stream. Rows written before this version keep their text in body and read as before. The
+-- service compresses bodies longer than convos.body.compress-above characters once, when the
+-- convo is created, so the row, its TOAST chunks, the WAL and replication traffic all carry the
+-- compressed bytes, and only full views of a convo ever decompress them.
+--
+-- STORAGE EXTERNAL keeps PostgreSQL from trying to compress the already compressed bytes again.
+
+ALTER TABLE convo.convo ADD COLUMN body_z bytea;
+ALTER TABLE convo.convo ALTER COLUMN body_z SET STORAGE EXTERNAL;
+ALTER TABLE convo.convo_archive ADD COLUMN body_z bytea;
+ALTER TABLE convo.convo_archive ALTER COLUMN body_z SET STORAGE EXTERNAL;
+
+CREATE OR REPLACE VIEW convo.convo_all AS
+  SELECT id, sender, recipient, subject, body, body_hash, snippet, was_read, thread_id, reply_to_convo,
+         send_time, update_time, deleted_by_sender, deleted_by_recipient, body_z
+  FROM convo.convo
+  UNION ALL
+  SELECT id, sender, recipient, subject, body, body_hash, snippet, was_read, thread_id, reply_to_convo,
+         send_time, update_time, deleted_by_sender, deleted_by_recipient, body_z
+  FROM convo.convo_archive;
@@ -0,0 +1,29 @@
+-- Full-text search over a user's convos: a search column holding the subject (weight A) and body
+-- (weight B) as a tsvector, with GIN indexes that lead on the owner, so a search reads only the
+-- user's own matches from the index rather than every match in the table.
+--
+-- The leading bigint column of a GIN index needs btree_gin. Like the listing indexes, the indexes
+-- are partial on the owner's deleted flag.
+--
+-- New convos get their vector when they are written. Existing rows start out NULL, and therefore
+-- unsearchable, until SearchBackfillJob fills them in; their bodies may be compressed, which only
+-- the service can read.
+
+CREATE EXTENSION IF NOT EXISTS btree_gin;
+
+ALTER TABLE convo.convo ADD COLUMN search tsvector;
+ALTER TABLE convo.convo_archive ADD COLUMN search tsvector;
+
+CREATE INDEX convo_recipient_search_idx ON convo.convo USING gin (recipient, search) WHERE NOT deleted_by_recipient;
+CREATE INDEX convo_sender_search_idx ON convo.convo USING gin (sender, search) WHERE NOT deleted_by_sender;
+CREATE INDEX convo_archive_recipient_search_idx ON convo.convo_archive USING gin (recipient, search) WHERE NOT deleted_by_recipient;
+CREATE INDEX convo_archive_sender_search_idx ON convo.convo_archive USING gin (sender, search) WHERE NOT deleted_by_sender;
+
+CREATE OR REPLACE VIEW convo.convo_all AS
+  SELECT id, sender, recipient, subject, body, body_hash, snippet, was_read, thread_id, reply_to_convo,
+         send_time, update_time, deleted_by_sender, deleted_by_recipient, body_z, search
+  FROM convo.convo
+  UNION ALL
+  SELECT id, sender, recipient, subject, body, body_hash, snippet, was_read, thread_id, reply_to_convo,
+         send_time, update_time, deleted_by_sender, deleted_by_recipient, body_z, search
+  FROM convo.convo_archive;
@@ -0,0 +1,29 @@
+-- Incremental sync: change_txid records the transaction that last created or changed a convo as
+-- its sender or recipient sees it (created, read status toggled, deleted), so a client can ask for
+-- what changed after a point instead of re-reading whole pages.
+--
+-- Transaction IDs are used rather than a sequence because they can be compared against a
+-- snapshot: every transaction below the snapshot's xmin has finished, so changes below it are
+-- final and can't be overtaken by a slower transaction committing later with a lower number.
+--
+-- Existing rows start out NULL and are never reported as changes; clients start from a full read.
+-- The default is set separately so adding the column doesn't rewrite the table. Archived convos
+-- keep the value they had when they were moved, and deleted convos stay in the indexes as tombstones.
+
+ALTER TABLE convo.convo ADD COLUMN change_txid bigint;
+ALTER TABLE convo.convo ALTER COLUMN change_txid SET DEFAULT txid_current();
+ALTER TABLE convo.convo_archive ADD COLUMN change_txid bigint;
+
+CREATE INDEX convo_recipient_change_idx ON convo.convo (recipient, change_txid, id);
+CREATE INDEX convo_sender_change_idx ON convo.convo (sender, change_txid, id);
+CREATE INDEX convo_archive_recipient_change_idx ON convo.convo_archive (recipient, change_txid, id);
+CREATE INDEX convo_archive_sender_change_idx ON convo.convo_archive (sender, change_txid, id);
+
+CREATE OR REPLACE VIEW convo.convo_all AS
+  SELECT id, sender, recipient, subject, body, body_hash, snippet, was_read, thread_id, reply_to_convo,
+         send_time, update_time, deleted_by_sender, deleted_by_recipient, body_z, search, change_txid
+  FROM convo.convo
+  UNION ALL
+  SELECT id, sender, recipient, subject, body, body_hash, snippet, was_read, thread_id, reply_to_convo,
+         send_time, update_time, deleted_by_sender, deleted_by_recipient, body_z, search, change_txid
+  FROM convo.convo_archive;
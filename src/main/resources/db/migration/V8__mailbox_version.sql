@@ -0,0 +1,7 @@
+-- A per-user mailbox version, bumped by every counter adjustment, i.e. by every change to what the
+-- user's listings show. Listings carry it as their ETag, so an unchanged mailbox is answered with
+-- 304 Not Modified after one primary key lookup instead of a count and a page query.
+--
+-- mailbox_counter has one small row per user, so the rewrite for the default is quick.
+
+ALTER TABLE convo.mailbox_counter ADD COLUMN version bigint NOT NULL DEFAULT 0;
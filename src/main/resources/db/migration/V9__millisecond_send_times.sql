@@ -0,0 +1,24 @@
+-- Millisecond send times everywhere. V1 declares them timestamp(3), but a database set up by hand
+-- before migrations existed is baselined at V1 without checking, and may still hold microsecond
+-- values. Those break the keyset seek, since a cursor carries the millisecond time the API shows,
+-- and no longer match the timestamp(3) copies V3 wrote into the mailbox partitions. Casting rounds
+-- the same way those copies were rounded, so the tables agree again afterwards.
+--
+-- Where a column is already timestamp(3) the type doesn't change and its table isn't rewritten.
+-- Otherwise the table is rewritten and its indexes rebuilt under an exclusive lock. convo.convo_all selects send_time, so it is
+-- dropped and recreated as V7 left it.
+
+DROP VIEW convo.convo_all;
+
+ALTER TABLE convo.convo ALTER COLUMN send_time TYPE timestamp(3);
+ALTER TABLE convo.convo_archive ALTER COLUMN send_time TYPE timestamp(3);
+ALTER TABLE convo.thread_summary ALTER COLUMN last_send_time TYPE timestamp(3);
+
+CREATE VIEW convo.convo_all AS
+  SELECT id, sender, recipient, subject, body, body_hash, snippet, was_read, thread_id, reply_to_convo,
+         send_time, update_time, deleted_by_sender, deleted_by_recipient, body_z, search, change_txid
+  FROM convo.convo
+  UNION ALL
+  SELECT id, sender, recipient, subject, body, body_hash, snippet, was_read, thread_id, reply_to_convo,
+         send_time, update_time, deleted_by_sender, deleted_by_recipient, body_z, search, change_txid
+  FROM convo.convo_archive;
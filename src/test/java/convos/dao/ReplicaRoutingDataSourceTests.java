@@ -0,0 +1,145 @@
+package convos.dao;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ReplicaRoutingDataSourceTests
+{
+    private final DataSource primary = mock(DataSource.class);
+    private final DataSource replica = mock(DataSource.class);
+    private final Connection primaryConnection = mock(Connection.class);
+    private final Connection replicaConnection = mock(Connection.class);
+    private final ResultSet caughtUp = mock(ResultSet.class);
+
+    private ReplicaRoutingDataSource underTest;
+
+    @Before
+    public void setUp() throws SQLException
+    {
+        when(primary.getConnection()).thenReturn(primaryConnection);
+        when(replica.getConnection()).thenReturn(replicaConnection);
+        DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        when(metaData.getDatabaseMajorVersion()).thenReturn(9);
+        when(replicaConnection.getMetaData()).thenReturn(metaData);
+        PreparedStatement statement = mock(PreparedStatement.class);
+        when(replicaConnection.prepareStatement(anyString())).thenReturn(statement);
+        when(statement.executeQuery()).thenReturn(caughtUp);
+        when(caughtUp.next()).thenReturn(true);
+
+        underTest = new ReplicaRoutingDataSource(primary, ImmutableList.of(replica), 20, 5, 5000, new MetricRegistry());
+    }
+
+    @After
+    public void tearDown()
+    {
+        ReadRouting.setReadAfter(null);
+    }
+
+    @Test
+    public void getConnection_givenNoReplicaRead_usesPrimary() throws SQLException
+    {
+        assertSame(primaryConnection, underTest.getConnection());
+        verify(replica, never()).getConnection();
+    }
+
+    @Test
+    public void getConnection_givenReplicaRead_usesReplica() throws SQLException
+    {
+        assertSame(replicaConnection, replicaRead());
+    }
+
+    @Test
+    public void getConnection_givenCaughtUpReplica_usesReplica() throws SQLException
+    {
+        ReadRouting.setReadAfter("16/B374D848");
+        when(caughtUp.getBoolean(1)).thenReturn(true);
+
+        assertSame(replicaConnection, replicaRead());
+    }
+
+    @Test
+    public void getConnection_givenLaggingReplica_fallsBackToPrimary() throws SQLException
+    {
+        ReadRouting.setReadAfter("16/B374D848");
+        when(caughtUp.getBoolean(1)).thenReturn(false);
+
+        assertSame(primaryConnection, replicaRead());
+        verify(replicaConnection, atLeastOnce()).close();
+    }
+
+    @Test
+    public void getConnection_givenUnreachableReplica_usesPrimary() throws SQLException
+    {
+        when(replica.getConnection()).thenThrow(new SQLException("connection refused"));
+
+        assertSame(primaryConnection, replicaRead());
+    }
+
+    @Test
+    public void writePosition_givenNoReplicas_isNull()
+    {
+        underTest = new ReplicaRoutingDataSource(primary, ImmutableList.<DataSource>of(), 20, 5, 5000, new MetricRegistry());
+        assertNull(underTest.writePosition());
+    }
+
+    @Test
+    public void isPosition()
+    {
+        assertTrue(ReadRouting.isPosition("16/B374D848"));
+        assertTrue(ReadRouting.isPosition("0/0"));
+        assertFalse(ReadRouting.isPosition("16B374D848"));
+        assertFalse(ReadRouting.isPosition("16/B374D848'; --"));
+        assertFalse(ReadRouting.isPosition(null));
+    }
+
+    @Test
+    public void propagate_carriesPositionToTask() throws Exception
+    {
+        ReadRouting.setReadAfter("16/B374D848");
+        Callable<String> task = ReadRouting.propagate(new Callable<String>()
+        {
+            @Override
+            public String call()
+            {
+                return ReadRouting.getReadAfter();
+            }
+        });
+        ReadRouting.setReadAfter(null);
+
+        assertEquals("16/B374D848", task.call());
+        assertNull(ReadRouting.getReadAfter());
+    }
+
+    private Connection replicaRead() throws SQLException
+    {
+        final boolean previous = ReadRouting.beginReplicaRead();
+        try {
+            return underTest.getConnection();
+        } finally {
+            ReadRouting.endReplicaRead(previous);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package convos.domain;
+
+import static org.junit.Assert.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BodyCodecTests
+{
+    private static final String BODY = Strings.repeat("Lunch on Friday at noon? Caf\u00e9 by the station. ", 100);
+
+    @Test
+    public void compress_givenRepetitiveText_roundTrips()
+    {
+        byte[] compressed = BodyCodec.compress(BODY, 6);
+        assertTrue(compressed.length < BODY.length() / 4);
+        assertEquals(BodyCodec.DEFLATE, compressed[0]);
+        assertEquals(BODY, BodyCodec.decompress(compressed));
+    }
+
+    @Test
+    public void compress_givenShortText_returnsNull()
+    {
+        assertNull(BodyCodec.compress("Hi", 6));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void decompress_givenUnknownFormat_throws()
+    {
+        byte[] compressed = BodyCodec.compress(BODY, 6);
+        compressed[0] = 2;
+        BodyCodec.decompress(compressed);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void decompress_givenTruncatedData_throws()
+    {
+        byte[] compressed = BodyCodec.compress(BODY, 6);
+        BodyCodec.decompress(Arrays.copyOf(compressed, compressed.length - 10));
+    }
+
+    @Test
+    public void serialize_givenCompressedBody_writesText() throws Exception
+    {
+        Convo convo = Convo.withCompressedBody(5L, 1L, 2L, "s", BodyCodec.compress(BODY, 6), false, 9L, 1431782847123L, 0L, 0L);
+        String json = new ObjectMapper().writeValueAsString(convo);
+        assertTrue(json.contains("\"body\":\"" + BODY + "\""));
+        assertFalse(json.contains("compressed"));
+    }
+}
@@ -0,0 +1,38 @@
+package convos.domain;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BroadcastConvoTests
+{
+    @Test
+    public void constructor_givenRecipients_initsProperties()
+    {
+        BroadcastConvo broadcast = new BroadcastConvo(1, Arrays.asList(2L, 3L), "s", "b");
+        assertEquals(1, broadcast.getSender());
+        assertEquals(Arrays.asList(2L, 3L), broadcast.getRecipients());
+        assertEquals("s", broadcast.getSubject());
+        assertEquals("b", broadcast.getBody());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_givenNoRecipients_throwsException()
+    {
+        new BroadcastConvo(1, Collections.<Long>emptyList(), "s", "b");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_givenBodyOverLimitLength_throwsException()
+    {
+        char[] body = new char[64001];
+        Arrays.fill(body, 'a');
+        new BroadcastConvo(1, Arrays.asList(2L), "s", new String(body));
+    }
+}
@@ -0,0 +1,53 @@
+package convos.domain;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ConvoEventTests
+{
+    @Test
+    public void decode_givenEncodedEvents_roundTripsEveryField()
+    {
+        List<ConvoEvent> events = Arrays.asList(
+                new ConvoEvent(ConvoEvent.Type.RECEIVED, 24L, 1001L, 1000L),
+                new ConvoEvent(ConvoEvent.Type.DELETED, 25L, 1002L, 1002L));
+        List<String> payloads = ConvoEvent.encode(events, 7900);
+        assertEquals(1, payloads.size());
+
+        List<ConvoEvent> decoded = ConvoEvent.decode(payloads.get(0));
+        assertEquals(2, decoded.size());
+        assertEquals(ConvoEvent.Type.RECEIVED, decoded.get(0).getType());
+        assertEquals(24L, decoded.get(0).getUserId());
+        assertEquals(1001L, decoded.get(0).getConvoId());
+        assertEquals(1000L, decoded.get(0).getThreadId());
+        assertEquals(ConvoEvent.Type.DELETED, decoded.get(1).getType());
+    }
+
+    @Test
+    public void encode_givenMoreThanFitInOnePayload_splitsBetweenEvents()
+    {
+        List<ConvoEvent> events = new ArrayList<>();
+        for (long i = 0; i < 1000; i++) {
+            events.add(new ConvoEvent(ConvoEvent.Type.RECEIVED, 1000000L + i, 5000000L + i, 5000000L));
+        }
+        List<String> payloads = ConvoEvent.encode(events, 7900);
+        assertTrue(payloads.size() > 1);
+        int decoded = 0;
+        for (String payload : payloads) {
+            assertTrue(payload.length() <= 7900);
+            decoded += ConvoEvent.decode(payload).size();
+        }
+        assertEquals(1000, decoded);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_givenUnknownType_throws()
+    {
+        ConvoEvent.decode("x,24,1001,1000");
+    }
+}
@@ -0,0 +1,39 @@
+package convos.domain;
+
+import static org.junit.Assert.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ConvoTests
+{
+    private final Convo convo = new Convo(5L, 1L, 2L, "s", "b", false, 9L, 1431782847123L, 0L, 0L);
+
+    @Test
+    public void serialize_givenDatesAsTimestamps_writesEpochMillis() throws Exception
+    {
+        String json = new ObjectMapper().enable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS).writeValueAsString(convo);
+        assertTrue(json.contains("\"sendTime\":1431782847123"));
+        assertTrue(json.contains("\"updateTime\":null"));
+        assertTrue(json.contains("\"replyToConvo\":null"));
+    }
+
+    @Test
+    public void serialize_givenUpdatedConvo_writesUpdateTime() throws Exception
+    {
+        Convo updated = new Convo(5L, 1L, 2L, "s", "b", true, 9L, 1431782847123L, 1431782850000L, 0L);
+        String json = new ObjectMapper().enable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS).writeValueAsString(updated);
+        assertTrue(json.contains("\"updateTime\":1431782850000"));
+    }
+
+    @Test
+    public void serialize_givenDatesAsText_writesIsoInUtc() throws Exception
+    {
+        String json = new ObjectMapper().disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS).writeValueAsString(convo);
+        assertTrue(json.contains("\"sendTime\":\"2015-05-16T13:27:27.123Z\""));
+    }
+}
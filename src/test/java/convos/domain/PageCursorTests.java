@@ -0,0 +1,29 @@
+package convos.domain;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PageCursorTests
+{
+    @Test
+    public void decode_givenEncodedCursor_roundTrips()
+    {
+        PageCursor cursor = PageCursor.decode(new PageCursor(1431782847123L, 42L, true).encode());
+        assertEquals(1431782847123L, cursor.getSendTime());
+        assertEquals(42L, cursor.getId());
+        assertTrue(cursor.isBefore());
+    }
+
+    @Test
+    public void decode_givenEmptyString_returnsNullForFirstPage()
+    {
+        assertNull(PageCursor.decode(""));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void decode_givenGarbage_throwsBadRequest()
+    {
+        PageCursor.decode("not-a-cursor");
+    }
+}
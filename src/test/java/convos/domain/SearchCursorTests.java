@@ -0,0 +1,29 @@
+package convos.domain;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SearchCursorTests
+{
+    @Test
+    public void decode_givenEncodedCursor_roundTripsRankExactly()
+    {
+        float rank = 0.0607927f / 3;
+        SearchCursor cursor = SearchCursor.decode(new SearchCursor(rank, 42L).encode());
+        assertEquals(Float.floatToIntBits(rank), Float.floatToIntBits(cursor.getRank()));
+        assertEquals(42L, cursor.getId());
+    }
+
+    @Test
+    public void decode_givenEmptyString_returnsNullForFirstPage()
+    {
+        assertNull(SearchCursor.decode(""));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void decode_givenPageCursor_throwsBadRequest()
+    {
+        SearchCursor.decode(new PageCursor(1431782847123L, 42L, false).encode());
+    }
+}
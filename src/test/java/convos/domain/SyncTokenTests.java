@@ -0,0 +1,30 @@
+package convos.domain;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SyncTokenTests
+{
+    @Test
+    public void decode_givenEncodedToken_roundTripsEveryField()
+    {
+        SyncToken token = SyncToken.decode(new SyncToken(4294967301L, 42L, true).encode());
+        assertEquals(4294967301L, token.getTxid());
+        assertEquals(42L, token.getId());
+        assertTrue(token.isSent());
+    }
+
+    @Test
+    public void decode_givenEmptyString_returnsNull()
+    {
+        assertNull(SyncToken.decode(""));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void decode_givenSearchCursor_throwsBadRequest()
+    {
+        SyncToken.decode(new SearchCursor(0.5f, 42L).encode());
+    }
+
+}
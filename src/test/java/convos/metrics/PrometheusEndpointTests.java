@@ -0,0 +1,43 @@
+package convos.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class PrometheusEndpointTests
+{
+    @Test
+    public void testFormat()
+    {
+        MetricRegistry registry = new SummingMetricRegistry();
+        registry.timer("dao.ConvoDao.getConvosSent").update(2, TimeUnit.SECONDS);
+        registry.meter("dao.ConvoDao.getConvosSent.errors").mark(3);
+        registry.timer("dao.ConvoDao.getConvosSent").update(1, TimeUnit.SECONDS);
+        registry.histogram("dao.ConvoDao.getConvosSent.rows").update(20);
+        registry.histogram("dao.ConvoDao.getConvosSent.rows").update(5);
+        registry.register("datasource.pool.active", new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return 4;
+            }
+        });
+
+        String text = PrometheusEndpoint.format(registry);
+
+        assertTrue(text.contains("# TYPE convos_dao_ConvoDao_getConvosSent_seconds summary\n"));
+        assertTrue(text.contains("convos_dao_ConvoDao_getConvosSent_seconds{quantile=\"0.99\"} 2.0\n"));
+        assertTrue(text.contains("convos_dao_ConvoDao_getConvosSent_seconds_count 2.0\n"));
+        assertTrue(text.contains("convos_dao_ConvoDao_getConvosSent_seconds_sum 3.0\n"));
+        assertTrue(text.contains("# TYPE convos_dao_ConvoDao_getConvosSent_errors_total counter\n"));
+        assertTrue(text.contains("convos_dao_ConvoDao_getConvosSent_errors_total 3.0\n"));
+        assertTrue(text.contains("convos_dao_ConvoDao_getConvosSent_rows_count 2.0\n"));
+        assertTrue(text.contains("convos_dao_ConvoDao_getConvosSent_rows_sum 25.0\n"));
+        assertTrue(text.contains("convos_datasource_pool_active 4.0\n"));
+    }
+}
@@ -0,0 +1,77 @@
+package convos.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SlowQueryLogTests
+{
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final SlowQueryLog log = new SlowQueryLog(new MetricRegistry(), 100, 2, false, 300, 10000);
+
+    @Test
+    public void testFastStatementsAreNotOffenders()
+    {
+        log.record("SELECT 1", null, 10 * MS);
+        assertTrue(log.top().isEmpty());
+    }
+
+    @Test
+    public void testShapesCollapseWhitespace()
+    {
+        log.record("SELECT *   FROM convo.convo\nWHERE id = :id ", null, 200 * MS);
+        log.record("SELECT * FROM convo.convo WHERE id = :id", null, 10 * MS);
+        log.record(" SELECT * FROM convo.convo WHERE id = :id", null, 300 * MS);
+
+        List<SlowQuery> top = log.top();
+        assertEquals(1, top.size());
+        SlowQuery q = top.get(0);
+        assertEquals("SELECT * FROM convo.convo WHERE id = :id", q.getSql());
+        assertEquals(3, q.getCalls());
+        assertEquals(2, q.getSlowCalls());
+        assertEquals(170.0, q.getMeanMillis(), 0.001);
+        assertEquals(300.0, q.getMaxMillis(), 0.001);
+        assertNull(q.getPlan());
+    }
+
+    @Test
+    public void testKeepsWorstOffenders()
+    {
+        log.record("SELECT a", null, 200 * MS);
+        log.record("SELECT b", null, 400 * MS);
+        log.record("SELECT c", null, 150 * MS);
+        log.record("SELECT d", null, 300 * MS);
+
+        List<SlowQuery> top = log.top();
+        assertEquals(2, top.size());
+        assertEquals("SELECT b", top.get(0).getSql());
+        assertEquals("SELECT d", top.get(1).getSql());
+    }
+
+    @Test
+    public void testExplainable()
+    {
+        assertTrue(SlowQueryLog.explainable("SELECT id FROM convo.convo"));
+        assertTrue(SlowQueryLog.explainable("insert INTO convo.convo"));
+        assertTrue(SlowQueryLog.explainable("WITH x AS (SELECT 1) SELECT * FROM x"));
+        assertFalse(SlowQueryLog.explainable("SET LOCAL statement_timeout = 10"));
+    }
+
+    @Test
+    public void testAnalyzable()
+    {
+        assertTrue(SlowQueryLog.analyzable("SELECT id FROM convo.convo"));
+        assertFalse(SlowQueryLog.analyzable("insert INTO convo.convo"));
+        assertFalse(SlowQueryLog.analyzable("UPDATE convo.convo SET read = true"));
+        assertFalse(SlowQueryLog.analyzable("WITH moved AS (DELETE FROM convo.convo RETURNING *) SELECT count(*) FROM moved"));
+        assertFalse(SlowQueryLog.analyzable("SELECT id FROM convo.convo WHERE id = :id FOR UPDATE"));
+    }
+}
@@ -0,0 +1,43 @@
+package convos.service;
+
+import static org.junit.Assert.*;
+
+import convos.domain.Convo;
+import convos.domain.StoredConvo;
+import org.junit.Test;
+
+public class ConvoCacheTests
+{
+    private final long CONVO_ID = 5L;
+    private final StoredConvo STORED = new StoredConvo(
+            new Convo(CONVO_ID, 24L, 25L, "s", "b", false, 29L, 1000L, 0L, 0L), false, false);
+
+    private final ConvoCache underTest = new ConvoCache(100, 60);
+
+    @Test
+    public void put_givenUnchangedGeneration_caches()
+    {
+        underTest.put(CONVO_ID, STORED, underTest.generation(CONVO_ID));
+        assertSame(STORED, underTest.get(CONVO_ID));
+    }
+
+    @Test
+    public void put_givenInvalidationSinceLoad_skipsStaleConvo()
+    {
+        long generation = underTest.generation(CONVO_ID);
+        underTest.invalidate(CONVO_ID);
+        underTest.put(CONVO_ID, STORED, generation);
+        assertNull(underTest.get(CONVO_ID));
+    }
+
+    @Test
+    public void invalidateAll_dropsEntriesAndLoadsInProgress()
+    {
+        long generation = underTest.generation(CONVO_ID + 1);
+        underTest.put(CONVO_ID, STORED, underTest.generation(CONVO_ID));
+        underTest.invalidateAll();
+        assertNull(underTest.get(CONVO_ID));
+        underTest.put(CONVO_ID + 1, STORED, generation);
+        assertNull(underTest.get(CONVO_ID + 1));
+    }
+}
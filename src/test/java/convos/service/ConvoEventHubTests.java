@@ -0,0 +1,133 @@
+package convos.service;
+
+import static org.junit.Assert.*;
+
+import convos.domain.ConvoEvent;
+import convos.domain.ServiceUnavailableException;
+import convos.domain.StreamResponse;
+import org.junit.Test;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ConvoEventHubTests
+{
+    private final long USER_ID = 24L;
+    private final long OTHER_USER_ID = 25L;
+    private final long TIMEOUT = 30000L;
+
+    private final ConvoEventHub underTest = new ConvoEventHub(4, 2, 120);
+
+    @Test
+    public void poll_givenNoCursor_returnsCurrentPositionAtOnce()
+    {
+        underTest.publish(Collections.singletonList(received(USER_ID, 7L)));
+        StreamResponse response = (StreamResponse)underTest.poll(USER_ID, null, TIMEOUT).getResult();
+        assertTrue(response.getEvents().isEmpty());
+        assertFalse(underTest.poll(USER_ID, response.getCursor(), TIMEOUT).hasResult());
+    }
+
+    @Test
+    public void poll_givenNoEvents_waitsUntilOneForTheUserArrives()
+    {
+        DeferredResult<StreamResponse> result = underTest.poll(USER_ID, start(), TIMEOUT);
+        assertFalse(result.hasResult());
+
+        underTest.publish(Collections.singletonList(received(OTHER_USER_ID, 7L)));
+        assertFalse(result.hasResult());
+
+        underTest.publish(Collections.singletonList(received(USER_ID, 8L)));
+        StreamResponse response = (StreamResponse)result.getResult();
+        assertEquals(1, response.getEvents().size());
+        assertEquals(8L, response.getEvents().get(0).getConvoId());
+        assertFalse(response.isResync());
+        assertEquals(0, underTest.getClients());
+    }
+
+    @Test
+    public void poll_givenEventsSinceCursor_returnsThemAtOnce()
+    {
+        String cursor = ((StreamResponse)waitForEvent(USER_ID, 7L).getResult()).getCursor();
+        underTest.publish(Collections.singletonList(received(OTHER_USER_ID, 8L)));
+        underTest.publish(Collections.singletonList(received(USER_ID, 9L)));
+
+        StreamResponse response = (StreamResponse)underTest.poll(USER_ID, cursor, TIMEOUT).getResult();
+        assertEquals(1, response.getEvents().size());
+        assertEquals(9L, response.getEvents().get(0).getConvoId());
+
+        assertFalse(underTest.poll(USER_ID, response.getCursor(), TIMEOUT).hasResult());
+    }
+
+    @Test
+    public void poll_givenCursorOlderThanBuffer_asksForResync()
+    {
+        String cursor = ((StreamResponse)waitForEvent(USER_ID, 7L).getResult()).getCursor();
+        for (long id = 8L; id < 13L; id++) {
+            underTest.publish(Collections.singletonList(received(USER_ID, id)));
+        }
+        assertTrue(((StreamResponse)underTest.poll(USER_ID, cursor, TIMEOUT).getResult()).isResync());
+    }
+
+    @Test
+    public void publish_givenEventsForUsersWithoutCursor_keepsThemForNobody()
+    {
+        String cursor = ((StreamResponse)waitForEvent(USER_ID, 7L).getResult()).getCursor();
+        List<ConvoEvent> broadcast = new ArrayList<>();
+        for (long userId = 100L; userId < 200L; userId++) {
+            broadcast.add(received(userId, 8L));
+        }
+        underTest.publish(broadcast);
+        assertEquals(1, underTest.getUsers());
+        // Larger than the buffer, but none of it was the user's
+        assertFalse(underTest.poll(USER_ID, cursor, TIMEOUT).hasResult());
+    }
+
+    @Test
+    public void poll_givenUserIdleTooLong_asksForResync()
+    {
+        ConvoEventHub hub = new ConvoEventHub(4, 2, 0);
+        String cursor = ((StreamResponse)hub.poll(USER_ID, null, TIMEOUT).getResult()).getCursor();
+        hub.publish(Collections.singletonList(received(USER_ID, 7L)));
+        assertEquals(0, hub.getUsers());
+        assertTrue(((StreamResponse)hub.poll(USER_ID, cursor, TIMEOUT).getResult()).isResync());
+    }
+
+    @Test
+    public void reset_answersWaitingPollsAndInvalidatesCursors()
+    {
+        String cursor = ((StreamResponse)waitForEvent(USER_ID, 7L).getResult()).getCursor();
+        DeferredResult<StreamResponse> waiting = underTest.poll(USER_ID, cursor, TIMEOUT);
+
+        underTest.reset();
+        assertTrue(((StreamResponse)waiting.getResult()).isResync());
+        assertTrue(((StreamResponse)underTest.poll(USER_ID, cursor, TIMEOUT).getResult()).isResync());
+    }
+
+    @Test(expected = ServiceUnavailableException.class)
+    public void poll_givenTooManyWaiting_throwsServiceUnavailable()
+    {
+        String cursor = start();
+        underTest.poll(USER_ID, cursor, TIMEOUT);
+        underTest.poll(OTHER_USER_ID, cursor, TIMEOUT);
+        underTest.poll(USER_ID, cursor, TIMEOUT);
+    }
+
+    private String start()
+    {
+        return ((StreamResponse)underTest.poll(USER_ID, null, TIMEOUT).getResult()).getCursor();
+    }
+
+    private DeferredResult<StreamResponse> waitForEvent(final long userId, final long convoId)
+    {
+        DeferredResult<StreamResponse> result = underTest.poll(userId, start(), TIMEOUT);
+        underTest.publish(Collections.singletonList(received(userId, convoId)));
+        return result;
+    }
+
+    private static ConvoEvent received(final long userId, final long convoId)
+    {
+        return new ConvoEvent(ConvoEvent.Type.RECEIVED, userId, convoId, convoId);
+    }
+}
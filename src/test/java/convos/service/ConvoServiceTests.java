@@ -3,18 +3,59 @@ package convos.service;
 import static org.mockito.Mockito.*;
 import static org.junit.Assert.*;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import convos.dao.ConvoDao;
+import convos.dao.ConvoEventDao;
+import convos.dao.MailboxCounterDao;
+import convos.dao.MailboxDao;
+import convos.dao.ThreadSummaryDao;
+import convos.domain.BadRequestException;
+import convos.domain.BatchCreateConvo;
+import convos.domain.BroadcastConvo;
+import convos.domain.ChangesResponse;
 import convos.domain.Convo;
+import convos.domain.ConvoChange;
+import convos.domain.ConvoChanges;
+import convos.domain.ConvoEvent;
+import convos.domain.ConvoView;
 import convos.domain.ConvosResponse;
+import convos.domain.CreateConvo;
+import convos.domain.MailboxCounters;
+import convos.domain.ResourceNotFoundException;
+import convos.domain.SearchCursor;
+import convos.domain.SearchHit;
+import convos.domain.SearchResponse;
+import convos.domain.ServiceUnavailableException;
+import convos.domain.PageCursor;
 import convos.domain.SortDirection;
+import convos.domain.StoredConvo;
+import convos.domain.SyncToken;
+import convos.domain.ThreadPage;
 import convos.domain.ThreadsResponse;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ConvoServiceTests
@@ -22,8 +63,22 @@ public class ConvoServiceTests
     @InjectMocks ConvoService underTest;
 
     @Mock ConvoDao convoDao;
+    @Mock MailboxCounterDao counterDao;
+    @Mock ThreadSummaryDao threadSummaryDao;
+    @Mock MailboxDao mailboxDao;
+    @Mock ConvoEventDao eventDao;
     @Mock List<Convo> convos;
+    @Mock ListingStream stream;
+    @Mock InboxHeadsStream headsStream;
+    @Mock PlatformTransactionManager transactionManager;
+    @Spy ConvoCache convoCache = new ConvoCache(100, 60);
 
+    @Before
+    public void setUp()
+    {
+        underTest.listingExecutor = MoreExecutors.sameThreadExecutor();
+        when(counterDao.getCounters(anyLong())).thenReturn(new MailboxCounters(0, 0, 0, 0));
+    }
 
     private final long USER_ID = 24L;
     private final int OFFSET = 110;
@@ -32,12 +87,12 @@ public class ConvoServiceTests
     private final long THREAD_ID = 29L;
 
     @Test
-    public void getConvosReceived_buildsResponseFromTotalOffsetAndPaths()
+    public void getConvosReceived_buildsResponseFromTotalOffsetAndPaths() throws Exception
     {
-        when(convoDao.getTotalConvosReceived(USER_ID)).thenReturn(TOTAL);
-        when(convoDao.getConvosReceived(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING))
+        when(counterDao.getCounters(USER_ID)).thenReturn(new MailboxCounters(TOTAL, 0, 0, 0));
+        when(convoDao.getConvosReceived(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL))
             .thenReturn(convos);
-        ConvosResponse response = underTest.getConvosReceived(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING);
+        ConvosResponse response = underTest.getConvosReceived(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL).get();
         assertEquals(TOTAL, response.getTotal());
         assertEquals(convos, response.getConvos());
         assertEquals(OFFSET, response.getOffset());
@@ -46,12 +101,27 @@ public class ConvoServiceTests
     }
 
     @Test
-    public void getConvosSent_buildsResponseFromTotalOffsetAndPaths()
+    public void getConvosReceived_tagsPageWithVersionReadInItsSnapshot() throws Exception
     {
-        when(convoDao.getTotalConvosSent(USER_ID)).thenReturn(TOTAL);
-        when(convoDao.getConvosSent(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING))
+        when(counterDao.getCounters(USER_ID)).thenReturn(new MailboxCounters(TOTAL, 0, 0, 0, 7L));
+        when(convoDao.getConvosReceived(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL))
+            .thenReturn(convos);
+        ConvosResponse response = underTest.getConvosReceived(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL).get();
+        assertEquals(Long.valueOf(7L), response.getMailboxVersion());
+
+        ArgumentCaptor<TransactionDefinition> snapshot = ArgumentCaptor.forClass(TransactionDefinition.class);
+        verify(transactionManager).getTransaction(snapshot.capture());
+        assertTrue(snapshot.getValue().isReadOnly());
+        assertEquals(TransactionDefinition.ISOLATION_REPEATABLE_READ, snapshot.getValue().getIsolationLevel());
+    }
+
+    @Test
+    public void getConvosSent_buildsResponseFromTotalOffsetAndPaths() throws Exception
+    {
+        when(counterDao.getCounters(USER_ID)).thenReturn(new MailboxCounters(0, TOTAL, 0, 0));
+        when(convoDao.getConvosSent(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL))
                 .thenReturn(convos);
-        ConvosResponse response = underTest.getConvosSent(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING);
+        ConvosResponse response = underTest.getConvosSent(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL).get();
         assertEquals(TOTAL, response.getTotal());
         assertEquals(convos, response.getConvos());
         assertEquals(OFFSET, response.getOffset());
@@ -60,12 +130,12 @@ public class ConvoServiceTests
     }
 
     @Test
-    public void getThreads_buildsResponseFromTotalOffsetAndPaths()
+    public void getThreads_buildsResponseFromTotalOffsetAndPaths() throws Exception
     {
-        when(convoDao.getTotalThreads(USER_ID)).thenReturn(TOTAL);
-        when(convoDao.getThreads(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING))
-                .thenReturn(convos);
-        ThreadsResponse response = underTest.getThreads(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING);
+        when(counterDao.getCounters(USER_ID)).thenReturn(new MailboxCounters(0, 0, 0, TOTAL));
+        when(convoDao.getThreads(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL))
+                .thenReturn(new ThreadPage(convos, Collections.<Long, Integer>emptyMap()));
+        ThreadsResponse response = underTest.getThreads(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL).get();
         assertEquals(TOTAL, response.getTotal());
         assertEquals(convos, response.getConvos());
         assertEquals(OFFSET, response.getOffset());
@@ -74,16 +144,404 @@ public class ConvoServiceTests
     }
 
     @Test
-    public void getThread_buildsResponseFromTotalOffsetAndPaths()
+    public void getThreads_givenPage_carriesUnreadCountPerThread() throws Exception
+    {
+        Convo a = new Convo(5L, 25L, USER_ID, "s", "b", false, THREAD_ID, 2000L, 0L, 0L);
+        Convo b = new Convo(6L, USER_ID, 25L, "s", "b", false, 31L, 1000L, 0L, 0L);
+        when(counterDao.getCounters(USER_ID)).thenReturn(new MailboxCounters(0, 0, 0, TOTAL));
+        when(convoDao.getThreads(USER_ID, (PageCursor)null, LIMIT, SortDirection.DESCENDING, ConvoView.FULL))
+                .thenReturn(new ThreadPage(Arrays.asList(a, b), ImmutableMap.of(THREAD_ID, 3, 31L, 0)));
+        ThreadsResponse response = underTest.getThreads(USER_ID, (PageCursor)null, LIMIT, SortDirection.DESCENDING, ConvoView.FULL).get();
+        assertEquals(Arrays.asList(a, b), response.getConvos());
+        assertEquals(ImmutableMap.of(THREAD_ID, 3, 31L, 0), response.getUnreadCounts());
+    }
+
+    @Test
+    public void getUnreadCounts_returnsCountsInRequestOrderWithZeroForUnknownUsers()
+    {
+        when(counterDao.getUnreadCounts(anyCollection())).thenReturn(ImmutableMap.of(USER_ID, 4));
+        Map<Long, Integer> unread = underTest.getUnreadCounts(Arrays.asList(25L, USER_ID));
+        assertEquals(Arrays.asList(25L, USER_ID), new ArrayList<>(unread.keySet()));
+        assertEquals(Integer.valueOf(0), unread.get(25L));
+        assertEquals(Integer.valueOf(4), unread.get(USER_ID));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void getUnreadCounts_givenTooManyUsers_throwsBadRequest()
+    {
+        try {
+            underTest.getUnreadCounts(Collections.nCopies(ConvoService.MAX_UNREAD_USERS + 1, USER_ID));
+        } finally {
+            verifyZeroInteractions(counterDao);
+        }
+    }
+
+    @Test
+    public void getThread_buildsResponseFromTotalOffsetAndPaths() throws Exception
     {
         when(convoDao.getTotalInThread(USER_ID, THREAD_ID)).thenReturn(TOTAL);
-        when(convoDao.getThread(USER_ID, THREAD_ID, OFFSET, LIMIT, SortDirection.ASCENDING))
+        when(convoDao.getThread(USER_ID, THREAD_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL))
                 .thenReturn(convos);
-        ConvosResponse response = underTest.getThread(USER_ID, THREAD_ID, OFFSET, LIMIT, SortDirection.ASCENDING);
+        ConvosResponse response = underTest.getThread(USER_ID, THREAD_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL).get();
         assertEquals(TOTAL, response.getTotal());
         assertEquals(convos, response.getConvos());
         assertEquals(OFFSET, response.getOffset());
         assertEquals("/api/v1/"+USER_ID+"/threads/"+THREAD_ID+"?offset="+(OFFSET+LIMIT)+"&limit="+LIMIT+"&direction=asc", response.getNext());
         assertEquals("/api/v1/"+USER_ID+"/threads/"+THREAD_ID+"?offset="+(OFFSET-LIMIT)+"&limit="+LIMIT+"&direction=asc", response.getPrevious());
     }
+
+    @Test
+    public void getConvosReceived_givenCursor_buildsCursorPathsFromPageEdges() throws Exception
+    {
+        Convo first = new Convo(5L, 1L, USER_ID, "s", "b", false, THREAD_ID, 2000L, 0L, 0L);
+        Convo last = new Convo(4L, 1L, USER_ID, "s", "b", false, THREAD_ID, 1000L, 0L, 0L);
+        PageCursor cursor = new PageCursor(3000L, 6L, false);
+        when(counterDao.getCounters(USER_ID)).thenReturn(new MailboxCounters(TOTAL, 0, 0, 0));
+        when(convoDao.getConvosReceived(USER_ID, cursor, 2, SortDirection.DESCENDING, ConvoView.FULL))
+                .thenReturn(Arrays.asList(first, last));
+        ConvosResponse response = underTest.getConvosReceived(USER_ID, cursor, 2, SortDirection.DESCENDING, ConvoView.FULL).get();
+        assertEquals(TOTAL, response.getTotal());
+        assertEquals(PageCursor.after(last).encode(), response.getNextCursor());
+        assertEquals(PageCursor.before(first).encode(), response.getPreviousCursor());
+        assertEquals("/api/v1/"+USER_ID+"/convos/received?cursor="+response.getNextCursor()+"&limit=2&direction=desc", response.getNext());
+    }
+
+    @Test
+    public void getConvosReceived_givenFirstCursorPageShorterThanLimit_hasNoNextOrPrevious() throws Exception
+    {
+        Convo only = new Convo(5L, 1L, USER_ID, "s", "b", false, THREAD_ID, 2000L, 0L, 0L);
+        when(counterDao.getCounters(USER_ID)).thenReturn(new MailboxCounters(1, 0, 0, 0));
+        when(convoDao.getConvosReceived(USER_ID, (PageCursor)null, 2, SortDirection.DESCENDING, ConvoView.FULL))
+                .thenReturn(Arrays.asList(only));
+        ConvosResponse response = underTest.getConvosReceived(USER_ID, (PageCursor)null, 2, SortDirection.DESCENDING, ConvoView.FULL).get();
+        assertNull(response.getNext());
+        assertNull(response.getPrevious());
+    }
+
+    @Test
+    public void getConvosReceived_givenListingExecutorFull_failsWithServiceUnavailable() throws Exception
+    {
+        underTest.listingExecutor.shutdown();
+        try {
+            underTest.getConvosReceived(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ServiceUnavailableException);
+        }
+        verifyZeroInteractions(convoDao, counterDao);
+    }
+
+    @Test
+    public void getConvosReceived_givenPageRejected_cancelsTotal() throws Exception
+    {
+        SettableFuture<Integer> total = SettableFuture.create();
+        underTest.listingExecutor = mock(ListeningExecutorService.class);
+        doReturn(total).doThrow(new RejectedExecutionException())
+                .when(underTest.listingExecutor).submit(any(Callable.class));
+        try {
+            underTest.getConvosReceived(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.FULL).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ServiceUnavailableException);
+        }
+        assertTrue(total.isCancelled());
+    }
+
+    @Test
+    public void createConvo_givenNewThread_countsConvoAndThreadForBothUsers()
+    {
+        long recipient = 25L;
+        CreateConvo create = new CreateConvo(USER_ID, recipient, "s", "b");
+        Convo created = new Convo(5L, USER_ID, recipient, "s", "b", false, THREAD_ID, 1000L, 0L, 0L);
+        when(convoDao.createConvo(create, null)).thenReturn(created);
+        when(threadSummaryDao.recordConvo(USER_ID, created)).thenReturn(true);
+        when(threadSummaryDao.recordConvo(recipient, created)).thenReturn(true);
+        assertEquals(5L, underTest.createConvo(create, null));
+        verify(mailboxDao).add(Collections.singletonList(created));
+        verify(counterDao).adjust(USER_ID, 0, 1, 0, 1);
+        verify(counterDao).adjust(recipient, 1, 0, 1, 1);
+    }
+
+    @Test
+    public void deleteConvo_givenLastUnreadReceivedConvoInThread_decrementsReceivedUnreadAndThreads()
+    {
+        Convo received = new Convo(5L, 25L, USER_ID, "s", "b", false, THREAD_ID, 1000L, 0L, 0L);
+        when(convoDao.deleteReceivedConvo(USER_ID, 5L)).thenReturn(received);
+        when(threadSummaryDao.refresh(USER_ID, THREAD_ID)).thenReturn(true);
+        underTest.deleteConvo(USER_ID, 5L);
+        verify(mailboxDao).remove(USER_ID, false, Collections.singletonList(received));
+        verify(mailboxDao, never()).remove(eq(USER_ID), eq(true), anyList());
+        verify(counterDao).adjust(USER_ID, -1, 0, -1, -1);
+    }
+
+    @Test
+    public void changeConvoReadStatus_givenConvoNowRead_decrementsUnread()
+    {
+        Convo read = new Convo(5L, 25L, USER_ID, "s", "b", true, THREAD_ID, 1000L, 0L, 0L);
+        when(convoDao.changeConvoReadStatus(USER_ID, 5L)).thenReturn(read);
+        underTest.changeConvoReadStatus(USER_ID, 5L);
+        verify(threadSummaryDao).adjustUnread(USER_ID, THREAD_ID, -1);
+        verify(counterDao).adjust(USER_ID, 0, 0, -1, 0);
+    }
+
+    @Test
+    public void changeConvoReadStatus_bumpsSenderMailboxVersion()
+    {
+        Convo read = new Convo(5L, 25L, USER_ID, "s", "b", true, THREAD_ID, 1000L, 0L, 0L);
+        when(convoDao.changeConvoReadStatus(USER_ID, 5L)).thenReturn(read);
+        underTest.changeConvoReadStatus(USER_ID, 5L);
+        verify(counterDao).adjust(25L, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void changeConvoReadStatus_givenConvoNowRead_publishesReadEvent()
+    {
+        Convo read = new Convo(5L, 25L, USER_ID, "s", "b", true, THREAD_ID, 1000L, 0L, 0L);
+        when(convoDao.changeConvoReadStatus(USER_ID, 5L)).thenReturn(read);
+        underTest.changeConvoReadStatus(USER_ID, 5L);
+        ArgumentCaptor<List> events = ArgumentCaptor.forClass(List.class);
+        verify(eventDao).publish(events.capture());
+        ConvoEvent event = (ConvoEvent) events.getValue().get(0);
+        assertEquals(ConvoEvent.Type.READ, event.getType());
+        assertEquals(USER_ID, event.getUserId());
+        assertEquals(5L, event.getConvoId());
+        assertEquals(THREAD_ID, event.getThreadId());
+    }
+
+    @Test
+    public void changeConvoReadStatus_givenUnknownConvo_publishesNothing()
+    {
+        underTest.changeConvoReadStatus(USER_ID, 5L);
+        verifyZeroInteractions(eventDao);
+    }
+
+    @Test
+    public void getConvosSent_givenSummaryView_carriesViewIntoPaths() throws Exception
+    {
+        when(counterDao.getCounters(USER_ID)).thenReturn(new MailboxCounters(0, TOTAL, 0, 0));
+        when(convoDao.getConvosSent(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.SUMMARY))
+                .thenReturn(convos);
+        ConvosResponse response = underTest.getConvosSent(USER_ID, OFFSET, LIMIT, SortDirection.ASCENDING, ConvoView.SUMMARY).get();
+        assertEquals(convos, response.getConvos());
+        assertEquals("/api/v1/"+USER_ID+"/convos/sent?offset="+(OFFSET+LIMIT)+"&limit="+LIMIT+"&direction=asc&view=summary", response.getNext());
+    }
+
+    @Test
+    public void createConvos_returnsIdsInOrderAndCountsNewThreads()
+    {
+        BatchCreateConvo a = new BatchCreateConvo(USER_ID, 25L, "s", "b", null);
+        BatchCreateConvo b = new BatchCreateConvo(USER_ID, 26L, "s", "b", 3L);
+        Convo createdA = new Convo(7L, USER_ID, 25L, "s", "b", false, THREAD_ID, 1000L, 0L, 0L);
+        Convo createdB = new Convo(8L, USER_ID, 26L, "s", "b", false, 3L, 1000L, 0L, 3L);
+        when(convoDao.getExistingConvoIds(Collections.singleton(3L))).thenReturn(Collections.singleton(3L));
+        when(convoDao.createConvos(Arrays.asList(a, b))).thenReturn(Arrays.asList(createdA, createdB));
+        when(threadSummaryDao.recordConvos(Arrays.asList(createdA, createdB)))
+                .thenReturn(ImmutableMap.of(USER_ID, 1, 25L, 1));
+
+        assertEquals(Arrays.asList(7L, 8L), underTest.createConvos(Arrays.asList(a, b)));
+
+        ArgumentCaptor<SortedMap> deltas = ArgumentCaptor.forClass(SortedMap.class);
+        verify(counterDao).adjustAll(deltas.capture());
+        MailboxCounters sender = (MailboxCounters) deltas.getValue().get(USER_ID);
+        assertEquals(2, sender.getSent());
+        assertEquals(1, sender.getThreads());
+        MailboxCounters other = (MailboxCounters) deltas.getValue().get(26L);
+        assertEquals(1, other.getUnread());
+        assertEquals(0, other.getThreads());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void createConvos_givenUnknownReplyTarget_rejectsWholeBatch()
+    {
+        BatchCreateConvo reply = new BatchCreateConvo(USER_ID, 25L, "s", "b", 3L);
+        when(convoDao.getExistingConvoIds(Collections.singleton(3L))).thenReturn(Collections.<Long>emptySet());
+        try {
+            underTest.createConvos(Collections.singletonList(reply));
+        } finally {
+            verify(convoDao, never()).createConvos(anyList());
+        }
+    }
+
+    @Test
+    public void broadcastConvo_countsOneConvoPerRecipient()
+    {
+        BroadcastConvo broadcast = new BroadcastConvo(USER_ID, Arrays.asList(25L, 26L), "s", "b");
+        Convo first = new Convo(7L, USER_ID, 25L, "s", null, false, 40L, 1000L, 0L, 0L);
+        Convo second = new Convo(8L, USER_ID, 26L, "s", null, false, 41L, 1000L, 0L, 0L);
+        when(convoDao.broadcastConvo(broadcast)).thenReturn(Arrays.asList(first, second));
+        when(threadSummaryDao.recordConvos(Arrays.asList(first, second)))
+                .thenReturn(ImmutableMap.of(USER_ID, 2, 25L, 1, 26L, 1));
+
+        assertEquals(Arrays.asList(7L, 8L), underTest.broadcastConvo(broadcast));
+
+        ArgumentCaptor<SortedMap> deltas = ArgumentCaptor.forClass(SortedMap.class);
+        verify(counterDao).adjustAll(deltas.capture());
+        MailboxCounters sender = (MailboxCounters) deltas.getValue().get(USER_ID);
+        assertEquals(2, sender.getSent());
+        assertEquals(2, sender.getThreads());
+        MailboxCounters recipient = (MailboxCounters) deltas.getValue().get(25L);
+        assertEquals(1, recipient.getReceived());
+        assertEquals(1, recipient.getUnread());
+        assertEquals(1, recipient.getThreads());
+    }
+
+    @Test
+    public void getSentConvo_servesRepeatLookupsFromCache()
+    {
+        Convo convo = new Convo(5L, USER_ID, 25L, "s", "b", false, THREAD_ID, 1000L, 0L, 0L);
+        when(convoDao.getStoredConvo(5L)).thenReturn(new StoredConvo(convo, false, false));
+        assertEquals(convo, underTest.getSentConvo(USER_ID, 5L));
+        assertEquals(convo, underTest.getSentConvo(USER_ID, 5L));
+        assertNull(underTest.getSentConvo(25L, 5L));
+        verify(convoDao, times(1)).getStoredConvo(5L);
+    }
+
+    @Test
+    public void getReceivedConvo_givenDeletedByRecipient_returnsNull()
+    {
+        Convo convo = new Convo(5L, 25L, USER_ID, "s", "b", false, THREAD_ID, 1000L, 0L, 0L);
+        when(convoDao.getStoredConvo(5L)).thenReturn(new StoredConvo(convo, false, true));
+        assertNull(underTest.getReceivedConvo(USER_ID, 5L));
+    }
+
+    @Test
+    public void changeConvoReadStatus_invalidatesCachedConvo()
+    {
+        Convo unread = new Convo(5L, 25L, USER_ID, "s", "b", false, THREAD_ID, 1000L, 0L, 0L);
+        Convo read = new Convo(5L, 25L, USER_ID, "s", "b", true, THREAD_ID, 1000L, 0L, 0L);
+        when(convoDao.getStoredConvo(5L)).thenReturn(new StoredConvo(unread, false, false), new StoredConvo(read, false, false));
+        when(convoDao.changeConvoReadStatus(USER_ID, 5L)).thenReturn(read);
+
+        assertFalse(underTest.getReceivedConvo(USER_ID, 5L).isWasRead());
+        underTest.changeConvoReadStatus(USER_ID, 5L);
+        assertTrue(underTest.getReceivedConvo(USER_ID, 5L).isWasRead());
+    }
+
+    @Test
+    public void streamConvosReceived_writesHeaderThenStreamsRowsThenFinishes()
+    {
+        when(counterDao.getCounters(USER_ID)).thenReturn(new MailboxCounters(TOTAL, 0, 0, 0, 7L));
+        underTest.streamConvosReceived(USER_ID, OFFSET, SortDirection.DESCENDING, ConvoView.FULL, stream);
+        String path = "/api/v1/"+USER_ID+"/convos/received?offset="+OFFSET+"&limit=0&direction=desc";
+        InOrder inOrder = inOrder(stream, convoDao);
+        inOrder.verify(stream).start(7L, TOTAL, OFFSET, path, path);
+        inOrder.verify(convoDao).streamConvosReceived(USER_ID, OFFSET, SortDirection.DESCENDING, ConvoView.FULL, stream);
+        inOrder.verify(stream).finish();
+    }
+
+    @Test
+    public void streamNewestReceived_readsEachUserOnceInChunks()
+    {
+        underTest.headsChunkSize = 2;
+        underTest.streamNewestReceived(Arrays.asList(1L, 2L, 1L, 3L), 5, ConvoView.SUMMARY, headsStream);
+        InOrder inOrder = inOrder(headsStream, convoDao);
+        inOrder.verify(headsStream).start(Arrays.asList(1L, 2L, 3L));
+        inOrder.verify(convoDao).streamNewestReceived(Arrays.asList(1L, 2L), 5, ConvoView.SUMMARY, headsStream);
+        inOrder.verify(convoDao).streamNewestReceived(Arrays.asList(3L), 5, ConvoView.SUMMARY, headsStream);
+        inOrder.verify(headsStream).finish();
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void streamNewestReceived_givenTooManyConvosPerUser_throwsBadRequestBeforeWriting()
+    {
+        try {
+            underTest.streamNewestReceived(Arrays.asList(1L, 2L), ConvoService.MAX_HEAD_CONVOS + 1, ConvoView.FULL, headsStream);
+        } finally {
+            verifyZeroInteractions(headsStream, convoDao);
+        }
+    }
+
+    @Test(expected = ResourceNotFoundException.class)
+    public void streamThread_givenEmptyThread_throwsNotFoundBeforeWriting()
+    {
+        when(convoDao.getTotalInThread(USER_ID, THREAD_ID)).thenReturn(0);
+        try {
+            underTest.streamThread(USER_ID, THREAD_ID, 0, SortDirection.DESCENDING, ConvoView.FULL, stream);
+        } finally {
+            verifyZeroInteractions(stream);
+        }
+    }
+
+    @Test
+    public void searchConvos_givenFullPage_buildsNextCursorFromLastHit() throws Exception
+    {
+        Convo best = new Convo(5L, 1L, USER_ID, "s", "b", false, THREAD_ID, 2000L, 0L, 0L);
+        Convo next = new Convo(4L, 1L, USER_ID, "s", "b", false, THREAD_ID, 1000L, 0L, 0L);
+        SearchCursor cursor = new SearchCursor(0.5f, 6L);
+        when(convoDao.searchConvos(USER_ID, "lunch friday", cursor, 2, ConvoView.SUMMARY))
+                .thenReturn(Arrays.asList(new SearchHit(best, 0.4f), new SearchHit(next, 0.1f)));
+        SearchResponse response = underTest.searchConvos(USER_ID, "lunch friday", cursor, 2, ConvoView.SUMMARY).get();
+        assertEquals(Arrays.asList(best, next), response.getConvos());
+        assertEquals(new SearchCursor(0.1f, 4L).encode(), response.getNextCursor());
+        assertEquals("/api/v1/"+USER_ID+"/convos/search?q=lunch+friday&cursor="+response.getNextCursor()+"&limit=2&view=summary", response.getNext());
+    }
+
+    @Test
+    public void searchConvos_givenShortPage_hasNoNext() throws Exception
+    {
+        Convo only = new Convo(5L, 1L, USER_ID, "s", "b", false, THREAD_ID, 2000L, 0L, 0L);
+        when(convoDao.searchConvos(USER_ID, "lunch", null, 2, ConvoView.FULL))
+                .thenReturn(Collections.singletonList(new SearchHit(only, 0.4f)));
+        SearchResponse response = underTest.searchConvos(USER_ID, "lunch", null, 2, ConvoView.FULL).get();
+        assertNull(response.getNext());
+        assertNull(response.getNextCursor());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void searchConvos_givenBlankQuery_throwsBadRequest()
+    {
+        try {
+            underTest.searchConvos(USER_ID, "  ", null, 20, ConvoView.FULL);
+        } finally {
+            verifyZeroInteractions(convoDao);
+        }
+    }
+
+    @Test
+    public void getChanges_givenNoToken_returnsTokenAtHorizonWithoutReadingChanges() throws Exception
+    {
+        when(convoDao.getChanges(USER_ID, null, 0, ConvoView.FULL))
+                .thenReturn(new ConvoChanges(Collections.<ConvoChange>emptyList(), 900L));
+        ChangesResponse response = underTest.getChanges(USER_ID, null, 100, ConvoView.FULL).get();
+        assertTrue(response.getChanges().isEmpty());
+        assertFalse(response.isMore());
+        assertEquals(new SyncToken(900L, 0L, false).encode(), response.getToken());
+    }
+
+    @Test
+    public void getChanges_givenFullPage_continuesAfterLastChange() throws Exception
+    {
+        SyncToken since = new SyncToken(900L, 0L, false);
+        Convo convo = new Convo(5L, 1L, USER_ID, "s", "b", true, THREAD_ID, 2000L, 3000L, 0L);
+        List<ConvoChange> page = Arrays.asList(
+                new ConvoChange(4L, true, true, null, 901L),
+                new ConvoChange(5L, false, false, convo, 905L));
+        when(convoDao.getChanges(USER_ID, since, 2, ConvoView.SUMMARY)).thenReturn(new ConvoChanges(page, 910L));
+        ChangesResponse response = underTest.getChanges(USER_ID, since, 2, ConvoView.SUMMARY).get();
+        assertEquals(page, response.getChanges());
+        assertTrue(response.isMore());
+        assertEquals(new SyncToken(905L, 5L, false).encode(), response.getToken());
+        assertEquals("/api/v1/"+USER_ID+"/convos/changes?since="+response.getToken()+"&limit=2&view=summary", response.getNext());
+    }
+
+    @Test
+    public void getChanges_givenShortPage_movesTokenToHorizon() throws Exception
+    {
+        SyncToken since = new SyncToken(900L, 0L, false);
+        when(convoDao.getChanges(USER_ID, since, 100, ConvoView.FULL))
+                .thenReturn(new ConvoChanges(Collections.singletonList(new ConvoChange(4L, true, true, null, 901L)), 910L));
+        ChangesResponse response = underTest.getChanges(USER_ID, since, 100, ConvoView.FULL).get();
+        assertFalse(response.isMore());
+        assertNull(response.getNext());
+        assertEquals(new SyncToken(910L, 0L, false).encode(), response.getToken());
+    }
+
+    @Test
+    public void getChanges_givenHorizonBehindToken_keepsToken() throws Exception
+    {
+        SyncToken since = new SyncToken(900L, 7L, true);
+        when(convoDao.getChanges(USER_ID, since, 100, ConvoView.FULL))
+                .thenReturn(new ConvoChanges(Collections.<ConvoChange>emptyList(), 850L));
+        assertEquals(since.encode(), underTest.getChanges(USER_ID, since, 100, ConvoView.FULL).get().getToken());
+    }
 }
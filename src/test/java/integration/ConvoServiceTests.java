@@ -2,14 +2,22 @@ package integration;
 
 import static com.jayway.restassured.RestAssured.*;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.*;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
 import com.jayway.restassured.http.ContentType;
+import com.jayway.restassured.response.ValidatableResponse;
 import convos.domain.CreateConvo;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 
@@ -441,9 +449,304 @@ public class ConvoServiceTests
             .body("convos.id[1]", equalTo(convoId2.intValue()));
     }
 
+    @Test
+    public void createConvo_givenLongBody_readsBackCompressedBody() throws JsonProcessingException
+    {
+        long sendingUser = Math.abs(random.nextLong());
+        long receivingUser = Math.abs(random.nextLong());
+        String longBody = Strings.repeat(BODY, 200);
+        Long convoId = createConvo(sendingUser, receivingUser, longBody);
+
+        given()
+            .contentType(ContentType.JSON)
+        .when()
+            .get(SERVICE_ROOT + receivingUser + "/convos/received/" + convoId)
+        .then()
+            .contentType(ContentType.JSON)
+            .statusCode(200)
+            .body("body", equalTo(longBody));
+
+        given()
+            .contentType(ContentType.JSON)
+        .when()
+            .get(SERVICE_ROOT + receivingUser + "/convos/received?view=summary")
+        .then()
+            .contentType(ContentType.JSON)
+            .statusCode(200)
+            .body("convos.snippet[0]", equalTo(longBody.substring(0, 160)));
+    }
+
+    @Test
+    public void searchConvos_findsOnlyConvosTheUserCanStillSee() throws JsonProcessingException
+    {
+        long sendingUser = Math.abs(random.nextLong());
+        long receivingUser = Math.abs(random.nextLong());
+        Long kept = createConvo(sendingUser, receivingUser, "Lunch with the giraffes on Friday");
+        Long deleted = createConvo(sendingUser, receivingUser, "Feeding giraffes at noon");
+        createConvo(sendingUser, receivingUser, BODY);
+
+        given()
+            .contentType(ContentType.JSON)
+        .when()
+            .delete(SERVICE_ROOT + receivingUser + "/convos/" + deleted)
+        .then()
+            .statusCode(200);
+
+        given()
+            .contentType(ContentType.JSON)
+        .when()
+            .get(SERVICE_ROOT + receivingUser + "/convos/search?q=giraffe")
+        .then()
+            .contentType(ContentType.JSON)
+            .statusCode(200)
+            .body("convos.size()", equalTo(1))
+            .body("convos.id[0]", equalTo(kept.intValue()));
+
+        given()
+            .contentType(ContentType.JSON)
+        .when()
+            .get(SERVICE_ROOT + sendingUser + "/convos/search?q=giraffe")
+        .then()
+            .contentType(ContentType.JSON)
+            .statusCode(200)
+            .body("convos.size()", equalTo(2));
+    }
+
+    @Test
+    public void streamEvents_givenCursor_deliversConvosReceivedSinceThen() throws JsonProcessingException
+    {
+        long sendingUser = Math.abs(random.nextLong());
+        long receivingUser = Math.abs(random.nextLong());
+        String cursor =
+                given()
+                    .contentType(ContentType.JSON)
+                .when()
+                    .get(SERVICE_ROOT + receivingUser + "/convos/stream")
+                .then()
+                    .statusCode(200)
+                    .body("events.size()", equalTo(0))
+                    .extract().path("cursor");
+
+        Long convoId = createConvo(sendingUser, receivingUser);
+
+        given()
+            .contentType(ContentType.JSON)
+        .when()
+            .get(SERVICE_ROOT + receivingUser + "/convos/stream?cursor=" + cursor)
+        .then()
+            .contentType(ContentType.JSON)
+            .statusCode(200)
+            .body("resync", equalTo(false))
+            .body("events.size()", equalTo(1))
+            .body("events.type[0]", equalTo("received"))
+            .body("events.convoId[0]", equalTo(convoId.intValue()));
+    }
+
+    @Test
+    public void getChanges_givenToken_returnsNewConvoThenItsTombstone() throws JsonProcessingException
+    {
+        long sendingUser = Math.abs(random.nextLong());
+        long receivingUser = Math.abs(random.nextLong());
+        String token = changes(receivingUser, null).extract().path("token");
+
+        Long convoId = createConvo(sendingUser, receivingUser);
+        token = changes(receivingUser, token)
+            .body("changes.size()", equalTo(1))
+            .body("changes.id[0]", equalTo(convoId.intValue()))
+            .body("changes.mailbox[0]", equalTo("received"))
+            .body("changes.deleted[0]", equalTo(false))
+            .body("changes.convo[0].wasRead", equalTo(false))
+            .extract().path("token");
+
+        given()
+            .contentType(ContentType.JSON)
+        .when()
+            .delete(SERVICE_ROOT + receivingUser + "/convos/" + convoId)
+        .then()
+            .statusCode(200);
+
+        changes(receivingUser, token)
+            .body("changes.size()", equalTo(1))
+            .body("changes.deleted[0]", equalTo(true))
+            .body("changes.convo[0]", nullValue());
+    }
+
+    @Test
+    public void getConvosReceived_givenDefaultLimitAndCurrentETag_returns304() throws JsonProcessingException
+    {
+        long sendingUser = Math.abs(random.nextLong());
+        long receivingUser = Math.abs(random.nextLong());
+        createConvo(sendingUser, receivingUser);
+        String etag =
+                given()
+                    .contentType(ContentType.JSON)
+                .when()
+                    .get(SERVICE_ROOT + receivingUser + "/convos/received")
+                .then()
+                    .statusCode(200)
+                    .extract().header("ETag");
+        assertNotNull(etag);
+
+        given()
+            .header("If-None-Match", etag)
+        .when()
+            .get(SERVICE_ROOT + receivingUser + "/convos/received")
+        .then()
+            .statusCode(304)
+            .header("ETag", etag);
+    }
+
+    @Test
+    public void getConvosReceived_givenCurrentETag_returns304UntilMailboxChanges() throws JsonProcessingException
+    {
+        long sendingUser = Math.abs(random.nextLong());
+        long receivingUser = Math.abs(random.nextLong());
+        createConvo(sendingUser, receivingUser);
+        String etag =
+                given()
+                    .contentType(ContentType.JSON)
+                .when()
+                    .get(SERVICE_ROOT + receivingUser + "/convos/received?limit=10")
+                .then()
+                    .statusCode(200)
+                    .extract().header("ETag");
+        assertNotNull(etag);
+
+        given()
+            .header("If-None-Match", etag)
+        .when()
+            .get(SERVICE_ROOT + receivingUser + "/convos/received?limit=10")
+        .then()
+            .statusCode(304)
+            .header("ETag", etag);
+
+        createConvo(sendingUser, receivingUser);
+
+        given()
+            .header("If-None-Match", etag)
+        .when()
+            .get(SERVICE_ROOT + receivingUser + "/convos/received?limit=10")
+        .then()
+            .statusCode(200)
+            .header("ETag", not(equalTo(etag)))
+            .body("convos.size()", equalTo(2));
+    }
+
+    @Test
+    public void getUnreadCount_countsUnreadReceivedConvos() throws JsonProcessingException
+    {
+        long sendingUser = Math.abs(random.nextLong());
+        long receivingUser = Math.abs(random.nextLong());
+        long readConvoId = createConvo(sendingUser, receivingUser);
+        long unreadConvoId = createConvo(sendingUser, receivingUser);
+
+        given()
+            .contentType(ContentType.JSON)
+        .when()
+            .put(SERVICE_ROOT + receivingUser + "/convos/received/" + readConvoId)
+        .then()
+            .statusCode(200);
+
+        int unread =
+                given()
+                    .contentType(ContentType.JSON)
+                .when()
+                    .get(SERVICE_ROOT + receivingUser + "/convos/unread/count")
+                .then()
+                    .statusCode(200)
+                    .extract().body().as(Integer.class);
+        assertEquals(1, unread);
+
+        Map<?, ?> counts =
+                given()
+                    .contentType(ContentType.JSON)
+                    .body(mapper.writeValueAsString(Arrays.asList(receivingUser, sendingUser)))
+                .when()
+                    .post(SERVICE_ROOT + "convos/unread/counts")
+                .then()
+                    .statusCode(200)
+                    .extract().body().as(Map.class);
+        assertEquals(1, counts.get(String.valueOf(receivingUser)));
+        assertEquals(0, counts.get(String.valueOf(sendingUser)));
+
+        long unreadThreadId =
+                given()
+                    .contentType(ContentType.JSON)
+                .when()
+                    .get(SERVICE_ROOT + receivingUser + "/convos/received/" + unreadConvoId)
+                .then()
+                    .statusCode(200)
+                    .extract().body().jsonPath().getLong("threadId");
+
+        Map<?, ?> threadCounts =
+                given()
+                    .contentType(ContentType.JSON)
+                .when()
+                    .get(SERVICE_ROOT + receivingUser + "/threads?limit=10")
+                .then()
+                    .statusCode(200)
+                    .extract().path("unreadCounts");
+        assertEquals(2, threadCounts.size());
+        assertEquals(1, threadCounts.get(String.valueOf(unreadThreadId)));
+
+        Map<?, ?> streamedCounts =
+                given()
+                    .contentType(ContentType.JSON)
+                .when()
+                    .get(SERVICE_ROOT + receivingUser + "/threads")
+                .then()
+                    .statusCode(200)
+                    .extract().path("unreadCounts");
+        assertEquals(threadCounts, streamedCounts);
+    }
+
+    @Test
+    public void getNewestReceived_givenManyUsers_returnsNewestConvosOfEach() throws JsonProcessingException
+    {
+        long sendingUser = Math.abs(random.nextLong());
+        long busyUser = Math.abs(random.nextLong());
+        long quietUser = Math.abs(random.nextLong());
+        createConvo(sendingUser, busyUser);
+        long second = createConvo(sendingUser, busyUser);
+        long third = createConvo(sendingUser, busyUser);
+
+        Map<?, ?> heads =
+                given()
+                    .contentType(ContentType.JSON)
+                    .body(mapper.writeValueAsString(Arrays.asList(busyUser, quietUser)))
+                .when()
+                    .post(SERVICE_ROOT + "convos/received/newest?limit=2&view=summary")
+                .then()
+                    .statusCode(200)
+                    .extract().body().as(Map.class);
+        assertEquals(2, heads.size());
+        List<?> busy = (List<?>)heads.get(String.valueOf(busyUser));
+        assertEquals(2, busy.size());
+        assertEquals(third, ((Number)((Map<?, ?>)busy.get(0)).get("id")).longValue());
+        assertEquals(second, ((Number)((Map<?, ?>)busy.get(1)).get("id")).longValue());
+        assertEquals(Collections.emptyList(), heads.get(String.valueOf(quietUser)));
+    }
+
+    private ValidatableResponse changes(long userId, String token)
+    {
+        return given()
+                .contentType(ContentType.JSON)
+            .when()
+                .get(SERVICE_ROOT + userId + "/convos/changes" + (token != null ? "?since=" + token : ""))
+            .then()
+                .contentType(ContentType.JSON)
+                .statusCode(200)
+                .body("more", equalTo(false));
+    }
+
     private long createConvo(long sendingUser, long receivingUser) throws JsonProcessingException
     {
-        CreateConvo convo = new CreateConvo(sendingUser, receivingUser, SUBJECT, BODY);
+        return createConvo(sendingUser, receivingUser, BODY);
+    }
+
+    private long createConvo(long sendingUser, long receivingUser, String body) throws JsonProcessingException
+    {
+        CreateConvo convo = new CreateConvo(sendingUser, receivingUser, SUBJECT, body);
 
         Long convoId =
                 given()
@@ -0,0 +1,410 @@
+package integration;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import convos.Application;
+import convos.dao.ConvoDao;
+import convos.dao.ConvoEventDao;
+import convos.dao.ConvoHandler;
+import convos.dao.MailboxCounterDao;
+import convos.dao.MailboxDao;
+import convos.dao.ThreadHandler;
+import convos.dao.ThreadSummaryDao;
+import convos.domain.BatchCreateConvo;
+import convos.domain.BroadcastConvo;
+import convos.domain.Convo;
+import convos.domain.ConvoEvent;
+import convos.domain.ConvoView;
+import convos.domain.CreateConvo;
+import convos.domain.MailboxCounters;
+import convos.domain.PageCursor;
+import convos.domain.SearchCursor;
+import convos.domain.SearchHit;
+import convos.domain.SortDirection;
+import convos.domain.SyncToken;
+import convos.metrics.ProfilingJdbcTemplate;
+import convos.metrics.SlowQueryLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs every DAO method against a seeded database, then EXPLAINs each statement it issued and
+ * fails if any plan reads a table with a sequential scan, or sorts rows read from a table.
+ *
+ * Sequential scans and sorts are disabled for the session, so the planner only picks one when
+ * no index can do the job and the result doesn't depend on how much data is seeded. Sorts of the
+ * request's own values (unnest of parameter arrays) are fine.
+ *
+ * Ensure a local database is running before running tests. Everything runs in a transaction that
+ * is rolled back.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@Transactional
+public class QueryPlanTests
+{
+    private static final int SEED_CONVOS = 300;
+
+    /**
+     * DAO methods allowed to sort table rows, and why that is bounded.
+     */
+    private static final Map<String, String> ALLOWED_SORTS = ImmutableMap.of(
+            "ConvoDao.getUserIds", "merges at most three batches of user IDs",
+            "ConvoDao.searchConvos", "ranks one user's matches for the query, found through their range of the search indexes",
+            "ConvoDao.getChanges", "merges one page from each of the four change index ranges",
+            "ConvoDao.streamNewestReceived", "orders at most limit convos per user of one chunk of users",
+            "ThreadSummaryDao.rebuild", "orders one user's visible convos by thread, in a maintenance job");
+
+    @Autowired ConvoDao convoDao;
+    @Autowired MailboxCounterDao counterDao;
+    @Autowired ThreadSummaryDao threadSummaryDao;
+    @Autowired MailboxDao mailboxDao;
+    @Autowired ConvoEventDao eventDao;
+    @Autowired NamedParameterJdbcTemplate jdbcTemplate;
+    @Autowired DataSource dataSource;
+
+    private final Random random = new Random();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Recorder recorder = new Recorder();
+
+    private long user;
+    private long other;
+    private List<Convo> seeded;
+    private Object streamingJdbcTemplate;
+
+    @Before
+    public void seed() throws Exception
+    {
+        user = Math.abs(random.nextLong());
+        other = Math.abs(random.nextLong());
+
+        List<BatchCreateConvo> batch = new ArrayList<>();
+        for (int i = 0; i < SEED_CONVOS; i++) {
+            long from = Math.abs(random.nextLong());
+            batch.add(new BatchCreateConvo(i % 3 == 0 ? user : from, i % 3 == 0 ? from : user, "subject " + i, "body " + i, null));
+        }
+        seeded = convoDao.createConvos(batch);
+        threadSummaryDao.recordConvos(seeded);
+        mailboxDao.add(seeded);
+        // The older half in the archive, so listings read both tables
+        convoDao.archive(System.currentTimeMillis() + 60000, SEED_CONVOS / 2);
+        jdbcTemplate.getJdbcOperations().execute("ANALYZE convo.convo");
+        jdbcTemplate.getJdbcOperations().execute("ANALYZE convo.convo_archive");
+        for (int i = 0; i < 16; i++) {
+            jdbcTemplate.getJdbcOperations().execute("ANALYZE convo.mailbox_" + i);
+        }
+        jdbcTemplate.getJdbcOperations().execute("ANALYZE convo.thread_summary");
+        jdbcTemplate.getJdbcOperations().execute("ANALYZE convo.mailbox_counter");
+        jdbcTemplate.getJdbcOperations().execute("SET LOCAL enable_seqscan = off");
+        jdbcTemplate.getJdbcOperations().execute("SET LOCAL enable_sort = off");
+
+        streamingJdbcTemplate = ReflectionTestUtils.getField(target(convoDao), "streamingJdbcTemplate");
+        ProfilingJdbcTemplate template = new ProfilingJdbcTemplate(dataSource, recorder);
+        for (Object dao : Arrays.asList(convoDao, counterDao, threadSummaryDao, mailboxDao, eventDao)) {
+            ReflectionTestUtils.setField(target(dao), "jdbcTemplate", template);
+        }
+        ReflectionTestUtils.setField(target(convoDao), "streamingJdbcTemplate", template);
+    }
+
+    @After
+    public void restore() throws Exception
+    {
+        for (Object dao : Arrays.asList(convoDao, counterDao, threadSummaryDao, mailboxDao, eventDao)) {
+            ReflectionTestUtils.setField(target(dao), "jdbcTemplate", jdbcTemplate);
+        }
+        ReflectionTestUtils.setField(target(convoDao), "streamingJdbcTemplate", streamingJdbcTemplate);
+        ReflectionTestUtils.setField(target(convoDao), "partitionedReads", false);
+    }
+
+    @Test
+    public void convoDao_usesIndexes() throws Exception
+    {
+        final Convo received = seeded.get(1);
+        final Convo sent = seeded.get(0);
+        final PageCursor cursor = PageCursor.after(received);
+        final ConvoHandler ignore = new ConvoHandler()
+        {
+            @Override
+            public void handle(Convo convo)
+            {
+            }
+        };
+        final ThreadHandler ignoreThreads = new ThreadHandler()
+        {
+            @Override
+            public void handle(Convo latest, int unreadCount)
+            {
+            }
+        };
+
+        recorder.call = "ConvoDao.getStoredConvo";
+        convoDao.getStoredConvo(received.getId());
+        recorder.call = "ConvoDao.createConvo";
+        Convo reply = convoDao.createConvo(new CreateConvo(user, other, "subject", "body"), received.getId());
+        recorder.call = "ConvoDao.createConvos";
+        convoDao.createConvos(Collections.singletonList(new BatchCreateConvo(user, other, "subject", "body", received.getId())));
+        recorder.call = "ConvoDao.broadcastConvo";
+        convoDao.broadcastConvo(new BroadcastConvo(user, Arrays.asList(other, other + 1), "subject", "body"));
+        recorder.call = "ConvoDao.getExistingConvoIds";
+        convoDao.getExistingConvoIds(Arrays.asList(received.getId(), sent.getId()));
+        recorder.call = "ConvoDao.changeConvoReadStatus";
+        convoDao.changeConvoReadStatus(user, received.getId());
+        listings(cursor, received, ignore, ignoreThreads);
+        ReflectionTestUtils.setField(target(convoDao), "partitionedReads", true);
+        listings(cursor, received, ignore, ignoreThreads);
+        recorder.call = "ConvoDao.getTotalInThread";
+        convoDao.getTotalInThread(user, received.getThreadId());
+        recorder.call = "ConvoDao.getUserIds";
+        convoDao.getUserIds(0, 100);
+        recorder.call = "ConvoDao.lastConvoId";
+        convoDao.lastConvoId();
+        recorder.call = "ConvoDao.indexForSearch";
+        convoDao.indexForSearch(received.getId() - 1, received.getId() + 100);
+        recorder.call = "ConvoDao.archive";
+        convoDao.archive(System.currentTimeMillis() + 60000, 10);
+        recorder.call = "ConvoDao.deleteSentConvo";
+        convoDao.deleteSentConvo(user, sent.getId());
+        recorder.call = "ConvoDao.deleteReceivedConvo";
+        convoDao.deleteReceivedConvo(other, reply.getId());
+        recorder.call = "ConvoDao.deleteSentInThread";
+        convoDao.deleteSentInThread(user, reply.getThreadId());
+        recorder.call = "ConvoDao.deleteReceivedInThread";
+        convoDao.deleteReceivedInThread(user, received.getThreadId());
+
+        check(ConvoDao.class);
+    }
+
+    /**
+     * Every listing, in both directions and views.
+     */
+    private void listings(final PageCursor cursor, final Convo received, final ConvoHandler ignore,
+                          final ThreadHandler ignoreThreads)
+    {
+        for (SortDirection direction : SortDirection.values()) {
+            for (ConvoView view : ConvoView.values()) {
+                recorder.call = "ConvoDao.getConvosReceived";
+                convoDao.getConvosReceived(user, 10, 20, direction, view);
+                convoDao.getConvosReceived(user, cursor, 20, direction, view);
+                recorder.call = "ConvoDao.getConvosSent";
+                convoDao.getConvosSent(user, 10, 20, direction, view);
+                convoDao.getConvosSent(user, cursor, 20, direction, view);
+                recorder.call = "ConvoDao.getThreads";
+                convoDao.getThreads(user, 10, 20, direction, view);
+                convoDao.getThreads(user, cursor, 20, direction, view);
+                recorder.call = "ConvoDao.getThread";
+                convoDao.getThread(user, received.getThreadId(), 0, 20, direction, view);
+                convoDao.getThread(user, received.getThreadId(), cursor, 20, direction, view);
+                recorder.call = "ConvoDao.streamConvosReceived";
+                convoDao.streamConvosReceived(user, 10, direction, view, ignore);
+                recorder.call = "ConvoDao.streamConvosSent";
+                convoDao.streamConvosSent(user, 10, direction, view, ignore);
+                recorder.call = "ConvoDao.streamThreads";
+                convoDao.streamThreads(user, 10, direction, view, ignoreThreads);
+                recorder.call = "ConvoDao.streamThread";
+                convoDao.streamThread(user, received.getThreadId(), 0, direction, view, ignore);
+            }
+        }
+        for (ConvoView view : ConvoView.values()) {
+            recorder.call = "ConvoDao.searchConvos";
+            List<SearchHit> hits = convoDao.searchConvos(user, "subject body", null, 20, view);
+            convoDao.searchConvos(user, "subject body", SearchCursor.after(hits.get(hits.size() - 1)), 20, view);
+            recorder.call = "ConvoDao.streamNewestReceived";
+            convoDao.streamNewestReceived(Arrays.asList(user, other), 5, view, ignore);
+            recorder.call = "ConvoDao.getChanges";
+            convoDao.getChanges(user, null, 0, view);
+            convoDao.getChanges(user, new SyncToken(1L, received.getId(), false), 20, view);
+            convoDao.getChanges(user, new SyncToken(1L, received.getId(), true), 20, view);
+        }
+    }
+
+    @Test
+    public void mailboxCounterDao_usesIndexes() throws IOException
+    {
+        recorder.call = "MailboxCounterDao.getCounters";
+        counterDao.getCounters(user);
+        recorder.call = "MailboxCounterDao.getUnreadCounts";
+        counterDao.getUnreadCounts(Arrays.asList(user, other));
+        recorder.call = "MailboxCounterDao.adjust";
+        counterDao.adjust(user, 1, 0, 1, 0);
+        recorder.call = "MailboxCounterDao.adjustAll";
+        counterDao.adjustAll(new TreeMap<>(ImmutableMap.of(user, new MailboxCounters(1, 0, 1, 0))));
+        recorder.call = "MailboxCounterDao.rebuild";
+        counterDao.rebuild(user);
+
+        check(MailboxCounterDao.class);
+    }
+
+    @Test
+    public void threadSummaryDao_usesIndexes() throws IOException
+    {
+        final Convo convo = seeded.get(1);
+
+        recorder.call = "ThreadSummaryDao.recordConvo";
+        threadSummaryDao.recordConvo(user, convo);
+        recorder.call = "ThreadSummaryDao.recordConvos";
+        threadSummaryDao.recordConvos(seeded.subList(0, 10));
+        recorder.call = "ThreadSummaryDao.adjustUnread";
+        threadSummaryDao.adjustUnread(user, convo.getThreadId(), -1);
+        recorder.call = "ThreadSummaryDao.refresh";
+        threadSummaryDao.refresh(user, convo.getThreadId());
+        recorder.call = "ThreadSummaryDao.markDeleted";
+        threadSummaryDao.markDeleted(user, convo.getThreadId());
+        recorder.call = "ThreadSummaryDao.rebuild";
+        threadSummaryDao.rebuild(user);
+
+        check(ThreadSummaryDao.class);
+    }
+
+    @Test
+    public void mailboxDao_usesIndexes() throws IOException
+    {
+        recorder.call = "MailboxDao.add";
+        mailboxDao.add(seeded.subList(0, 10));
+        recorder.call = "MailboxDao.remove";
+        mailboxDao.remove(user, false, seeded.subList(1, 3));
+        recorder.call = "MailboxDao.backfill";
+        mailboxDao.backfill(seeded.get(0).getId() - 1, seeded.get(0).getId() + 100);
+
+        check(MailboxDao.class);
+    }
+
+    @Test
+    public void convoEventDao_usesIndexes() throws IOException
+    {
+        recorder.call = "ConvoEventDao.publish";
+        eventDao.publish(Collections.singletonList(new ConvoEvent(ConvoEvent.Type.RECEIVED, user, seeded.get(0).getId(), seeded.get(0).getThreadId())));
+
+        check(ConvoEventDao.class);
+    }
+
+    /**
+     * The bean itself, behind any proxy the aspects put in front of it, for swapping its fields.
+     */
+    private static Object target(final Object bean) throws Exception
+    {
+        return AopUtils.isAopProxy(bean) ? ((Advised)bean).getTargetSource().getTarget() : bean;
+    }
+
+    /**
+     * Explain everything recorded, and check that every public method of the DAO was called.
+     */
+    private void check(final Class<?> dao) throws IOException
+    {
+        final Set<String> called = new TreeSet<>();
+        final List<String> failures = new ArrayList<>();
+        for (Recorded statement : recorder.statements) {
+            called.add(statement.call);
+            if (statement.params == null) {
+                // A batch update; JDBC only gives us its positional SQL
+                continue;
+            }
+            String json = jdbcTemplate.queryForObject("EXPLAIN (FORMAT JSON) " + statement.sql, statement.params, String.class);
+            JsonNode plan = mapper.readTree(json).get(0).get("Plan");
+            check(statement, plan, failures);
+        }
+
+        final Set<String> expected = new TreeSet<>();
+        for (Method method : dao.getDeclaredMethods()) {
+            if (Modifier.isPublic(method.getModifiers()) && !Modifier.isStatic(method.getModifiers())) {
+                expected.add(dao.getSimpleName() + "." + method.getName());
+            }
+        }
+        assertEquals("Every DAO method must be exercised", expected, called);
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    private void check(final Recorded statement, final JsonNode node, final List<String> failures)
+    {
+        final String type = node.get("Node Type").asText();
+        if (type.equals("Seq Scan")) {
+            failures.add(statement.call + ": sequential scan on " + node.get("Relation Name").asText() + " in " + statement.sql);
+        }
+        if (type.equals("Sort") && readsTable(node) && !ALLOWED_SORTS.containsKey(statement.call)) {
+            failures.add(statement.call + ": sort of table rows in " + statement.sql);
+        }
+        if (node.has("Plans")) {
+            for (JsonNode child : node.get("Plans")) {
+                check(statement, child, failures);
+            }
+        }
+    }
+
+    private static boolean readsTable(final JsonNode node)
+    {
+        if (node.has("Relation Name")) {
+            return true;
+        }
+        if (node.has("Plans")) {
+            for (JsonNode child : node.get("Plans")) {
+                if (readsTable(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class Recorded
+    {
+        final String call;
+        final String sql;
+        final SqlParameterSource params;
+
+        Recorded(final String call, final String sql, final SqlParameterSource params)
+        {
+            this.call = call;
+            this.sql = sql;
+            this.params = params;
+        }
+    }
+
+    /**
+     * Collects every statement a DAO issues, tagged with the DAO method being exercised.
+     */
+    private static class Recorder extends SlowQueryLog
+    {
+        final List<Recorded> statements = new ArrayList<>();
+        String call;
+
+        Recorder()
+        {
+            super(new MetricRegistry(), Long.MAX_VALUE, 0, false, 0, 0);
+        }
+
+        @Override
+        public void record(final String sql, final SqlParameterSource params, final long nanos)
+        {
+            statements.add(new Recorded(call, sql, params));
+        }
+    }
+}